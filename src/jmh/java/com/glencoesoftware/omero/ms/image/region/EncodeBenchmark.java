@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.MultiMap;
+import ome.model.enums.Family;
+import ome.model.enums.RenderingModel;
+
+/**
+ * Benchmarks encoding of rendered image regions in each supported format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"jpeg", "png", "tif"})
+    public String format;
+
+    @Param({"256", "512", "1024"})
+    public int size;
+
+    /** JPEG backend; <code>auto</code> uses libjpeg-turbo if available */
+    @Param({"auto", "java"})
+    public String jpegBackend;
+
+    /** PNG deflate level; 1 is the fast mode for interactive tiles */
+    @Param({"6", "1"})
+    public int pngCompressionLevel;
+
+    @Param({"ADAPTIVE", "SUB"})
+    public String pngFilter;
+
+    private ImageRegionRequestHandler handler;
+
+    private int[] packedInts;
+
+    @Setup
+    public void setup() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("theZ", "0");
+        params.add("theT", "0");
+        params.add("format", format);
+        params.add("q", "0.9");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        handler = new ImageRegionRequestHandler(
+                imageRegionCtx, null, new ArrayList<Family>(),
+                new ArrayList<RenderingModel>(), null, null, null,
+                new ImageEncoder(
+                        ImageEncoder.DEFAULT_JPEG_QUALITY, false, false,
+                        new PngEncoder(pngCompressionLevel,
+                                PngEncoder.Filter.valueOf(pngFilter), 0,
+                                null),
+                        null, jpegBackend),
+                1024, null, null);
+        // Smooth gradients with some structure, broadly representative of
+        // a rendered tile, rather than incompressible noise
+        packedInts = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int red = (x * 255) / size;
+                int green = (y * 255) / size;
+                int blue = ((x ^ y) & 0x3F) * 4;
+                packedInts[y * size + x] =
+                        0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return handler.encode(packedInts, size, size);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the in place, row-major flips of rendered image regions and
+ * shape masks with the previous column-major implementation which
+ * allocated a new buffer for every flip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlipBenchmark {
+
+    @Param({"1024"})
+    public int size;
+
+    @Param({"h", "v", "hv"})
+    public String flip;
+
+    private int[] packedInts;
+
+    private byte[] bytes;
+
+    private boolean flipHorizontal;
+
+    private boolean flipVertical;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1L);
+        packedInts = new int[size * size];
+        for (int i = 0; i < packedInts.length; i++) {
+            packedInts[i] = random.nextInt();
+        }
+        bytes = new byte[size * size];
+        random.nextBytes(bytes);
+        flipHorizontal = flip.contains("h");
+        flipVertical = flip.contains("v");
+    }
+
+    @Benchmark
+    public int[] flipPackedInts() {
+        // Flipping in place is its own inverse so repeated invocations
+        // operate on equivalent data
+        return ImageRegionRequestHandler.flip(
+                packedInts, size, size, flipHorizontal, flipVertical);
+    }
+
+    @Benchmark
+    public int[] flipPackedIntsColumnMajor() {
+        return flipColumnMajor(
+                packedInts, size, size, flipHorizontal, flipVertical);
+    }
+
+    @Benchmark
+    public byte[] flipBytes() {
+        return ShapeMaskRequestHandler.flip(
+                bytes, size, size, flipHorizontal, flipVertical);
+    }
+
+    @Benchmark
+    public byte[] flipBytesColumnMajor() {
+        return flipColumnMajor(
+                bytes, size, size, flipHorizontal, flipVertical);
+    }
+
+    /**
+     * Previous column-major implementation of
+     * {@link ImageRegionRequestHandler#flip(int[], int, int, boolean, boolean)}
+     * retained as a baseline.
+     */
+    private static int[] flipColumnMajor(
+            int[] src, int sizeX, int sizeY,
+            boolean flipHorizontal, boolean flipVertical) {
+        int[] dest = new int[src.length];
+        int srcIndex, destIndex;
+        int xOffset = flipHorizontal? sizeX : 1;
+        int yOffset = flipVertical? sizeY : 1;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                srcIndex = (y * sizeX) + x;
+                destIndex = Math.abs(((yOffset - y - 1) * sizeX))
+                        + Math.abs((xOffset - x - 1));
+                dest[destIndex] = src[srcIndex];
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Previous column-major implementation of
+     * {@link ShapeMaskRequestHandler#flip(byte[], int, int, boolean, boolean)}
+     * retained as a baseline.
+     */
+    private static byte[] flipColumnMajor(
+            byte[] src, int sizeX, int sizeY,
+            boolean flipHorizontal, boolean flipVertical) {
+        byte[] dest = new byte[src.length];
+        int srcIndex, destIndex;
+        int xOffset = flipHorizontal? sizeX : 1;
+        int yOffset = flipVertical? sizeY : 1;
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                srcIndex = (y * sizeX) + x;
+                destIndex = Math.abs(((yOffset - y - 1) * sizeX))
+                        + Math.abs((xOffset - x - 1));
+                dest[destIndex] = src[srcIndex];
+            }
+        }
+        return dest;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.MultiMap;
+
+/**
+ * Benchmarks parsing of image region request parameters and rendering
+ * settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageRegionCtxBenchmark {
+
+    @Param({"FF0000", "FF000080"})
+    public String color;
+
+    private MultiMap params;
+
+    @Setup
+    public void setup() {
+        params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "123");
+        params.add("theZ", "1");
+        params.add("theT", "1");
+        params.add("q", "0.8");
+        params.add("tile", "0,0,1,1024,2048");
+        params.add("c", "-1|0:65535$0000FF,2|1755:51199$00FF00," +
+                "-3|3218:26623$FF0000");
+        params.add("m", "c");
+        params.add("p", "intmax|0:10");
+        params.add("ia", "0");
+        params.add("flip", "hv");
+        params.add("maps", "[{\"reverse\": {\"enabled\": false}}, " +
+                "{\"reverse\": {\"enabled\": false}}, " +
+                "{\"reverse\": {\"enabled\": false}}]");
+    }
+
+    @Benchmark
+    public ImageRegionCtx parse() {
+        return new ImageRegionCtx(params, "");
+    }
+
+    @Benchmark
+    public int[] splitHTMLColor() {
+        return ImageRegionRequestHandler.splitHTMLColor(color);
+    }
+}
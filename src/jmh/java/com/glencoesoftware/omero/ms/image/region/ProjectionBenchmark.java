@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ome.api.IProjection;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * Compares the specialized pixels type projection kernels with per pixel
+ * {@link ome.util.PixelData} access.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectionBenchmark {
+
+    @Param({"uint8", "int8", "uint16", "int16", "uint32", "int32", "float",
+            "double"})
+    public String pixelsType;
+
+    /**
+     * {@link IProjection#MAXIMUM_INTENSITY},
+     * {@link IProjection#MEAN_INTENSITY} or
+     * {@link IProjection#SUM_INTENSITY}
+     */
+    @Param({"0", "1", "2"})
+    public int algorithm;
+
+    @Param({"true", "false"})
+    public boolean typedKernels;
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"32"})
+    public int sizeZ;
+
+    /** Size of the projection pool or <code>0</code> for no pool */
+    @Param({"0", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+
+    private Pixels pixels;
+
+    private PixelBuffer pixelBuffer;
+
+    private ProjectionService projectionService;
+
+    private RegionDef region;
+
+    @Setup
+    public void setup() {
+        PixelsType type = new PixelsType(pixelsType);
+        type.setBitSize(bitSize(pixelsType));
+        pixels = new Pixels(
+                null, type, size, size, sizeZ, 1, 1, "", null);
+        Random random = new Random(1L);
+        byte[][][][] planes = new byte[sizeZ][1][1][];
+        for (int z = 0; z < sizeZ; z++) {
+            planes[z][0][0] = new byte[size * size * type.getBitSize() / 8];
+            random.nextBytes(planes[z][0][0]);
+        }
+        pixelBuffer = new InMemoryPlanarPixelBuffer(pixels, planes);
+        if (parallelism > 0) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        projectionService = new ProjectionService(typedKernels, pool);
+        region = new RegionDef(0, 0, size, size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static int bitSize(String pixelsType) {
+        switch (pixelsType) {
+            case "int8":
+            case "uint8":
+                return 8;
+            case "int16":
+            case "uint16":
+                return 16;
+            case "double":
+                return 64;
+            default:
+                return 32;
+        }
+    }
+
+    @Benchmark
+    public byte[] projectStack() {
+        return projectionService.projectStack(
+                pixels, pixelBuffer, algorithm, 0, 0, 1, 0, sizeZ - 1,
+                region);
+    }
+}
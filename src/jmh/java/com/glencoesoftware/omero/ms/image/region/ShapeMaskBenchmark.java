@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.MultiMap;
+import ome.xml.model.primitives.Color;
+
+/**
+ * Benchmarks rendering of shape masks whose width is and is not byte
+ * aligned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeMaskBenchmark {
+
+    /** Mask width; 1024 is byte aligned and 1023 is not */
+    @Param({"1024", "1023"})
+    public int width;
+
+    @Param({"1024"})
+    public int height;
+
+    @Param({"", "hv"})
+    public String flip;
+
+    private ShapeMaskRequestHandler handler;
+
+    private Color fillColor;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("shapeId", "1");
+        params.add("color", "FF0000FF");
+        params.add("flip", flip);
+        handler = new ShapeMaskRequestHandler(
+                new ShapeMaskCtx(params, ""), new ImageEncoder());
+        fillColor = new Color(255, 0, 0, 255);
+        // Pseudo-random mask packed one bit per pixel
+        bytes = new byte[(width * height + 7) / 8];
+        new Random(1L).nextBytes(bytes);
+    }
+
+    @Benchmark
+    public byte[] renderShapeMask() throws IOException {
+        // Flipping is performed in place so always start from a copy
+        return handler.renderShapeMask(
+                fillColor, bytes.clone(), width, height);
+    }
+}
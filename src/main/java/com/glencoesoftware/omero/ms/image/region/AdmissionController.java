@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Bounds the number of requests outstanding against a worker verticle.
+ * At most <code>maxConcurrency</code> requests are processed at once by the
+ * verticle's dedicated worker pool and at most <code>maxQueued</code>
+ * further requests wait for a worker thread; requests beyond that are
+ * rejected up front so that they can be shed with an HTTP 503 rather than
+ * waiting on the event bus until the send timeout fires.  The time
+ * admitted requests spend queued is also recorded.
+ */
+public class AdmissionController {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(AdmissionController.class);
+
+    /**
+     * Event bus message header carrying the identifier of the process which
+     * enqueued the request and the {@link System#nanoTime()} at which it
+     * did so, separated by a colon.  Headers are sent along with messages
+     * to remote nodes of a clustered event bus, where the time is not
+     * comparable, so the process identifier is used to ignore them.
+     */
+    public static final String ENQUEUED_HEADER = "omero.enqueued";
+
+    /** Identifier of this process in {@link #ENQUEUED_HEADER} */
+    private static final String PROCESS_ID = UUID.randomUUID().toString();
+
+    /** Default number of worker threads, matching the Vert.x default */
+    public static final int DEFAULT_MAX_CONCURRENCY = 20;
+
+    /** Name of the verticle whose requests are being controlled */
+    private final String name;
+
+    /** Maximum number of requests processed concurrently */
+    private final int maxConcurrency;
+
+    /** Maximum number of requests waiting for a worker thread */
+    private final int maxQueued;
+
+    /** Seconds after which rejected clients are asked to retry */
+    private final int retryAfter;
+
+    /** Number of requests admitted and not yet released */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** Number of requests admitted */
+    private final LongAdder admitted = new LongAdder();
+
+    /** Number of requests rejected */
+    private final LongAdder rejected = new LongAdder();
+
+    /** Number of requests whose queue time has been recorded */
+    private final LongAdder queueTimeCount = new LongAdder();
+
+    /** Total queue time in nanoseconds of all recorded requests */
+    private final LongAdder queueTimeTotal = new LongAdder();
+
+    /** Maximum queue time in nanoseconds of all recorded requests */
+    private final AtomicLong queueTimeMax = new AtomicLong();
+
+    /** Histogram of the queue time of recorded requests */
+    private final MetricsRegistry.Timer queueTimeHistogram;
+
+    /**
+     * Default constructor.
+     * @param name name of the verticle whose requests are being controlled.
+     * @param maxConcurrency maximum number of requests processed
+     * concurrently.
+     * @param maxQueued maximum number of requests waiting for a worker
+     * thread.
+     * @param retryAfter seconds after which rejected clients are asked to
+     * retry.
+     */
+    public AdmissionController(
+            String name, int maxConcurrency, int maxQueued, int retryAfter) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException(
+                    "max-concurrency must be at least 1");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException(
+                    "max-queued must not be negative");
+        }
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.retryAfter = retryAfter;
+        queueTimeHistogram = MetricsRegistry.getDefault().timer(
+                "queue_seconds",
+                "Time requests spent queued on the event bus",
+                "verticle", name);
+    }
+
+    /**
+     * Creates an admission controller from configuration.
+     * @param name name of the verticle whose requests are being controlled.
+     * @param config configuration block for the verticle within the
+     * <code>admission-control</code> configuration block; may be
+     * <code>null</code> in which case requests are never rejected.
+     * @return A new admission controller.
+     */
+    public static AdmissionController fromConfig(
+            String name, JsonObject config) {
+        return fromConfig(name, config, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Creates an admission controller from configuration.
+     * @param name name of the verticle whose requests are being controlled.
+     * @param config configuration block for the verticle within the
+     * <code>admission-control</code> configuration block; may be
+     * <code>null</code> in which case requests are never rejected.
+     * @param defaultMaxConcurrency maximum number of requests processed
+     * concurrently if not configured.
+     * @return A new admission controller.
+     */
+    public static AdmissionController fromConfig(
+            String name, JsonObject config, int defaultMaxConcurrency) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        int maxConcurrency = config.getInteger(
+                "max-concurrency", defaultMaxConcurrency);
+        int maxQueued = config.getInteger("max-queued", Integer.MAX_VALUE);
+        int retryAfter = config.getInteger("retry-after", 1);
+        log.info("{} admission control max-concurrency: {} max-queued: {} " +
+                "retry-after: {}s", name, maxConcurrency, maxQueued,
+                retryAfter);
+        return new AdmissionController(
+                name, maxConcurrency, maxQueued, retryAfter);
+    }
+
+    /**
+     * Attempts to admit a request.  Each admitted request must be
+     * {@link #release() released} once it has completed.
+     * @return <code>true</code> if the request was admitted or
+     * <code>false</code> if it must be rejected.
+     */
+    public boolean tryAcquire() {
+        long limit = (long) maxConcurrency + maxQueued;
+        while (true) {
+            int current = outstanding.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (outstanding.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a request previously admitted by {@link #tryAcquire()}.
+     */
+    public void release() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Delivery options to use when sending an admitted request which
+     * record the time at which it was enqueued.
+     * @return See above.
+     */
+    public DeliveryOptions deliveryOptions() {
+        return new DeliveryOptions().addHeader(
+                ENQUEUED_HEADER, PROCESS_ID + ":" + System.nanoTime());
+    }
+
+    /**
+     * Records the time a request spent queued, to be called when its
+     * processing starts.  Messages without an enqueued header or which were
+     * enqueued by another process, such as a remote node of a clustered
+     * event bus, are ignored.
+     * @param message request message.
+     */
+    public void dequeued(Message<?> message) {
+        String enqueued = message.headers().get(ENQUEUED_HEADER);
+        String prefix = PROCESS_ID + ":";
+        if (enqueued == null || !enqueued.startsWith(prefix)) {
+            return;
+        }
+        long queueTime = System.nanoTime()
+                - Long.parseLong(enqueued.substring(prefix.length()));
+        queueTimeCount.increment();
+        queueTimeTotal.add(queueTime);
+        queueTimeMax.accumulateAndGet(queueTime, Math::max);
+        queueTimeHistogram.record(queueTime, TimeUnit.NANOSECONDS);
+        log.debug("{} request queued for {}ms", name,
+                TimeUnit.NANOSECONDS.toMillis(queueTime));
+    }
+
+    /**
+     * Name of the verticle whose requests are being controlled.
+     * @return See above.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Maximum number of requests processed concurrently; this is also the
+     * size of the verticle's dedicated worker pool.
+     * @return See above.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Maximum number of requests waiting for a worker thread.
+     * @return See above.
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Seconds after which rejected clients are asked to retry, suitable
+     * for use as the value of a <code>Retry-After</code> header.
+     * @return See above.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Number of requests admitted and not yet released.
+     * @return See above.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Number of requests admitted.
+     * @return See above.
+     */
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    /**
+     * Number of requests rejected.
+     * @return See above.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Number of requests whose queue time has been recorded.
+     * @return See above.
+     */
+    public long getQueueTimeCount() {
+        return queueTimeCount.sum();
+    }
+
+    /**
+     * Total queue time in nanoseconds of all recorded requests.
+     * @return See above.
+     */
+    public long getQueueTimeTotal() {
+        return queueTimeTotal.sum();
+    }
+
+    /**
+     * Maximum queue time in nanoseconds of all recorded requests.
+     * @return See above.
+     */
+    public long getQueueTimeMax() {
+        return queueTimeMax.get();
+    }
+
+    @Override
+    public String toString() {
+        long count = getQueueTimeCount();
+        return String.format(
+                "AdmissionController[name=%s outstanding=%d admitted=%d " +
+                "rejected=%d queueTimeMean=%.3fms queueTimeMax=%.3fms]",
+                name, getOutstanding(), getAdmitted(), getRejected(),
+                count == 0? 0.0 : getQueueTimeTotal() / 1e6 / count,
+                getQueueTimeMax() / 1e6);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.List;
+import java.util.Map;
+
+import org.perf4j.StopWatch;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import omero.RType;
+import omero.api.Callback_IPixels_retrievePixDescription;
+import omero.api.Callback_IPixels_retrieveRndSettings;
+import omero.api.Callback_IQuery_findByQuery;
+import omero.api.Callback_IQuery_projection;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+import omero.model.IObject;
+import omero.model.Pixels;
+import omero.model.RenderingDef;
+import omero.sys.Parameters;
+
+/**
+ * Adapts OMERO server calls made with Ice asynchronous method invocation
+ * (AMI) to Vert.x {@link Future}s.  No thread is held while a call is
+ * outstanding.  Ice delivers responses on its own client thread pool so
+ * each future is completed on the Vert.x {@link Context} supplied by the
+ * caller; handlers are free to block, if that context allows it, without
+ * starving Ice of threads.
+ */
+public class IceFutures {
+
+    private IceFutures() {}
+
+    /**
+     * Asynchronous {@link IQueryPrx#projection(String, Parameters, Map)}.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service.
+     * @param query HQL query.
+     * @param params query parameters.
+     * @param ctx Ice call context.
+     * @return Future completed with the projected rows.
+     */
+    public static Future<List<List<RType>>> projection(
+            Context context, IQueryPrx iQuery, String query,
+            Parameters params, Map<String, String> ctx) {
+        Future<List<List<RType>>> future = Future.future();
+        StopWatch t0 = new MetricsStopWatch("IQuery.projection");
+        try {
+            iQuery.begin_projection(query, params, ctx,
+                    new Callback_IQuery_projection() {
+                        @Override
+                        public void response(List<List<RType>> rows) {
+                            complete(context, future, t0, rows);
+                        }
+
+                        @Override
+                        public void exception(Ice.LocalException e) {
+                            fail(context, future, t0, e);
+                        }
+
+                        @Override
+                        public void exception(Ice.UserException e) {
+                            fail(context, future, t0, e);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            fail(context, future, t0, e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link IQueryPrx#findByQuery(String, Parameters, Map)}.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service.
+     * @param query HQL query.
+     * @param params query parameters.
+     * @param ctx Ice call context.
+     * @return Future completed with the object found or <code>null</code>.
+     */
+    public static Future<IObject> findByQuery(
+            Context context, IQueryPrx iQuery, String query,
+            Parameters params, Map<String, String> ctx) {
+        Future<IObject> future = Future.future();
+        StopWatch t0 = new MetricsStopWatch("IQuery.findByQuery");
+        try {
+            iQuery.begin_findByQuery(query, params, ctx,
+                    new Callback_IQuery_findByQuery() {
+                        @Override
+                        public void response(IObject object) {
+                            complete(context, future, t0, object);
+                        }
+
+                        @Override
+                        public void exception(Ice.LocalException e) {
+                            fail(context, future, t0, e);
+                        }
+
+                        @Override
+                        public void exception(Ice.UserException e) {
+                            fail(context, future, t0, e);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            fail(context, future, t0, e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link IPixelsPrx#retrievePixDescription(long, Map)}.
+     * @param context Vert.x context to complete the future on.
+     * @param iPixels OMERO pixels service.
+     * @param pixelsId {@link Pixels} identifier.
+     * @param ctx Ice call context.
+     * @return Future completed with the {@link Pixels} description.
+     */
+    public static Future<Pixels> retrievePixDescription(
+            Context context, IPixelsPrx iPixels, long pixelsId,
+            Map<String, String> ctx) {
+        Future<Pixels> future = Future.future();
+        StopWatch t0 = new MetricsStopWatch(
+                "PixelsService.retrievePixDescription");
+        try {
+            iPixels.begin_retrievePixDescription(pixelsId, ctx,
+                    new Callback_IPixels_retrievePixDescription() {
+                        @Override
+                        public void response(Pixels pixels) {
+                            complete(context, future, t0, pixels);
+                        }
+
+                        @Override
+                        public void exception(Ice.LocalException e) {
+                            fail(context, future, t0, e);
+                        }
+
+                        @Override
+                        public void exception(Ice.UserException e) {
+                            fail(context, future, t0, e);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            fail(context, future, t0, e);
+        }
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link IPixelsPrx#retrieveRndSettings(long, Map)}.
+     * @param context Vert.x context to complete the future on.
+     * @param iPixels OMERO pixels service.
+     * @param pixelsId {@link Pixels} identifier.
+     * @param ctx Ice call context.
+     * @return Future completed with the rendering settings.
+     */
+    public static Future<RenderingDef> retrieveRndSettings(
+            Context context, IPixelsPrx iPixels, long pixelsId,
+            Map<String, String> ctx) {
+        Future<RenderingDef> future = Future.future();
+        StopWatch t0 = new MetricsStopWatch(
+                "PixelsService.retrieveRndSettings");
+        try {
+            iPixels.begin_retrieveRndSettings(pixelsId, ctx,
+                    new Callback_IPixels_retrieveRndSettings() {
+                        @Override
+                        public void response(RenderingDef renderingDef) {
+                            complete(context, future, t0, renderingDef);
+                        }
+
+                        @Override
+                        public void exception(Ice.LocalException e) {
+                            fail(context, future, t0, e);
+                        }
+
+                        @Override
+                        public void exception(Ice.UserException e) {
+                            fail(context, future, t0, e);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            fail(context, future, t0, e);
+        }
+        return future;
+    }
+
+    /**
+     * Completes a future on a Vert.x context.
+     * @param context Vert.x context to complete the future on.
+     * @param future future to complete.
+     * @param t0 stop watch timing the call.
+     * @param result result of the call.
+     */
+    private static <T> void complete(
+            Context context, Future<T> future, StopWatch t0, T result) {
+        t0.stop();
+        context.runOnContext(v -> future.complete(result));
+    }
+
+    /**
+     * Fails a future on a Vert.x context.
+     * @param context Vert.x context to fail the future on.
+     * @param future future to fail.
+     * @param t0 stop watch timing the call.
+     * @param cause exception raised by the call.
+     */
+    private static <T> void fail(
+            Context context, Future<T> future, StopWatch t0,
+            Throwable cause) {
+        t0.stop();
+        context.runOnContext(v -> future.fail(cause));
+    }
+}
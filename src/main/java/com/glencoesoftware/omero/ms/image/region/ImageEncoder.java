@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Optional;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.slf4j.LoggerFactory;
+
+import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
+
+import io.vertx.core.json.JsonObject;
+
+import ome.util.ImageUtil;
+
+/**
+ * Encodes rendered images as JPEG, PNG or TIFF.  Image writer providers
+ * are looked up, and the TIFF provider registered, once when the encoder
+ * is created rather than on every request and each thread keeps its own
+ * {@link ImageWriter} for each format which is reset, rather than
+ * discarded, after use.  Encoded output is buffered in memory rather than
+ * through the disk cache {@link ImageIO#createImageOutputStream(Object)}
+ * may use.  Unlike the OMERO compression service, whose quality is shared
+ * by all of its callers, the JPEG quality is chosen per call.  JPEGs may
+ * instead be encoded natively by libjpeg-turbo, directly from the packed
+ * integer pixels of a rendered image region; see {@link TurboJpegEncoder}.
+ */
+public class ImageEncoder {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ImageEncoder.class);
+
+    /** Default JPEG quality, matching the OMERO compression service */
+    public static final float DEFAULT_JPEG_QUALITY = 0.85f;
+
+    /** Use libjpeg-turbo for JPEGs if available, the Java encoder if not */
+    public static final String JPEG_BACKEND_AUTO = "auto";
+
+    /** Always use libjpeg-turbo for JPEGs */
+    public static final String JPEG_BACKEND_TURBOJPEG = "turbojpeg";
+
+    /** Always use the Java encoder for JPEGs */
+    public static final String JPEG_BACKEND_JAVA = "java";
+
+    /** Default JPEG quality */
+    private final float jpegQuality;
+
+    /** Whether or not JPEGs are encoded progressively */
+    private final boolean jpegProgressive;
+
+    /** Whether or not JPEG Huffman tables are optimized for each image */
+    private final boolean jpegOptimizeHuffman;
+
+    /** Encoder of rendered image regions and masks as PNG */
+    private final PngEncoder png;
+
+    /** TIFF compression type or <code>null</code> for uncompressed */
+    private final String tiffCompression;
+
+    /** JPEG writer of each thread */
+    private final ThreadLocal<ImageWriter> jpegWriters;
+
+    /** PNG writer of each thread */
+    private final ThreadLocal<ImageWriter> pngWriters;
+
+    /** TIFF writer of each thread */
+    private final ThreadLocal<ImageWriter> tiffWriters;
+
+    /**
+     * Native JPEG encoder or <code>null</code> if JPEGs are encoded by the
+     * Java encoder
+     */
+    private final TurboJpegEncoder turboJpeg;
+
+    /**
+     * Creates an encoder with the default settings.
+     */
+    public ImageEncoder() {
+        this(DEFAULT_JPEG_QUALITY, false, false, new PngEncoder(), null,
+                JPEG_BACKEND_AUTO);
+    }
+
+    /**
+     * Default constructor.
+     * @param jpegQuality default JPEG quality, from 0 to 1.
+     * @param jpegProgressive whether or not JPEGs are encoded
+     * progressively.
+     * @param jpegOptimizeHuffman whether or not JPEG Huffman tables are
+     * optimized for each image.
+     * @param png encoder of rendered image regions and masks as PNG.
+     * @param tiffCompression TIFF compression type, for example
+     * <code>Deflate</code>, <code>LZW</code> or <code>PackBits</code>, or
+     * <code>null</code> for uncompressed.
+     * @param jpegBackend {@link #JPEG_BACKEND_AUTO},
+     * {@link #JPEG_BACKEND_TURBOJPEG} or {@link #JPEG_BACKEND_JAVA}.
+     */
+    public ImageEncoder(
+            float jpegQuality, boolean jpegProgressive,
+            boolean jpegOptimizeHuffman, PngEncoder png,
+            String tiffCompression, String jpegBackend) {
+        checkQuality("jpeg.quality", jpegQuality);
+        this.jpegQuality = jpegQuality;
+        this.jpegProgressive = jpegProgressive;
+        this.jpegOptimizeHuffman = jpegOptimizeHuffman;
+        this.png = png;
+        this.tiffCompression = tiffCompression;
+
+        IIORegistry registry = IIORegistry.getDefaultInstance();
+        ImageWriterSpi tiffSpi =
+                registry.getServiceProviderByClass(TIFFImageWriterSpi.class);
+        if (tiffSpi == null) {
+            tiffSpi = new TIFFImageWriterSpi();
+            registry.registerServiceProvider(tiffSpi, ImageWriterSpi.class);
+        }
+        ImageWriterSpi jpegSpi = lookupProvider("jpeg");
+        ImageWriterSpi pngSpi = lookupProvider("png");
+        jpegWriters = threadLocalWriter(jpegSpi);
+        pngWriters = threadLocalWriter(pngSpi);
+        tiffWriters = threadLocalWriter(tiffSpi);
+
+        // Reject unsupported settings up front rather than on first use
+        if (tiffCompression != null) {
+            ImageWriteParam param = tiffWriters.get().getDefaultWriteParam();
+            String[] types = param.canWriteCompressed()?
+                    param.getCompressionTypes() : new String[0];
+            if (!Arrays.asList(types).contains(tiffCompression)) {
+                throw new IllegalArgumentException(
+                        "Unsupported tiff.compression: " + tiffCompression
+                        + "; supported: " + Arrays.toString(types));
+            }
+        }
+        turboJpeg = loadTurboJpeg(jpegBackend);
+    }
+
+    /**
+     * Creates an encoder from configuration.
+     * @param config <code>encoder</code> configuration block.  May be
+     * <code>null</code> in which case defaults are used.
+     * @return See above.
+     */
+    public static ImageEncoder fromConfig(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        JsonObject jpeg = Optional.ofNullable(config.getJsonObject("jpeg"))
+                .orElse(new JsonObject());
+        JsonObject png = Optional.ofNullable(config.getJsonObject("png"))
+                .orElse(new JsonObject());
+        JsonObject tiff = Optional.ofNullable(config.getJsonObject("tiff"))
+                .orElse(new JsonObject());
+        float jpegQuality =
+                jpeg.getFloat("quality", DEFAULT_JPEG_QUALITY);
+        boolean jpegProgressive = jpeg.getBoolean("progressive", false);
+        boolean jpegOptimizeHuffman =
+                jpeg.getBoolean("optimize-huffman", false);
+        String tiffCompression = tiff.getString("compression");
+        String jpegBackend = jpeg.getString("backend", JPEG_BACKEND_AUTO);
+        log.info("Encoder jpeg backend: {} quality: {} progressive: {} " +
+                "optimize-huffman: {} tiff compression: {}", jpegBackend,
+                jpegQuality, jpegProgressive, jpegOptimizeHuffman,
+                tiffCompression);
+        return new ImageEncoder(
+                jpegQuality, jpegProgressive, jpegOptimizeHuffman,
+                PngEncoder.fromConfig(png), tiffCompression, jpegBackend);
+    }
+
+    /**
+     * Whether or not a format can be encoded.
+     * @param format <code>jpeg</code>, <code>png</code> or
+     * <code>tif</code>.
+     * @return See above.
+     */
+    public boolean canEncode(String format) {
+        return writers(format) != null;
+    }
+
+    /**
+     * Encodes an image.
+     * @param image image to encode.
+     * @param format <code>jpeg</code>, <code>png</code> or
+     * <code>tif</code>.
+     * @param quality JPEG quality, from 0 to 1, or <code>null</code> for
+     * the configured default; ignored for other formats.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error encoding the image.
+     * @throws IllegalArgumentException If the format is unknown.
+     */
+    public void encode(
+            RenderedImage image, String format, Float quality,
+            OutputStream output) throws IOException {
+        ThreadLocal<ImageWriter> writers = writers(format);
+        if (writers == null) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        ImageWriter writer = writers.get();
+        ImageWriteParam param = writeParam(writer, format, quality);
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            // Release the output stream and any per image state so that
+            // the writer can be reused by this thread
+            writer.reset();
+        }
+    }
+
+    /**
+     * Encodes a rendered image region.  PNGs, and JPEGs when libjpeg-turbo
+     * is available, are encoded directly from the packed pixels; TIFFs are
+     * encoded from a {@link java.awt.image.BufferedImage} wrapping them.
+     * @param pixels packed <code>0x00RRGGBB</code> pixels, row by row.
+     * @param width width of the image region.
+     * @param height height of the image region.
+     * @param format <code>jpeg</code>, <code>png</code> or
+     * <code>tif</code>.
+     * @param quality JPEG quality, from 0 to 1, or <code>null</code> for
+     * the configured default; ignored for other formats.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error encoding the image.
+     * @throws IllegalArgumentException If the format is unknown.
+     */
+    public void encode(
+            int[] pixels, int width, int height, String format,
+            Float quality, OutputStream output) throws IOException {
+        if (turboJpeg != null && "jpeg".equals(format)) {
+            turboJpeg.encode(
+                    pixels, width, height,
+                    quality != null? quality : jpegQuality,
+                    jpegProgressive, output);
+            return;
+        }
+        if ("png".equals(format)) {
+            png.encodeRgb(pixels, width, height, output);
+            return;
+        }
+        encode(ImageUtil.createBufferedImage(pixels, width, height),
+                format, quality, output);
+    }
+
+    /**
+     * Encodes a palette indexed image, such as a shape mask, as PNG.
+     * @param indexes palette indexes, row by row, with each row starting
+     * on a byte boundary; for bit depths below 8 multiple indexes are
+     * packed into each byte, most significant bits first.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param bitDepth bits per index; 1, 2, 4 or 8.
+     * @param colorModel palette, including transparency.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error encoding the image.
+     */
+    public void encodePng(
+            byte[] indexes, int width, int height, int bitDepth,
+            IndexColorModel colorModel, OutputStream output)
+                    throws IOException {
+        png.encodeIndexed(
+                indexes, width, height, bitDepth, colorModel, output);
+    }
+
+    /**
+     * Releases any threads used for parallel encoding.
+     */
+    public void shutdown() {
+        png.shutdown();
+    }
+
+    /**
+     * Whether or not JPEGs are encoded by libjpeg-turbo.
+     * @return See above.
+     */
+    public boolean isTurboJpeg() {
+        return turboJpeg != null;
+    }
+
+    /**
+     * Loads the native JPEG encoder for a backend.
+     * @param backend {@link #JPEG_BACKEND_AUTO},
+     * {@link #JPEG_BACKEND_TURBOJPEG} or {@link #JPEG_BACKEND_JAVA}.
+     * @return See above or <code>null</code> if JPEGs are to be encoded by
+     * the Java encoder.
+     * @throws IllegalArgumentException If the backend is unknown or
+     * libjpeg-turbo is required but not available.
+     */
+    private TurboJpegEncoder loadTurboJpeg(String backend) {
+        if (JPEG_BACKEND_JAVA.equals(backend)) {
+            return null;
+        }
+        if (!JPEG_BACKEND_AUTO.equals(backend)
+                && !JPEG_BACKEND_TURBOJPEG.equals(backend)) {
+            throw new IllegalArgumentException(
+                    "Unknown jpeg.backend: " + backend);
+        }
+        TurboJpegEncoder encoder = TurboJpegEncoder.load();
+        if (encoder == null) {
+            if (JPEG_BACKEND_TURBOJPEG.equals(backend)) {
+                throw new IllegalArgumentException(
+                        "jpeg.backend " + backend + " is not available");
+            }
+            log.info("Encoding JPEGs with the Java encoder");
+            return null;
+        }
+        if (jpegProgressive && !encoder.canWriteProgressive()) {
+            log.warn("libjpeg-turbo does not support progressive " +
+                    "encoding; encoding JPEGs with the Java encoder");
+            return null;
+        }
+        if (jpegOptimizeHuffman) {
+            log.warn("jpeg.optimize-huffman is not supported by " +
+                    "libjpeg-turbo and is ignored");
+        }
+        return encoder;
+    }
+
+    /**
+     * Builds the write parameters for an image.
+     * @param writer writer which will encode the image.
+     * @param format <code>jpeg</code>, <code>png</code> or
+     * <code>tif</code>.
+     * @param quality requested JPEG quality or <code>null</code>.
+     * @return See above.
+     */
+    private ImageWriteParam writeParam(
+            ImageWriter writer, String format, Float quality) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.equals("jpeg")) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(
+                    quality != null? quality : jpegQuality);
+            if (jpegProgressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            if (jpegOptimizeHuffman && param instanceof JPEGImageWriteParam) {
+                ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+            }
+        } else if (format.equals("tif") && tiffCompression != null) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(tiffCompression);
+        }
+        return param;
+    }
+
+    /**
+     * Per thread writers for a format.
+     * @param format <code>jpeg</code>, <code>png</code> or
+     * <code>tif</code>.
+     * @return See above or <code>null</code> if the format is unknown.
+     */
+    private ThreadLocal<ImageWriter> writers(String format) {
+        if ("jpeg".equals(format)) {
+            return jpegWriters;
+        }
+        if ("png".equals(format)) {
+            return pngWriters;
+        }
+        if ("tif".equals(format)) {
+            return tiffWriters;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the provider of the first image writer for a format.
+     * @param formatName informal format name.
+     * @return See above.
+     */
+    private static ImageWriterSpi lookupProvider(String formatName) {
+        Iterator<ImageWriter> writers =
+                ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            throw new IllegalStateException(
+                    "No image writer available for " + formatName);
+        }
+        return writers.next().getOriginatingProvider();
+    }
+
+    /**
+     * Creates per thread writers from a provider.
+     * @param spi provider of the writers.
+     * @return See above.
+     */
+    private static ThreadLocal<ImageWriter> threadLocalWriter(
+            ImageWriterSpi spi) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return spi.createWriterInstance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void checkQuality(String name, float quality) {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException(
+                    name + " must be between 0 and 1");
+        }
+    }
+}
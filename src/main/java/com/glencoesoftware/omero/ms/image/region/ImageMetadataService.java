@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.perf4j.StopWatch;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+import omero.model.Pixels;
+import omero.model.RenderingDef;
+import omero.sys.ParametersI;
+import omero.util.IceMapper;
+
+/**
+ * Retrieves and caches the metadata required to render an {@link Image};
+ * the {@link Pixels} identifier, Bio-Formats series, {@link Pixels}
+ * description and {@link RenderingDef}.  Entries are scoped to the OMERO
+ * session which retrieved them and are validated against the update time
+ * of the rendering settings on every lookup.  The validating query also
+ * acts as the permissions check for the {@link Image}.  A handler may be
+ * notified when a newer rendering settings update time is seen for an
+ * {@link Image} so that anything rendered with the previous settings can
+ * be invalidated.  Metadata may be
+ * retrieved either synchronously or, so that no thread is held while
+ * waiting on the server, asynchronously.
+ */
+public class ImageMetadataService {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ImageMetadataService.class);
+
+    /**
+     * Query for the {@link Pixels} identifier, Bio-Formats series and last
+     * update time of the rendering settings of an {@link Image}
+     */
+    private static final String PIXELS_ID_AND_SERIES_QUERY =
+            "SELECT p.id, i.series, max(e.time) FROM Pixels as p " +
+            "JOIN p.image as i " +
+            "LEFT OUTER JOIN p.settings as r " +
+            "LEFT OUTER JOIN r.details.updateEvent as e " +
+            "WHERE i.id = :id " +
+            "GROUP BY p.id, i.series";
+
+    /** Maximum number of entries in the cache */
+    private final int maxEntries;
+
+    /** Time in milliseconds after which an entry expires */
+    private final long timeToLive;
+
+    /** Cached metadata keyed by OMERO session key and {@link Image} id */
+    private final Map<String, ImageMetadata> cache;
+
+    /**
+     * Latest rendering settings update time seen keyed by {@link Image} id,
+     * regardless of OMERO session; guarded by <code>cache</code>
+     */
+    private final Map<Long, Long> renderingDefUpdateTimes;
+
+    /**
+     * Notified with the {@link Image} id when a newer rendering settings
+     * update time is seen for it
+     */
+    private volatile Handler<Long> renderingDefChangedHandler;
+
+    /**
+     * Default constructor.
+     * @param maxEntries maximum number of entries in the cache.
+     * @param timeToLive time in milliseconds after which an entry expires.
+     */
+    public ImageMetadataService(int maxEntries, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        cache = new LinkedHashMap<String, ImageMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, ImageMetadata> eldest) {
+                return size() > ImageMetadataService.this.maxEntries;
+            }
+        };
+        renderingDefUpdateTimes =
+                new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, Long> eldest) {
+                return size() > ImageMetadataService.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the handler notified with the {@link Image} id when a newer
+     * rendering settings update time than previously seen is retrieved for
+     * it, by any OMERO session.  The handler is not called while holding
+     * any lock.
+     * @param handler handler to notify or <code>null</code>.
+     */
+    public void setRenderingDefChangedHandler(Handler<Long> handler) {
+        renderingDefChangedHandler = handler;
+    }
+
+    /**
+     * Creates a metadata service from configuration.
+     * @param config <code>image-metadata-cache</code> configuration block.
+     * May be <code>null</code> in which case defaults are used.
+     * @return See above.
+     */
+    public static ImageMetadataService fromConfig(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        int maxEntries = config.getInteger("max-entries", 1000);
+        long timeToLive = config.getLong("time-to-live", 300L) * 1000;
+        return new ImageMetadataService(maxEntries, timeToLive);
+    }
+
+    /**
+     * Retrieves the metadata for an {@link Image}, reusing previously
+     * retrieved metadata if it is still valid.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier to query for.
+     * @return See above or <code>null</code> if the {@link Image} does not
+     * exist or the user does not have permissions to access it.
+     * @throws ServerError If there was any sort of error retrieving the
+     * metadata.
+     */
+    public ImageMetadata getImageMetadata(
+            IQueryPrx iQuery, String omeroSessionKey, long imageId)
+                    throws ServerError {
+        return toImageMetadata(
+                omeroSessionKey, imageId,
+                getPixelsIdAndSeries(iQuery, imageId));
+    }
+
+    /**
+     * Asynchronously retrieves the metadata for an {@link Image}, reusing
+     * previously retrieved metadata if it is still valid.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier to query for.
+     * @return Future completed with the metadata or <code>null</code> if
+     * the {@link Image} does not exist or the user does not have
+     * permissions to access it.
+     */
+    public Future<ImageMetadata> getImageMetadataAsync(
+            Context context, IQueryPrx iQuery, String omeroSessionKey,
+            long imageId) {
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        return IceFutures.projection(
+                context, iQuery, PIXELS_ID_AND_SERIES_QUERY, params,
+                allGroupsContext()
+            ).map(data -> toImageMetadata(
+                    omeroSessionKey, imageId,
+                    data.size() < 1? null : data.get(0)));
+    }
+
+    /**
+     * Builds the metadata for an {@link Image} from the results of
+     * {@link #PIXELS_ID_AND_SERIES_QUERY}, reusing previously retrieved
+     * metadata if it is still valid.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier queried for.
+     * @param row first row of the query results or <code>null</code> if
+     * there were none.
+     * @return See above or <code>null</code> if <code>row</code> is
+     * <code>null</code>.
+     */
+    private ImageMetadata toImageMetadata(
+            String omeroSessionKey, long imageId, List<RType> row) {
+        if (row == null) {
+            return cache(omeroSessionKey, imageId, null);
+        }
+        long pixelsId = ((omero.RLong) row.get(0)).getValue();
+        int series = ((omero.RInt) row.get(1)).getValue();
+        omero.RTime updateTime = (omero.RTime) row.get(2);
+        return cache(omeroSessionKey, imageId, new IceImageMetadata(
+                pixelsId, series,
+                updateTime == null? 0L : updateTime.getValue()));
+    }
+
+    /**
+     * Caches newly retrieved metadata for an {@link Image} unless
+     * previously retrieved metadata is still valid, notifying the rendering
+     * settings changed handler if the metadata has a newer rendering
+     * settings update time than previously seen for the {@link Image}.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier queried for.
+     * @param imageMetadata newly retrieved metadata or <code>null</code> if
+     * the {@link Image} does not exist or the user does not have
+     * permissions to access it.
+     * @return Metadata to use, which is <code>null</code> if
+     * <code>imageMetadata</code> is <code>null</code>.
+     */
+    protected ImageMetadata cache(
+            String omeroSessionKey, long imageId,
+            ImageMetadata imageMetadata) {
+        String key = omeroSessionKey + ":" + imageId;
+        if (imageMetadata == null) {
+            synchronized (cache) {
+                cache.remove(key);
+            }
+            return null;
+        }
+        ImageMetadata result = imageMetadata;
+        boolean changed;
+        synchronized (cache) {
+            long updateTime = imageMetadata.getRenderingDefUpdateTime();
+            Long seen = renderingDefUpdateTimes.get(imageId);
+            changed = seen != null && updateTime > seen;
+            if (seen == null || updateTime > seen) {
+                renderingDefUpdateTimes.put(imageId, updateTime);
+            }
+            ImageMetadata cached = cache.get(key);
+            if (cached != null && cached.isValid(imageMetadata)) {
+                log.debug("Using cached metadata for Image:{}", imageId);
+                result = cached;
+            } else {
+                cache.put(key, imageMetadata);
+            }
+        }
+        Handler<Long> handler = renderingDefChangedHandler;
+        if (changed && handler != null) {
+            log.debug("Rendering settings of Image:{} changed", imageId);
+            handler.handle(imageId);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves a single {@link Pixels} identifier, Bio-Formats series and
+     * the last update time of the {@link Pixels} rendering settings from
+     * the server for a given {@link Image} or <code>null</code> if no such
+     * identifier exists or the user does not have permissions to access it.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param imageId {@link Image} identifier to query for.
+     * @return See above.
+     * @throws ServerError If there was any sort of error retrieving the pixels
+     * id.
+     */
+    private List<RType> getPixelsIdAndSeries(IQueryPrx iQuery, Long imageId)
+            throws ServerError {
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        StopWatch t0 = new MetricsStopWatch("getPixelsIdAndSeries");
+        try {
+            List<List<RType>> data = iQuery.projection(
+                    PIXELS_ID_AND_SERIES_QUERY, params, allGroupsContext());
+            if (data.size() < 1) {
+                return null;
+            }
+            return data.get(0);  // The first row
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * Ice call context which allows access to objects in all groups.
+     * @return See above.
+     */
+    private static Map<String, String> allGroupsContext() {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        return ctx;
+    }
+
+    /**
+     * Metadata required to render a single {@link Image}.  New server side
+     * {@link ome.model.core.Pixels} and
+     * {@link ome.model.display.RenderingDef} objects are created from it
+     * for each request as the renderer modifies them.
+     */
+    public abstract class ImageMetadata {
+
+        /** Time in milliseconds since the epoch the entry was created */
+        private final long created = System.currentTimeMillis();
+
+        /** {@link Pixels} identifier */
+        private final long pixelsId;
+
+        /** Bio-Formats series */
+        private final int series;
+
+        /**
+         * Update time of the most recently updated rendering settings in
+         * milliseconds since the epoch or <code>0</code> if there are none
+         */
+        private final long renderingDefUpdateTime;
+
+        protected ImageMetadata(
+                long pixelsId, int series, long renderingDefUpdateTime) {
+            this.pixelsId = pixelsId;
+            this.series = series;
+            this.renderingDefUpdateTime = renderingDefUpdateTime;
+        }
+
+        /**
+         * Whether or not this entry can still be used in place of newly
+         * retrieved metadata.
+         * @param current newly retrieved metadata.
+         * @return See above.
+         */
+        boolean isValid(ImageMetadata current) {
+            return pixelsId == current.pixelsId
+                    && renderingDefUpdateTime == current.renderingDefUpdateTime
+                    && System.currentTimeMillis() - created <= timeToLive;
+        }
+
+        /** @return {@link Pixels} identifier. */
+        public long getPixelsId() {
+            return pixelsId;
+        }
+
+        /** @return Bio-Formats series. */
+        public int getSeries() {
+            return series;
+        }
+
+        /**
+         * @return Update time of the most recently updated rendering
+         * settings in milliseconds since the epoch or <code>0</code> if there
+         * are none.
+         */
+        public long getRenderingDefUpdateTime() {
+            return renderingDefUpdateTime;
+        }
+
+        /**
+         * Identifier of the rendering settings used to render the
+         * {@link Image} for the OMERO session; those of the session user,
+         * falling back to those of the {@link Pixels} owner.  Renders made
+         * with the settings of different users must not be shared.
+         * @return See above, <code>0</code> if there are no rendering
+         * settings or <code>null</code> if they have not yet been retrieved.
+         */
+        public abstract Long getRenderingDefId();
+
+        /**
+         * Creates a new server side {@link ome.model.core.Pixels}, retrieving
+         * the {@link Pixels} description if it has not already been
+         * retrieved.  A new object is created on every call as the renderer
+         * modifies it.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return See above.
+         * @throws ServerError If there was any sort of error retrieving the
+         * {@link Pixels} description.
+         */
+        public abstract ome.model.core.Pixels newPixels(IPixelsPrx iPixels)
+                throws ServerError;
+
+        /**
+         * Creates new server side {@link ome.model.display.RenderingDef},
+         * retrieving the rendering settings if they have not already been
+         * retrieved.  A new object is created on every call as the renderer
+         * modifies it.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return See above.
+         * @throws ServerError If there was any sort of error retrieving the
+         * rendering settings.
+         */
+        public abstract ome.model.display.RenderingDef newRenderingDef(
+                IPixelsPrx iPixels) throws ServerError;
+
+        /**
+         * Retrieves the {@link Pixels} description and rendering settings if
+         * they have not already been retrieved.  Once complete
+         * {@link #newPixels(IPixelsPrx)},
+         * {@link #newRenderingDef(IPixelsPrx)} and
+         * {@link #getRenderingDefId()} will not block.
+         * @param context Vert.x context to complete the future on.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return Future completed once both have been retrieved.
+         */
+        public abstract Future<Void> prefetch(
+                Context context, IPixelsPrx iPixels);
+    }
+
+    /**
+     * Metadata required to render a single {@link Image} retrieved through
+     * the OMERO server.  The {@link Pixels} description and
+     * {@link RenderingDef} are retrieved on first use.  They are client side
+     * Ice objects which must be mapped to new server side objects by each
+     * request as the renderer modifies them.
+     */
+    public class IceImageMetadata extends ImageMetadata {
+
+        /** {@link Pixels} description */
+        private Pixels pixels;
+
+        /** Rendering settings */
+        private RenderingDef renderingDef;
+
+        /**
+         * Whether or not the rendering settings have been retrieved; they
+         * may legitimately be <code>null</code>
+         */
+        private boolean renderingDefRetrieved;
+
+        IceImageMetadata(
+                long pixelsId, int series, long renderingDefUpdateTime) {
+            super(pixelsId, series, renderingDefUpdateTime);
+        }
+
+        @Override
+        public synchronized Long getRenderingDefId() {
+            if (!renderingDefRetrieved) {
+                return null;
+            }
+            if (renderingDef == null || renderingDef.getId() == null) {
+                return 0L;
+            }
+            return renderingDef.getId().getValue();
+        }
+
+        /**
+         * Retrieves the {@link Pixels} description, from the server if it
+         * has not already been retrieved.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return See above.
+         * @throws ServerError If there was any sort of error retrieving the
+         * {@link Pixels} description.
+         */
+        public synchronized Pixels getPixels(IPixelsPrx iPixels)
+                throws ServerError {
+            if (pixels == null) {
+                StopWatch t0 = new MetricsStopWatch(
+                        "PixelsService.retrievePixDescription");
+                try {
+                    pixels = iPixels.retrievePixDescription(
+                            getPixelsId(), allGroupsContext());
+                } finally {
+                    t0.stop();
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * Retrieves the rendering settings, from the server if they have not
+         * already been retrieved.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return See above.
+         * @throws ServerError If there was any sort of error retrieving the
+         * rendering settings.
+         */
+        public synchronized RenderingDef getRenderingDef(IPixelsPrx iPixels)
+                throws ServerError {
+            if (!renderingDefRetrieved) {
+                StopWatch t0 = new MetricsStopWatch(
+                        "PixelsService.retrieveRndSettings");
+                try {
+                    renderingDef = iPixels.retrieveRndSettings(
+                            getPixelsId(), allGroupsContext());
+                    renderingDefRetrieved = true;
+                } finally {
+                    t0.stop();
+                }
+            }
+            return renderingDef;
+        }
+
+        @Override
+        public ome.model.core.Pixels newPixels(IPixelsPrx iPixels)
+                throws ServerError {
+            return (ome.model.core.Pixels)
+                    new IceMapper().reverse(getPixels(iPixels));
+        }
+
+        @Override
+        public ome.model.display.RenderingDef newRenderingDef(
+                IPixelsPrx iPixels) throws ServerError {
+            return (ome.model.display.RenderingDef)
+                    new IceMapper().reverse(getRenderingDef(iPixels));
+        }
+
+        /**
+         * Asynchronously retrieves the {@link Pixels} description and
+         * rendering settings from the server, concurrently, if they have
+         * not already been retrieved.  Once complete
+         * {@link #getPixels(IPixelsPrx)} and
+         * {@link #getRenderingDef(IPixelsPrx)} will not block.
+         * @param context Vert.x context to complete the future on.
+         * @param iPixels OMERO pixels service to use for metadata access.
+         * @return Future completed once both have been retrieved.
+         */
+        @Override
+        @SuppressWarnings("rawtypes")
+        public synchronized Future<Void> prefetch(
+                Context context, IPixelsPrx iPixels) {
+            List<Future> futures = new ArrayList<Future>();
+            if (pixels == null) {
+                futures.add(IceFutures.retrievePixDescription(
+                        context, iPixels, getPixelsId(), allGroupsContext()
+                    ).map(v -> {
+                        synchronized (this) {
+                            pixels = v;
+                        }
+                        return v;
+                    }));
+            }
+            if (!renderingDefRetrieved) {
+                futures.add(IceFutures.retrieveRndSettings(
+                        context, iPixels, getPixelsId(), allGroupsContext()
+                    ).map(v -> {
+                        synchronized (this) {
+                            renderingDef = v;
+                            renderingDefRetrieved = true;
+                        }
+                        return v;
+                    }));
+            }
+            if (futures.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            return CompositeFuture.all(futures).mapEmpty();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.glencoesoftware.omero.ms.core.OmeroRequestCtx;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Request context for rendering many image regions of a single
+ * {@link Image} with one set of rendering settings.  Each image region is
+ * described by its own {@link ImageRegionCtx} which differs from the others
+ * only in its <code>z</code>, <code>t</code>, <code>tile</code> and
+ * <code>region</code>.
+ */
+public class ImageRegionBatchCtx extends OmeroRequestCtx {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ImageRegionBatchCtx.class);
+
+    /** Parameters which may vary between the image regions of a batch */
+    private static final String[] REGION_PARAMS =
+            new String[] { "theZ", "theT", "tile", "region" };
+
+    /** Image Id */
+    public Long imageId;
+
+    /** Image regions to render, in request order */
+    public List<ImageRegionCtx> imageRegions;
+
+    /**
+     * Whether or not the request has been cancelled, for example because the
+     * client has disconnected.  Never serialized so only observed by
+     * consumers which receive this context by reference.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor for jackson to decode the object from string
+     */
+    ImageRegionBatchCtx() {};
+
+    /**
+     * Default constructor.
+     * @param params {@link io.vertx.core.http.HttpServerRequest} parameters
+     * containing the <code>imageId</code> and the rendering settings shared
+     * by all image regions.
+     * @param specs image regions to render, each an object with
+     * <code>theZ</code>, <code>theT</code> and optionally <code>tile</code>
+     * or <code>region</code> in the same format as the corresponding
+     * render image region parameters.
+     * @param omeroSessionKey OMERO session key.
+     * @throws IllegalArgumentException If the parameters or any of the image
+     * region specifications are invalid.
+     */
+    ImageRegionBatchCtx(
+            MultiMap params, JsonArray specs, String omeroSessionKey) {
+        this.omeroSessionKey = omeroSessionKey;
+        if (specs == null || specs.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one image region must be requested");
+        }
+        imageRegions = new ArrayList<ImageRegionCtx>(specs.size());
+        for (Object spec : specs) {
+            if (!(spec instanceof JsonObject)) {
+                throw new IllegalArgumentException(
+                        "Image region must be an object: " + spec);
+            }
+            MultiMap regionParams = MultiMap.caseInsensitiveMultiMap();
+            regionParams.addAll(params);
+            for (String name : REGION_PARAMS) {
+                regionParams.remove(name);
+                Object value = ((JsonObject) spec).getValue(name);
+                if (value != null) {
+                    regionParams.add(name, String.valueOf(value));
+                }
+            }
+            imageRegions.add(
+                    new ImageRegionCtx(regionParams, omeroSessionKey));
+        }
+        imageId = imageRegions.get(0).imageId;
+        log.debug("{}, image regions: {}", imageId, imageRegions.size());
+    }
+
+    /**
+     * Marks the request as cancelled.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Whether or not the request has been cancelled.
+     * @return See above.
+     */
+    @JsonIgnore
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
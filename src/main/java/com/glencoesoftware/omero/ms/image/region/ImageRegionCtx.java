@@ -25,10 +25,12 @@ import java.util.Optional;
 
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.glencoesoftware.omero.ms.core.OmeroRequestCtx;
 
 import io.vertx.core.MultiMap;
 import io.vertx.core.json.Json;
+import ome.model.core.Image;
 import omeis.providers.re.data.RegionDef;
 import omero.constants.projection.ProjectionType;
 
@@ -37,6 +39,21 @@ public class ImageRegionCtx extends OmeroRequestCtx {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ImageRegionCtx.class);
 
+    public static final String CACHE_KEY_FORMAT =
+            "%s:%d:%d:%d:%s";  // Class Name, Object ID, Rendering settings
+                               // ID, Rendering settings update time,
+                               // Canonical rendering parameters
+
+    public static final String SESSION_CACHE_KEY_FORMAT =
+            "%s:%d:%s:%s";  // Class Name, Object ID, OMERO session key,
+                            // Canonical rendering parameters
+
+    /** Uncompressed raw pixel data output format */
+    public static final String FORMAT_RAW = "raw";
+
+    /** Deflate compressed raw pixel data output format */
+    public static final String FORMAT_DEFLATE = "deflate";
+
     /** Image Id */
     public Long imageId;
 
@@ -46,6 +63,12 @@ public class ImageRegionCtx extends OmeroRequestCtx {
     /** t - index */
     public Integer t;
 
+    /**
+     * c - index of the channel whose raw pixel data is requested;
+     * <code>null</code> when a rendered image region is requested
+     */
+    public Integer channel;
+
     /**
      * Region descriptor (tile); only X, Y, and tile width and height are used
      * at this stage and represent the <b>tile</b> offset, respecting the
@@ -101,6 +124,13 @@ public class ImageRegionCtx extends OmeroRequestCtx {
     /** Whether or not to flip vertically */
     public boolean flipVertical;
 
+    /**
+     * Whether or not the request has been cancelled, for example because the
+     * client has disconnected.  Never serialized so only observed by
+     * consumers which receive this context by reference.
+     */
+    private volatile boolean cancelled;
+
     /**
      * Constructor for jackson to decode the object from string
      */
@@ -113,10 +143,44 @@ public class ImageRegionCtx extends OmeroRequestCtx {
      * @param omeroSessionKey OMERO session key.
      */
     ImageRegionCtx(MultiMap params, String omeroSessionKey) {
+        this(params, omeroSessionKey, false);
+    }
+
+    /**
+     * Constructor for rendered image region or raw pixel data requests.
+     * @param params {@link io.vertx.core.http.HttpServerRequest} parameters
+     * required for rendering an image region or, if
+     * <code>rawPixelData</code> is set, reading its raw pixel data.
+     * @param omeroSessionKey OMERO session key.
+     * @param rawPixelData whether or not the raw pixel data of the channel
+     * <code>theC</code>, which is then required, is requested.  Otherwise
+     * <code>theC</code> is ignored.
+     */
+    ImageRegionCtx(
+            MultiMap params, String omeroSessionKey, boolean rawPixelData) {
         this.omeroSessionKey = omeroSessionKey;
+        if (rawPixelData) {
+            channel = getIntegerFromString(getCheckedParam(params, "theC"));
+        }
         assignParams(params);
     }
 
+    /**
+     * Marks the request as cancelled.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Whether or not the request has been cancelled.
+     * @return See above.
+     */
+    @JsonIgnore
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public void assignParams(MultiMap params) throws IllegalArgumentException {
         getImageIdFromString(getCheckedParam(params, "imageId"));
         z = getIntegerFromString(getCheckedParam(params, "theZ"));
@@ -136,7 +200,12 @@ public class ImageRegionCtx extends OmeroRequestCtx {
         if (maps != null) {
             this.maps = Json.decodeValue(maps, List.class);
         }
-        format = Optional.ofNullable(params.get("format")).orElse("jpeg");
+        format = Optional.ofNullable(params.get("format"))
+                .orElse(channel == null? "jpeg" : FORMAT_RAW);
+        if (channel != null && !isRawPixelData()) {
+            throw new IllegalArgumentException("Raw pixel data format must "
+                + "be '" + FORMAT_RAW + "' or '" + FORMAT_DEFLATE + "'");
+        }
 
         log.debug(
                 "{}, z: {}, t: {}, tile: {}, c: [{}, {}, {}], m: {}, " +
@@ -144,6 +213,116 @@ public class ImageRegionCtx extends OmeroRequestCtx {
                 m, format);
     }
 
+    /**
+     * Whether or not raw pixel data, rather than a rendered image region,
+     * is requested.
+     * @return See above.
+     */
+    @JsonIgnore
+    public boolean isRawPixelData() {
+        return FORMAT_RAW.equals(format) || FORMAT_DEFLATE.equals(format);
+    }
+
+    /**
+     * Creates a cache key for the context.  The key is independent of the
+     * OMERO session so any cached content must be subject to a permissions
+     * check before it is returned.
+     * @param renderingDefId identifier of the rendering settings used to
+     * render the image for the OMERO session; users with different rendering
+     * settings render the same parameters differently.
+     * @param renderingDefUpdateTime last update time of the rendering
+     * settings for the image; ensures that changes to the rendering settings
+     * are reflected in the key.
+     * @return See above.
+     */
+    public String cacheKey(long renderingDefId, long renderingDefUpdateTime) {
+        return String.format(
+                CACHE_KEY_FORMAT, Image.class.getName(), imageId,
+                renderingDefId, renderingDefUpdateTime,
+                canonicalParameters());
+    }
+
+    /**
+     * Creates a cache key for the context which is scoped to the OMERO
+     * session.  The key does not track changes to the rendering settings so
+     * should only be used for short lived caching where a permissions check
+     * is not possible.
+     * @return See above.
+     */
+    public String sessionCacheKey() {
+        return String.format(
+                SESSION_CACHE_KEY_FORMAT, Image.class.getName(), imageId,
+                omeroSessionKey, canonicalParameters());
+    }
+
+    /**
+     * Returns the labels used to tag metrics recorded for the context; the
+     * output format, resolution level and projection type.
+     * @return Alternating label names and values.
+     */
+    public String[] metricsLabels() {
+        return new String[] {
+            "format", format,
+            "resolution", resolution == null? "" : resolution.toString(),
+            "projection",
+                projection == null? "" : projection.name().toLowerCase()
+        };
+    }
+
+    /**
+     * Returns a canonical string representation of all the parameters which
+     * influence the rendered output for the context.
+     * @return See above.
+     */
+    private String canonicalParameters() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("z=").append(z);
+        sb.append(";t=").append(t);
+        if (channel != null) {
+            sb.append(";theC=").append(channel);
+        }
+        sb.append(";resolution=").append(resolution);
+        sb.append(";tile=").append(regionDefToString(tile));
+        sb.append(";region=").append(regionDefToString(region));
+        sb.append(";c=");
+        if (channels != null) {
+            for (int i = 0; i < channels.size(); i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(channels.get(i));
+                Float[] window = windows.get(i);
+                sb.append("|").append(window[0]).append(":").append(window[1]);
+                sb.append("$").append(colors.get(i));
+            }
+        }
+        sb.append(";m=").append(m);
+        sb.append(";maps=").append(maps == null? null : Json.encode(maps));
+        sb.append(";p=").append(projection);
+        sb.append("|").append(projectionStart);
+        sb.append(":").append(projectionEnd);
+        sb.append(";ia=").append(invertedAxis);
+        sb.append(";flip=");
+        sb.append(flipHorizontal? "h" : "").append(flipVertical? "v" : "");
+        sb.append(";format=").append(format);
+        sb.append(";q=").append(compressionQuality);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a canonical string representation of a {@link RegionDef}.
+     * @param regionDef region definition to represent
+     * @return See above.
+     */
+    private String regionDefToString(RegionDef regionDef) {
+        if (regionDef == null) {
+            return "null";
+        }
+        return String.format("%d,%d,%d,%d",
+                regionDef.getX(), regionDef.getY(),
+                regionDef.getWidth(), regionDef.getHeight());
+    }
+
     private String getCheckedParam(MultiMap params, String key)
         throws IllegalArgumentException {
         String value = params.get(key);
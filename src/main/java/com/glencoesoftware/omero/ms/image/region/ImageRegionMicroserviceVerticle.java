@@ -18,6 +18,10 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.slf4j.LoggerFactory;
@@ -29,7 +33,9 @@ import com.glencoesoftware.omero.ms.core.OmeroWebRedisSessionStore;
 import com.glencoesoftware.omero.ms.core.OmeroWebSessionStore;
 import com.glencoesoftware.omero.ms.core.RedisCacheVerticle;
 import com.glencoesoftware.omero.ms.core.OmeroWebSessionRequestHandler;
+import com.glencoesoftware.omero.ms.image.region.RenderCostClassifier.Lane;
 
+import io.netty.buffer.Unpooled;
 import io.vertx.config.ConfigRetriever;
 import io.vertx.config.ConfigRetrieverOptions;
 import io.vertx.config.ConfigStoreOptions;
@@ -42,12 +48,14 @@ import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CookieHandler;
+import ome.io.nio.PixelsService;
 import ome.system.PreferenceContext;
 import omero.model.Image;
 
@@ -62,6 +70,9 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ImageRegionMicroserviceVerticle.class);
 
+    /** Default size of the worker pool for expensive image regions */
+    private static final int DEFAULT_BULK_MAX_CONCURRENCY = 4;
+
     /** OMERO server Spring application context. */
     private ApplicationContext context;
 
@@ -71,6 +82,37 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
     /** OMERO.web session store */
     private OmeroWebSessionStore sessionStore;
 
+    /** In-process cache of rendered image regions */
+    private TileCache tileCache;
+
+    /** Pool of OMERO clients joined to OMERO sessions */
+    private OmeroClientPool clientPool;
+
+    /** Cache of open pixel buffers shared by all image region lanes */
+    private PixelBufferCache pixelBufferCache;
+
+    /** Cache of pyramid geometry shared by all image region lanes */
+    private PixelsGeometryCache pixelsGeometryCache;
+
+    /** Encoder shared by all image region and shape mask workers */
+    private ImageEncoder encoder;
+
+    /** Classifies image region requests into processing lanes */
+    private RenderCostClassifier renderCostClassifier;
+
+    /** Admission control for image region requests in each lane */
+    private final Map<Lane, AdmissionController> imageRegionAdmission =
+            new EnumMap<Lane, AdmissionController>(Lane.class);
+
+    /** Admission control for shape mask requests */
+    private AdmissionController shapeMaskAdmission;
+
+    /** Maximum number of image regions in a single batch request */
+    private int maxBatchSize;
+
+    /** Registry of the metrics exposed by this microservice */
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
     /**
      * Entry point method which starts the server event loop and initializes
      * our current OMERO.web session store.
@@ -130,21 +172,138 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
             throw new IllegalArgumentException(
                     "'omero' block missing from configuration");
         }
+        // Request contexts and replies are passed by reference when the
+        // event bus is not clustered
+        vertx.eventBus().registerDefaultCodec(
+                ImageRegionCtx.class,
+                new RequestCtxMessageCodec<ImageRegionCtx>(
+                        ImageRegionCtx.class));
+        vertx.eventBus().registerDefaultCodec(
+                ImageRegionBatchCtx.class,
+                new RequestCtxMessageCodec<ImageRegionBatchCtx>(
+                        ImageRegionBatchCtx.class));
+        vertx.eventBus().registerDefaultCodec(
+                ShapeMaskCtx.class,
+                new RequestCtxMessageCodec<ShapeMaskCtx>(ShapeMaskCtx.class));
+        vertx.eventBus().registerCodec(new LocalByteArrayMessageCodec());
+
+        clientPool = OmeroClientPool.fromConfig(
+                omero.getString("host"), omero.getInteger("port"),
+                config.getJsonObject("client-pool"));
+        // Closing clients performs blocking OMERO server calls
+        long evictionInterval =
+                Math.max(clientPool.getIdleTimeout() / 2, 1000);
+        vertx.setPeriodic(evictionInterval, timerId -> {
+            vertx.executeBlocking(blockingFuture -> {
+                clientPool.evictIdle();
+                blockingFuture.complete();
+            }, false, result -> {
+                if (result.failed()) {
+                    log.error("Exception while evicting idle clients",
+                            result.cause());
+                }
+            });
+        });
+        pixelBufferCache = PixelBufferCache.fromConfig(
+                (PixelsService) context.getBean("/OMERO/Pixels"),
+                config.getJsonObject("pixel-buffer-cache"));
+        pixelsGeometryCache = PixelsGeometryCache.fromConfig(
+                config.getJsonObject("pixels-geometry-cache"));
+        encoder = ImageEncoder.fromConfig(config.getJsonObject("encoder"));
+        // Closing pixel buffers performs blocking I/O
+        long pixelBufferEvictionInterval =
+                Math.max(pixelBufferCache.getIdleTimeout() / 2, 1000);
+        vertx.setPeriodic(pixelBufferEvictionInterval, timerId -> {
+            vertx.executeBlocking(blockingFuture -> {
+                pixelBufferCache.evictIdle();
+                blockingFuture.complete();
+            }, false, result -> {
+                if (result.failed()) {
+                    log.error("Exception while evicting idle pixel buffers",
+                            result.cause());
+                }
+            });
+        });
         vertx.deployVerticle(new RedisCacheVerticle(),
                 new DeploymentOptions()
                         .setConfig(config));
-        vertx.deployVerticle(new ImageRegionVerticle(
-                omero.getString("host"), omero.getInteger("port"), context),
-                new DeploymentOptions()
-                        .setWorker(true)
-                        .setMultiThreaded(true)
-                        .setConfig(config));
-        vertx.deployVerticle(new ShapeMaskVerticle(
-                omero.getString("host"), omero.getInteger("port")),
+
+        // Each worker verticle has its own pool, sized to its concurrency
+        // limit, and a bounded number of requests waiting for it.  Image
+        // region requests are split into an interactive and a bulk lane
+        // by estimated cost, each with its own worker verticle, so that
+        // cheap tiles are never queued behind expensive renders.
+        JsonObject admissionControl = Optional.ofNullable(
+                config.getJsonObject("admission-control"))
+                .orElse(new JsonObject());
+        renderCostClassifier = RenderCostClassifier.fromConfig(
+                config.getJsonObject("priority-lanes"));
+        imageRegionAdmission.put(Lane.INTERACTIVE,
+                AdmissionController.fromConfig(
+                        "image-region",
+                        admissionControl.getJsonObject("image-region")));
+        imageRegionAdmission.put(Lane.BULK,
+                AdmissionController.fromConfig(
+                        "image-region-bulk",
+                        admissionControl.getJsonObject("image-region-bulk"),
+                        DEFAULT_BULK_MAX_CONCURRENCY));
+        shapeMaskAdmission = AdmissionController.fromConfig(
+                "shape-mask",
+                admissionControl.getJsonObject("shape-mask"));
+        imageRegionAdmission.forEach((lane, admissionController) -> {
+            vertx.deployVerticle(
+                    new ImageRegionVerticle(
+                            clientPool, context, admissionController,
+                            lane.getAddress(), pixelBufferCache,
+                            pixelsGeometryCache, encoder),
+                    new DeploymentOptions()
+                            .setWorker(true)
+                            .setMultiThreaded(true)
+                            .setWorkerPoolName(
+                                    admissionController.getName()
+                                    + "-worker")
+                            .setWorkerPoolSize(
+                                    admissionController.getMaxConcurrency())
+                            .setConfig(config));
+        });
+        vertx.deployVerticle(
+                new ShapeMaskVerticle(
+                        clientPool, shapeMaskAdmission, encoder),
                 new DeploymentOptions()
                         .setWorker(true)
                         .setMultiThreaded(true)
+                        .setWorkerPoolName("shape-mask-worker")
+                        .setWorkerPoolSize(
+                                shapeMaskAdmission.getMaxConcurrency())
                         .setConfig(config));
+        long admissionStatsInterval =
+                admissionControl.getLong("stats-interval", 60L) * 1000;
+        if (admissionStatsInterval > 0) {
+            vertx.setPeriodic(admissionStatsInterval, timerId -> {
+                imageRegionAdmission.values().forEach(
+                        admissionController -> {
+                            log.info("{}", admissionController);
+                        });
+                log.info("{}", shapeMaskAdmission);
+            });
+        }
+
+        // In-process image region cache, only enabled if configured
+        tileCache = TileCache.fromConfig(config.getJsonObject("tile-cache"));
+        if (tileCache != null) {
+            vertx.eventBus().<Long>consumer(
+                    TileCache.INVALIDATE_EVENT, message -> {
+                        tileCache.invalidate(message.body());
+                    });
+            long statsInterval = config.getJsonObject("tile-cache")
+                    .getLong("stats-interval", 60L) * 1000;
+            if (statsInterval > 0) {
+                vertx.setPeriodic(statsInterval, timerId -> {
+                    tileCache.removeExpired();
+                    log.info("{}", tileCache);
+                });
+            }
+        }
 
         HttpServerOptions options = new HttpServerOptions();
         options.setMaxInitialLineLength(config.getInteger(
@@ -166,9 +325,30 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
         // Get ImageRegion Microservice Information
         router.options().handler(this::getMicroserviceDetails);
 
+        // Metrics in the Prometheus text format, which do not require an
+        // OMERO session; may be disabled by configuration
+        JsonObject metricsConfig = Optional.ofNullable(
+                config.getJsonObject("metrics"))
+                .orElse(new JsonObject());
+        if (metricsConfig.getBoolean("enabled", true)) {
+            MetricsRegistry.configure(metrics, metricsConfig);
+            vertx.setPeriodic(
+                    Math.max(metrics.getWindow() / 2, 1),
+                    timerId -> metrics.rotate());
+            registerMetrics();
+            String metricsPath = metricsConfig.getString("path", "/metrics");
+            log.info("Exposing metrics at {}", metricsPath);
+            router.get(metricsPath).handler(this::getMetrics);
+        }
+
         // Cookie handler so we can pick up the OMERO.web session
         router.route().handler(CookieHandler.create());
 
+        // Batch request bodies must be read before any asynchronous handler
+        maxBatchSize = config.getInteger("max-batch-size", 256);
+        router.post("/webgateway/render_image_region_batch/*")
+            .handler(BodyHandler.create().setBodyLimit(1024 * 1024));
+
         // OMERO session handler which picks up the session key from the
         // OMERO.web session and joins it.
         JsonObject sessionStoreConfig = config.getJsonObject("session-store");
@@ -204,6 +384,14 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
         router.get(
                 "/webclient/render_image/:imageId/:theZ/:theT*")
             .handler(this::renderImageRegion);
+        router.post(
+                "/webgateway/render_image_region_batch/:imageId")
+            .handler(this::renderImageRegionBatch);
+
+        // Raw pixel data request handlers
+        router.get(
+                "/webgateway/get_pixel_data/:imageId/:theZ/:theC/:theT*")
+            .handler(this::getRawPixelData);
 
         // ShapeMask request handlers
         router.get(
@@ -223,11 +411,24 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
 
     /**
      * Exit point method which when the verticle stops, cleans up our current
-     * OMERO.web session store.
+     * OMERO.web session store, closes any pooled clients and pixel buffers
+     * and empties the tile cache.
      */
     @Override
     public void stop() throws Exception {
         sessionStore.close();
+        if (clientPool != null) {
+            clientPool.close();
+        }
+        if (pixelBufferCache != null) {
+            pixelBufferCache.clear();
+        }
+        if (tileCache != null) {
+            tileCache.clear();
+        }
+        if (encoder != null) {
+            encoder.shutdown();
+        }
     }
 
     /**
@@ -259,6 +460,92 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
             .end(resData.encodePrettily());
     }
 
+    /**
+     * Registers gauges and counters for the state of our caches, pools and
+     * admission control.
+     */
+    private void registerMetrics() {
+        metrics.gauge("client_pool_size", "Number of pooled OMERO clients",
+                clientPool::getSize);
+        metrics.gauge("pixel_buffer_cache_idle",
+                "Number of idle pixel buffers",
+                pixelBufferCache::getIdleCount);
+        metrics.counter("pixel_buffer_cache_hits_total",
+                "Pixel buffer leases satisfied by an idle pixel buffer",
+                pixelBufferCache::getHits);
+        metrics.counter("pixel_buffer_cache_misses_total",
+                "Pixel buffer leases which opened a new pixel buffer",
+                pixelBufferCache::getMisses);
+        metrics.counter("pixel_buffer_cache_evictions_total",
+                "Idle pixel buffers closed",
+                pixelBufferCache::getEvictions);
+        metrics.counter("pixels_geometry_cache_hits_total",
+                "Pyramid geometry lookups satisfied by the cache",
+                pixelsGeometryCache::getHits);
+        metrics.counter("pixels_geometry_cache_misses_total",
+                "Pyramid geometry lookups which missed the cache",
+                pixelsGeometryCache::getMisses);
+        List<AdmissionController> admissionControllers =
+                new ArrayList<AdmissionController>(
+                        imageRegionAdmission.values());
+        admissionControllers.add(shapeMaskAdmission);
+        for (AdmissionController admissionController : admissionControllers) {
+            String name = admissionController.getName();
+            metrics.gauge("admission_outstanding",
+                    "Requests admitted and not yet completed",
+                    admissionController::getOutstanding, "verticle", name);
+            metrics.counter("admission_admitted_total",
+                    "Requests admitted", admissionController::getAdmitted,
+                    "verticle", name);
+            metrics.counter("admission_rejected_total",
+                    "Requests rejected", admissionController::getRejected,
+                    "verticle", name);
+        }
+        if (tileCache != null) {
+            metrics.gauge("tile_cache_entries",
+                    "Number of image regions in the tile cache",
+                    tileCache::getCount);
+            metrics.gauge("tile_cache_bytes",
+                    "Size of the image regions in the tile cache",
+                    tileCache::getSize);
+            metrics.counter("tile_cache_hits_total",
+                    "Image region lookups satisfied by the tile cache",
+                    tileCache::getHits);
+            metrics.counter("tile_cache_misses_total",
+                    "Image region lookups which missed the tile cache",
+                    tileCache::getMisses);
+            metrics.counter("tile_cache_evictions_total",
+                    "Image regions evicted from the tile cache",
+                    tileCache::getEvictions);
+            metrics.counter("tile_cache_expirations_total",
+                    "Image regions expired from the tile cache",
+                    tileCache::getExpirations);
+        }
+    }
+
+    /**
+     * Metrics event handler.
+     * Responds with all metrics in the Prometheus text exposition format.
+     * @param event Current routing context.
+     */
+    private void getMetrics(RoutingContext event) {
+        event.response()
+            .putHeader("content-type", "text/plain; version=0.0.4")
+            .end(metrics.scrape());
+    }
+
+    /**
+     * Counts the bytes of a response body.
+     * @param endpoint endpoint which produced the response.
+     * @param format format of the response body.
+     * @param length length of the response body.
+     */
+    private void countBytesOut(String endpoint, String format, int length) {
+        metrics.counter("response_bytes_total",
+                "Bytes of response bodies written",
+                "endpoint", endpoint, "format", format).add(length);
+    }
+
     /**
      * Render image region event handler.
      * Responds with an image body on success based on the <code>imageId</code>,
@@ -281,9 +568,38 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
         }
 
         final HttpServerResponse response = event.response();
+        final String localCacheKey;
+        if (tileCache != null) {
+            localCacheKey = imageRegionCtx.sessionCacheKey();
+            Buffer imageRegion = tileCache.get(localCacheKey);
+            if (imageRegion != null) {
+                log.debug("Tile cache hit for image region");
+                endImageRegion(response, imageRegionCtx, imageRegion);
+                return;
+            }
+        } else {
+            localCacheKey = null;
+        }
+
+        Lane lane = renderCostClassifier.classify(imageRegionCtx);
+        AdmissionController admissionController =
+                imageRegionAdmission.get(lane);
+        if (!admissionController.tryAcquire()) {
+            log.debug("Rejecting image region request; too many requests");
+            rejectRequest(response, admissionController);
+            return;
+        }
+
+        // Abandon the render if the client goes away before it completes
+        response.closeHandler(v -> {
+            log.debug("Connection closed; cancelling image region request");
+            imageRegionCtx.cancel();
+        });
         vertx.eventBus().<byte[]>send(
-                ImageRegionVerticle.RENDER_IMAGE_REGION_EVENT,
-                Json.encode(imageRegionCtx), result -> {
+                lane.getAddress(),
+                imageRegionCtx, admissionController.deliveryOptions(),
+                result -> {
+            admissionController.release();
             try {
                 if (result.failed()) {
                     Throwable t = result.cause();
@@ -297,29 +613,233 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
                     return;
                 }
                 byte[] imageRegion = result.result().body();
-                String contentType = "application/octet-stream";
-                if (imageRegionCtx.format.equals("jpeg")) {
-                    contentType = "image/jpeg";
+                if (tileCache != null) {
+                    tileCache.put(
+                            localCacheKey, imageRegionCtx.imageId,
+                            imageRegion);
                 }
-                if (imageRegionCtx.format.equals("png")) {
-                    contentType = "image/png";
+                endImageRegion(response, imageRegionCtx, wrap(imageRegion));
+            } finally {
+                log.debug("Response ended");
+            }
+        });
+    }
+
+    /**
+     * Render image region batch event handler.
+     * Renders many image regions of the <code>imageId</code> encoded in the
+     * URL with the rendering settings encoded in the URL.  The request body
+     * is a JSON array of objects each with <code>theZ</code>,
+     * <code>theT</code> and optionally <code>tile</code> or
+     * <code>region</code>.  Responds on success with the encoded image
+     * regions in request order, each prefixed by its length as a four byte
+     * big endian integer, with a length of <code>-1</code> for invalid image
+     * regions; responds with HTTP 404 if the {@link Image} does not exist or
+     * the user does not have permissions to access it.
+     * @param event Current routing context.
+     */
+    private void renderImageRegionBatch(RoutingContext event) {
+        log.info("Rendering image region batch");
+        HttpServerRequest request = event.request();
+        final HttpServerResponse response = event.response();
+        final ImageRegionBatchCtx imageRegionBatchCtx;
+        try {
+            JsonArray specs = event.getBodyAsJsonArray();
+            if (specs != null && specs.size() > maxBatchSize) {
+                throw new IllegalArgumentException(
+                        "Too many image regions; maximum " + maxBatchSize);
+            }
+            imageRegionBatchCtx = new ImageRegionBatchCtx(
+                    request.params(), specs, event.get("omero.session_key"));
+        } catch (IllegalArgumentException | DecodeException e) {
+            response.setStatusCode(400).end(e.getMessage());
+            return;
+        }
+
+        Lane lane = renderCostClassifier.classify(imageRegionBatchCtx);
+        AdmissionController admissionController =
+                imageRegionAdmission.get(lane);
+        if (!admissionController.tryAcquire()) {
+            log.debug("Rejecting image region batch; too many requests");
+            rejectRequest(response, admissionController);
+            return;
+        }
+
+        // Abandon the batch if the client goes away before it completes
+        response.closeHandler(v -> {
+            log.debug("Connection closed; cancelling image region batch");
+            imageRegionBatchCtx.cancel();
+        });
+        vertx.eventBus().<byte[]>send(
+                lane.getAddress() + ImageRegionVerticle.BATCH_ADDRESS_SUFFIX,
+                imageRegionBatchCtx, admissionController.deliveryOptions(),
+                result -> {
+            admissionController.release();
+            try {
+                if (response.closed()) {
+                    return;
                 }
-                if (imageRegionCtx.format.equals("tif")) {
-                    contentType = "image/tiff";
+                if (result.failed()) {
+                    Throwable t = result.cause();
+                    int statusCode = 404;
+                    if (t instanceof ReplyException) {
+                        statusCode = ((ReplyException) t).failureCode();
+                    }
+                    response.setStatusCode(statusCode).end();
+                    return;
                 }
-                response.headers().set("Content-Type", contentType);
+                byte[] imageRegions = result.result().body();
+                countBytesOut("render_image_region_batch",
+                        imageRegionBatchCtx.imageRegions.get(0).format,
+                        imageRegions.length);
+                response.headers().set(
+                        "Content-Type", "application/octet-stream");
                 response.headers().set(
                         "Content-Length",
-                        String.valueOf(imageRegion.length));
-                if (!response.closed()) {
-                    response.end(Buffer.buffer(imageRegion));
+                        String.valueOf(imageRegions.length));
+                response.end(wrap(imageRegions));
+            } finally {
+                log.debug("Response ended");
+            }
+        });
+    }
+
+    /**
+     * Raw pixel data event handler.
+     * Responds with the raw, unrendered, pixel data of the channel
+     * <code>theC</code> of the image region of the <code>imageId</code>,
+     * <code>z</code> and <code>t</code> encoded in the URL.  The pixel data
+     * is in the native pixel type and byte order of the image, optionally
+     * deflate compressed, and is described by the <code>X-Pixels-Type</code>,
+     * <code>X-Byte-Order</code> and <code>X-Region</code> response headers.
+     * Responds with HTTP 404 if the {@link Image} does not exist, the user
+     * does not have permissions to access it or the plane or region is
+     * invalid.
+     * @param event Current routing context.
+     */
+    private void getRawPixelData(RoutingContext event) {
+        log.info("Getting raw pixel data");
+        HttpServerRequest request = event.request();
+        final HttpServerResponse response = event.response();
+        final ImageRegionCtx imageRegionCtx;
+        try {
+            imageRegionCtx = new ImageRegionCtx(
+                    request.params(), event.get("omero.session_key"), true);
+        } catch (IllegalArgumentException e) {
+            response.setStatusCode(400).end(e.getMessage());
+            return;
+        }
+
+        Lane lane = renderCostClassifier.classify(imageRegionCtx);
+        AdmissionController admissionController =
+                imageRegionAdmission.get(lane);
+        if (!admissionController.tryAcquire()) {
+            log.debug("Rejecting raw pixel data request; too many requests");
+            rejectRequest(response, admissionController);
+            return;
+        }
+
+        // Abandon the read if the client goes away before it completes
+        response.closeHandler(v -> {
+            log.debug("Connection closed; cancelling raw pixel data request");
+            imageRegionCtx.cancel();
+        });
+        vertx.eventBus().<byte[]>send(
+                lane.getAddress()
+                    + ImageRegionVerticle.RAW_PIXEL_DATA_ADDRESS_SUFFIX,
+                imageRegionCtx, admissionController.deliveryOptions(),
+                result -> {
+            admissionController.release();
+            try {
+                if (response.closed()) {
+                    return;
                 }
+                if (result.failed()) {
+                    Throwable t = result.cause();
+                    int statusCode = 404;
+                    if (t instanceof ReplyException) {
+                        statusCode = ((ReplyException) t).failureCode();
+                    }
+                    response.setStatusCode(statusCode).end();
+                    return;
+                }
+                byte[] rawPixelData = result.result().body();
+                countBytesOut("get_pixel_data", imageRegionCtx.format,
+                        rawPixelData.length);
+                response.headers().addAll(result.result().headers());
+                response.headers().set(
+                        "Content-Type", "application/octet-stream");
+                if (ImageRegionCtx.FORMAT_DEFLATE.equals(
+                        imageRegionCtx.format)) {
+                    response.headers().set("Content-Encoding", "deflate");
+                }
+                response.headers().set(
+                        "Content-Length",
+                        String.valueOf(rawPixelData.length));
+                response.end(wrap(rawPixelData));
             } finally {
                 log.debug("Response ended");
             }
         });
     }
 
+    /**
+     * Ends a render image region response with the provided image region
+     * as the body.
+     * @param response response to end.
+     * @param imageRegionCtx image region context of the request.
+     * @param imageRegion encoded image region; see {@link #wrap(byte[])}.
+     */
+    private void endImageRegion(
+            HttpServerResponse response, ImageRegionCtx imageRegionCtx,
+            Buffer imageRegion) {
+        String contentType = "application/octet-stream";
+        if (imageRegionCtx.format.equals("jpeg")) {
+            contentType = "image/jpeg";
+        }
+        if (imageRegionCtx.format.equals("png")) {
+            contentType = "image/png";
+        }
+        if (imageRegionCtx.format.equals("tif")) {
+            contentType = "image/tiff";
+        }
+        response.headers().set("Content-Type", contentType);
+        response.headers().set(
+                "Content-Length",
+                String.valueOf(imageRegion.length()));
+        if (!response.closed()) {
+            countBytesOut("render_image_region", imageRegionCtx.format,
+                    imageRegion.length());
+            response.end(imageRegion);
+        }
+    }
+
+    /**
+     * Wraps an encoded response body for writing to a response.  Unlike
+     * {@link Buffer#buffer(byte[])} the bytes are not copied; they must
+     * not be modified once wrapped.
+     * @param bytes encoded response body.
+     * @return See above.
+     */
+    private static Buffer wrap(byte[] bytes) {
+        return Buffer.buffer(Unpooled.wrappedBuffer(bytes));
+    }
+
+    /**
+     * Ends a response with HTTP 503 because a request was not admitted,
+     * asking the client to retry later.
+     * @param response response to end.
+     * @param admissionController admission control which rejected the
+     * request.
+     */
+    private void rejectRequest(
+            HttpServerResponse response,
+            AdmissionController admissionController) {
+        response.headers().set("Retry-After",
+                String.valueOf(admissionController.getRetryAfter()));
+        response.setStatusCode(503).end();
+    }
+
     /**
      * Render shape mask event handler.
      * Responds with a <code>image/png</code> body on success based
@@ -335,9 +855,16 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
                 request.params(), event.get("omero.session_key"));
 
         final HttpServerResponse response = event.response();
+        if (!shapeMaskAdmission.tryAcquire()) {
+            log.debug("Rejecting shape mask request; too many requests");
+            rejectRequest(response, shapeMaskAdmission);
+            return;
+        }
         vertx.eventBus().<byte[]>send(
                 ShapeMaskVerticle.RENDER_SHAPE_MASK_EVENT,
-                Json.encode(shapeMaskCtx), result -> {
+                shapeMaskCtx, shapeMaskAdmission.deliveryOptions(),
+                result -> {
+            shapeMaskAdmission.release();
             try {
                 if (result.failed()) {
                     Throwable t = result.cause();
@@ -349,11 +876,12 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
                     return;
                 }
                 byte[] shapeMask = result.result().body();
+                countBytesOut("render_shape_mask", "png", shapeMask.length);
                 response.headers().set("Content-Type", "image/png");
                 response.headers().set(
                         "Content-Length",
                         String.valueOf(shapeMask.length));
-                response.write(Buffer.buffer(shapeMask));
+                response.write(wrap(shapeMask));
             } finally {
                 response.end();
                 log.debug("Response ended");
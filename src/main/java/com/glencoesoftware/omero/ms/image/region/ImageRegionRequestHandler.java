@@ -19,44 +19,40 @@
 package com.glencoesoftware.omero.ms.image.region;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import java.lang.IllegalArgumentException;
 import java.lang.Math;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.spi.IIORegistry;
-import javax.imageio.spi.ServiceRegistry;
-import javax.imageio.stream.ImageOutputStream;
-
 import org.perf4j.StopWatch;
-import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 
-import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriter;
-import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 
-import ome.api.local.LocalCompress;
 import ome.io.nio.InMemoryPlanarPixelBuffer;
 import ome.io.nio.PixelBuffer;
-import ome.io.nio.PixelsService;
 import ome.model.core.Image;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
 import ome.model.display.RenderingDef;
 import ome.model.enums.Family;
 import ome.model.enums.RenderingModel;
-import ome.util.ImageUtil;
+import ome.util.PixelData;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.RenderingStats;
 import omeis.providers.re.codomain.ReverseIntensityContext;
@@ -66,27 +62,61 @@ import omeis.providers.re.lut.LutProvider;
 import omeis.providers.re.quantum.QuantizationException;
 import omeis.providers.re.quantum.QuantumFactory;
 import omero.ApiUsageException;
-import omero.RType;
 import omero.ServerError;
 import omero.api.IPixelsPrx;
 import omero.api.IQueryPrx;
 import omero.api.ServiceFactoryPrx;
-import omero.sys.ParametersI;
-import omero.util.IceMapper;
+
+import com.glencoesoftware.omero.ms.image.region.ImageMetadataService.ImageMetadata;
+import com.glencoesoftware.omero.ms.image.region.PixelsGeometryCache.PixelsGeometry;
 
 public class ImageRegionRequestHandler {
 
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ImageRegionRequestHandler.class);
 
+    /**
+     * Raw, unrendered, pixel data of a single channel of an image region
+     * along with the description required to interpret it.
+     */
+    public static class RawPixelData {
+
+        /** Pixel data, deflate compressed if requested */
+        public final byte[] data;
+
+        /** OMERO pixels type; for example <code>uint16</code> */
+        public final String pixelsType;
+
+        /** Byte order of multi-byte pixel types */
+        public final ByteOrder order;
+
+        /**
+         * Region of the resolution level that was read, after truncation
+         * to the bounds of the image
+         */
+        public final RegionDef region;
+
+        RawPixelData(
+                byte[] data, String pixelsType, ByteOrder order,
+                RegionDef region) {
+            this.data = data;
+            this.pixelsType = pixelsType;
+            this.order = order;
+            this.region = region;
+        }
+    }
+
     /** OMERO server Spring application context. */
     private final ApplicationContext context;
 
-    /** OMERO server pixels service. */
-    private final PixelsService pixelsService;
+    /** Cache of open pixel buffers. */
+    private final PixelBufferCache pixelBufferCache;
+
+    /** Cache of pyramid geometry. */
+    private final PixelsGeometryCache pixelsGeometryCache;
 
-    /** Reference to the compression service. */
-    private final LocalCompress compressionSrv;
+    /** Encoder for rendered image regions. */
+    private final ImageEncoder encoder;
 
     /** Reference to the projection service. */
     private final ProjectionService projectionService;
@@ -95,13 +125,10 @@ public class ImageRegionRequestHandler {
     private final LutProvider lutProvider;
 
     /**
-     * Mapper between <code>omero.model</code> client side Ice backed objects
-     * and <code>ome.model</code> server side Hibernate backed objects.
+     * Image Region Context; during batch rendering this is the image region
+     * currently being rendered
      */
-    private final IceMapper mapper = new IceMapper();
-
-    /** Image Region Context */
-    private final ImageRegionCtx imageRegionCtx;
+    private ImageRegionCtx imageRegionCtx;
 
     /** Renderer */
     private Renderer renderer;
@@ -115,6 +142,15 @@ public class ImageRegionRequestHandler {
     /** Configured maximum size size in either dimension */
     private final int maxTileLength;
 
+    /** Image metadata service */
+    private final ImageMetadataService metadataService;
+
+    /** Metadata for the {@link Image} being rendered */
+    private ImageMetadata imageMetadata;
+
+    /** Whether or not rendering should be abandoned */
+    private BooleanSupplier cancelled;
+
     /**
      * Default constructor.
      * @param imageRegionCtx {@link ImageRegionCtx} object
@@ -123,20 +159,50 @@ public class ImageRegionRequestHandler {
             ImageRegionCtx imageRegionCtx, ApplicationContext context,
             List<Family> families, List<RenderingModel> renderingModels,
             LutProvider lutProvider,
-            PixelsService pixService,
-            LocalCompress compSrv,
-            int maxTileLength) {
+            PixelBufferCache pixelBufferCache,
+            PixelsGeometryCache pixelsGeometryCache,
+            ImageEncoder encoder,
+            int maxTileLength,
+            ImageMetadataService metadataService,
+            ProjectionService projectionService) {
         log.info("Setting up handler");
         this.imageRegionCtx = imageRegionCtx;
+        this.metadataService = metadataService;
         this.context = context;
         this.families = families;
         this.renderingModels = renderingModels;
         this.lutProvider = lutProvider;
         this.maxTileLength = maxTileLength;
 
-        pixelsService = pixService;
-        projectionService = new ProjectionService();
-        compressionSrv = compSrv;
+        this.pixelBufferCache = pixelBufferCache;
+        this.pixelsGeometryCache = pixelsGeometryCache;
+        this.projectionService = projectionService;
+        this.encoder = encoder;
+        cancelled = imageRegionCtx::isCancelled;
+    }
+
+    /**
+     * Replaces the check of whether or not rendering should be abandoned,
+     * which by default is whether or not <code>imageRegionCtx</code> has
+     * been cancelled.
+     * @param cancelled check to use.
+     */
+    public void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Abandons rendering if it is no longer required.  Checked between the
+     * read, quantization and encoding stages.
+     * @param stage the stage about to be started.
+     * @throws CancellationException If rendering is no longer required.
+     */
+    private void checkCancelled(String stage) {
+        if (cancelled.getAsBoolean()) {
+            log.debug("Image region request cancelled before {}", stage);
+            throw new CancellationException(
+                    "Image region request cancelled before " + stage);
+        }
     }
 
     /**
@@ -144,19 +210,45 @@ public class ImageRegionRequestHandler {
      * @param client OMERO client to use for querying.
      * @return A response body in accordance with the initial settings
      * provided by <code>imageRegionCtx</code>.
+     * @throws CancellationException If the request was cancelled.
      */
     public byte[] renderImageRegion(omero.client client) {
-        StopWatch t0 = new Slf4JStopWatch("renderImageRegion");
+        IQueryPrx iQuery;
+        IPixelsPrx iPixels;
         try {
             ServiceFactoryPrx sf = client.getSession();
-            IQueryPrx iQuery = sf.getQueryService();
-            IPixelsPrx iPixels = sf.getPixelsService();
-            List<RType> pixelsIdAndSeries = getPixelsIdAndSeries(
-                    iQuery, imageRegionCtx.imageId);
-            if (pixelsIdAndSeries != null && pixelsIdAndSeries.size() == 2) {
-                return getRegion(iQuery, iPixels, pixelsIdAndSeries);
+            iQuery = sf.getQueryService();
+            iPixels = sf.getPixelsService();
+        } catch (ServerError e) {
+            log.error("Exception while retrieving image region", e);
+            return null;
+        }
+        return renderImageRegion(iQuery, iPixels);
+    }
+
+    /**
+     * Render Image region request handler.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @return A response body in accordance with the initial settings
+     * provided by <code>imageRegionCtx</code>.
+     * @throws CancellationException If the request was cancelled.
+     */
+    public byte[] renderImageRegion(IQueryPrx iQuery, IPixelsPrx iPixels) {
+        StopWatch t0 = new MetricsStopWatch(
+                "renderImageRegion", imageRegionCtx.metricsLabels());
+        try {
+            if (imageMetadata == null) {
+                imageMetadata = metadataService.getImageMetadata(
+                        iQuery, imageRegionCtx.omeroSessionKey,
+                        imageRegionCtx.imageId);
+            }
+            if (imageMetadata != null) {
+                return getRegion(iPixels, imageMetadata);
             }
             log.debug("Cannot find Image:{}", imageRegionCtx.imageId);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Exception while retrieving image region", e);
         } finally {
@@ -166,57 +258,329 @@ public class ImageRegionRequestHandler {
     }
 
     /**
-     * Retrieves a single {@link Pixels} identifier and Bio-Formats series from
-     * the server for a given {@link Image} or <code>null</code> if no such
-     * identifier exists or the user does not have permissions to access it.
+     * Render image regions request handler.  All image regions are rendered
+     * with the settings provided by <code>imageRegionCtx</code> and share a
+     * single metadata lookup, {@link Renderer} and {@link PixelBuffer}.
+     * @param client OMERO client to use for querying.
+     * @param imageRegions image regions of the same {@link Image} as
+     * <code>imageRegionCtx</code> to render.
+     * @return Response bodies in the same order as <code>imageRegions</code>
+     * with <code>null</code> elements for invalid image regions, or
+     * <code>null</code> if the {@link Image} does not exist or the user does
+     * not have permissions to access it.
+     * @throws CancellationException If the request was cancelled.
+     */
+    public List<byte[]> renderImageRegions(
+            omero.client client, List<ImageRegionCtx> imageRegions) {
+        IQueryPrx iQuery;
+        IPixelsPrx iPixels;
+        try {
+            ServiceFactoryPrx sf = client.getSession();
+            iQuery = sf.getQueryService();
+            iPixels = sf.getPixelsService();
+        } catch (ServerError e) {
+            log.error("Exception while retrieving image regions", e);
+            return null;
+        }
+        return renderImageRegions(iQuery, iPixels, imageRegions);
+    }
+
+    /**
+     * Render image regions request handler.  All image regions are rendered
+     * with the settings provided by <code>imageRegionCtx</code> and share a
+     * single metadata lookup, {@link Renderer} and {@link PixelBuffer}.
      * @param iQuery OMERO query service to use for metadata access.
-     * @param imageId {@link Image} identifier to query for.
-     * @return See above.
-     * @throws ServerError If there was any sort of error retrieving the pixels
-     * id.
-     */
-    private List<RType> getPixelsIdAndSeries(IQueryPrx iQuery, Long imageId)
-            throws ServerError {
-        Map<String, String> ctx = new HashMap<String, String>();
-        ctx.put("omero.group", "-1");
-        ParametersI params = new ParametersI();
-        params.addId(imageId);
-        StopWatch t0 = new Slf4JStopWatch("getPixelsIdAndSeries");
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @param imageRegions image regions of the same {@link Image} as
+     * <code>imageRegionCtx</code> to render.
+     * @return Response bodies in the same order as <code>imageRegions</code>
+     * with <code>null</code> elements for invalid image regions, or
+     * <code>null</code> if the {@link Image} does not exist or the user does
+     * not have permissions to access it.
+     * @throws CancellationException If the request was cancelled.
+     */
+    public List<byte[]> renderImageRegions(
+            IQueryPrx iQuery, IPixelsPrx iPixels,
+            List<ImageRegionCtx> imageRegions) {
+        StopWatch t0 = new MetricsStopWatch(
+                "renderImageRegions", imageRegionCtx.metricsLabels());
         try {
-            List<List<RType>> data = iQuery.projection(
-                    "SELECT p.id, p.image.series FROM Pixels as p " +
-                    "WHERE p.image.id = :id",
-                    params, ctx
-                );
-            if (data.size() < 1) {
+            if (imageMetadata == null) {
+                imageMetadata = metadataService.getImageMetadata(
+                        iQuery, imageRegionCtx.omeroSessionKey,
+                        imageRegionCtx.imageId);
+            }
+            if (imageMetadata != null) {
+                return getRegions(iPixels, imageMetadata, imageRegions);
+            }
+            log.debug("Cannot find Image:{}", imageRegionCtx.imageId);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("Exception while retrieving image regions", e);
+        } finally {
+            t0.stop();
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the last update time of the rendering settings for the
+     * {@link Image} being rendered.  As this requires loading the
+     * {@link Image} it also acts as a permissions check.
+     * @param client OMERO client to use for querying.
+     * @return Update time of the most recently updated rendering settings
+     * for the {@link Image} in milliseconds since the epoch, <code>0</code>
+     * if there are no rendering settings or <code>null</code> if the
+     * {@link Image} does not exist or the user does not have permissions to
+     * access it.
+     */
+    public Long getRenderingDefUpdateTime(omero.client client) {
+        try {
+            if (imageMetadata == null) {
+                imageMetadata = metadataService.getImageMetadata(
+                        client.getSession().getQueryService(),
+                        imageRegionCtx.omeroSessionKey,
+                        imageRegionCtx.imageId);
+            }
+            if (imageMetadata == null) {
                 return null;
             }
-            return data.get(0);  // The first row
+            return imageMetadata.getRenderingDefUpdateTime();
+        } catch (Exception e) {
+            log.error("Exception while checking image readability", e);
+        }
+        return null;
+    }
+
+    /**
+     * Asynchronously retrieves the last update time of the rendering
+     * settings for the {@link Image} being rendered.  As this requires
+     * loading the {@link Image} it also acts as a permissions check.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @return Future completed with the update time of the most recently
+     * updated rendering settings for the {@link Image} in milliseconds
+     * since the epoch, <code>0</code> if there are no rendering settings or
+     * <code>null</code> if the {@link Image} does not exist or the user does
+     * not have permissions to access it.
+     */
+    public Future<Long> getRenderingDefUpdateTimeAsync(
+            Context context, IQueryPrx iQuery) {
+        if (imageMetadata != null) {
+            return Future.succeededFuture(
+                    imageMetadata.getRenderingDefUpdateTime());
+        }
+        return metadataService.getImageMetadataAsync(
+                context, iQuery, imageRegionCtx.omeroSessionKey,
+                imageRegionCtx.imageId
+            ).map(v -> {
+                imageMetadata = v;
+                return v == null? null : v.getRenderingDefUpdateTime();
+            }).otherwise(t -> {
+                log.error("Exception while checking image readability", t);
+                return null;
+            });
+    }
+
+    /**
+     * Identifier of the rendering settings used to render the {@link Image}
+     * for the OMERO session.
+     * @return See above, <code>0</code> if there are no rendering settings
+     * or <code>null</code> if they have not yet been retrieved.
+     */
+    public Long getRenderingDefId() {
+        return imageMetadata == null? null : imageMetadata.getRenderingDefId();
+    }
+
+    /**
+     * Asynchronously retrieves the {@link Pixels} description and rendering
+     * settings required for rendering, once the {@link Image} metadata has
+     * been retrieved, so that rendering does not block on them.  Failures
+     * are not reported; rendering will retry the retrieval itself.
+     * @param context Vert.x context to complete the future on.
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @return Future completed once retrieval has finished.
+     */
+    public Future<Void> prefetchMetadata(
+            Context context, IPixelsPrx iPixels) {
+        if (imageMetadata == null) {
+            return Future.succeededFuture();
+        }
+        return imageMetadata.prefetch(context, iPixels).otherwise(t -> {
+            log.debug("Exception while prefetching image metadata", t);
+            return null;
+        });
+    }
+
+    /**
+     * Raw pixel data request handler.  Reads a single channel of the image
+     * region at the requested resolution level without rendering or
+     * encoding it.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @return Raw pixel data in accordance with the initial settings
+     * provided by <code>imageRegionCtx</code> or <code>null</code> if the
+     * {@link Image} does not exist, the user does not have permissions to
+     * access it or the plane or region is invalid.
+     * @throws CancellationException If the request was cancelled.
+     */
+    public RawPixelData getRawPixelData(IQueryPrx iQuery, IPixelsPrx iPixels) {
+        StopWatch t0 = new MetricsStopWatch(
+                "getRawPixelData", imageRegionCtx.metricsLabels());
+        try {
+            if (imageMetadata == null) {
+                imageMetadata = metadataService.getImageMetadata(
+                        iQuery, imageRegionCtx.omeroSessionKey,
+                        imageRegionCtx.imageId);
+            }
+            if (imageMetadata != null) {
+                return readRawPixelData(iPixels, imageMetadata);
+            }
+            log.debug("Cannot find Image:{}", imageRegionCtx.imageId);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            log.debug("Invalid image region", e);
+        } catch (Exception e) {
+            log.error("Exception while retrieving raw pixel data", e);
         } finally {
             t0.stop();
         }
+        return null;
     }
 
     /**
-     * Retrieves the rendering settings corresponding to the specified pixels
-     * set.
+     * Creates a new {@link Pixels} object, which may be modified, for the
+     * {@link Image} whose metadata has been retrieved.
      * @param iPixels OMERO pixels service to use for metadata access.
-     * @param pixelsId The identifier of the pixels.
+     * @param imageMetadata metadata of the {@link Image}.
      * @return See above.
      */
-    private RenderingDef getRenderingDef(
-            IPixelsPrx iPixels, final long pixelsId) throws ServerError {
-        Map<String, String> ctx = new HashMap<String, String>();
-        ctx.put("omero.group", "-1");
-        return (RenderingDef) mapper.reverse(
-                iPixels.retrieveRndSettings(pixelsId, ctx));
+    private Pixels newPixels(
+            IPixelsPrx iPixels, ImageMetadata imageMetadata)
+                    throws ServerError {
+        Pixels pixels = imageMetadata.newPixels(iPixels);
+        // The series will be used by our version of PixelsService which
+        // avoids attempting to retrieve the series from the database
+        // via IQuery later.
+        Image image = new Image(pixels.getImage().getId(), true);
+        image.setSeries(imageMetadata.getSeries());
+        pixels.setImage(image);
+        return pixels;
+    }
+
+    /**
+     * Reads the raw pixel data of a single channel of the image region
+     * described by <code>imageRegionCtx</code>.
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @param imageMetadata metadata of the {@link Image} to read the raw
+     * pixel data of.
+     * @return See above.
+     * @throws IllegalArgumentException If the plane or region is invalid.
+     */
+    private RawPixelData readRawPixelData(
+            IPixelsPrx iPixels, ImageMetadata imageMetadata)
+                    throws IllegalArgumentException, ServerError,
+                    IOException {
+        Pixels pixels = newPixels(iPixels, imageMetadata);
+        int z = imageRegionCtx.z;
+        int c = imageRegionCtx.channel;
+        int t = imageRegionCtx.t;
+        if (z < 0 || z >= pixels.getSizeZ() || c < 0
+                || c >= pixels.getSizeC() || t < 0 || t >= pixels.getSizeT()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid plane z: %d, c: %d, t: %d", z, c, t));
+        }
+        byte[] data;
+        ByteOrder order;
+        RegionDef region;
+        try (PixelBuffer pixelBuffer = getPixelBuffer(pixels)) {
+            PixelsGeometry geometry =
+                    pixelsGeometryCache.getGeometry(pixels, pixelBuffer);
+            List<List<Integer>> resolutionLevels =
+                    geometry.getResolutionLevels();
+            PlaneDef planeDef = new PlaneDef(PlaneDef.XY, t);
+            planeDef.setZ(z);
+            planeDef.setRegion(
+                    getRegionDef(resolutionLevels, geometry.getTileSize()));
+            checkPlaneDef(resolutionLevels, planeDef);
+            region = planeDef.getRegion();
+            if (region.getWidth() <= 0 || region.getHeight() <= 0) {
+                throw new IllegalArgumentException(
+                        "Region is outside the bounds of the image");
+            }
+            setResolutionLevel(pixelBuffer, resolutionLevels);
+            checkCancelled("read");
+            StopWatch t1 = new MetricsStopWatch(
+                    "PixelBuffer.getTile", imageRegionCtx.metricsLabels());
+            PixelData pixelData = pixelBuffer.getTile(
+                    z, c, t, region.getX(), region.getY(),
+                    region.getWidth(), region.getHeight());
+            try {
+                ByteBuffer buffer = pixelData.getData().duplicate();
+                buffer.rewind();
+                data = new byte[buffer.remaining()];
+                buffer.get(data);
+                order = pixelData.getOrder();
+                data = flip(
+                        data, region.getWidth(), region.getHeight(),
+                        pixelData.bytesPerPixel(),
+                        imageRegionCtx.flipHorizontal,
+                        imageRegionCtx.flipVertical);
+            } finally {
+                pixelData.dispose();
+                t1.stop();
+            }
+        }
+        checkCancelled("compression");
+        return new RawPixelData(
+                deflate(data), pixels.getPixelsType().getValue(), order,
+                region);
+    }
+
+    /**
+     * Deflate compresses raw pixel data if requested by
+     * <code>imageRegionCtx.format</code>.
+     * @param data raw pixel data
+     * @return <code>data</code> compressed if requested.
+     * @throws IOException
+     */
+    private byte[] deflate(byte[] data) throws IOException {
+        if (!ImageRegionCtx.FORMAT_DEFLATE.equals(imageRegionCtx.format)) {
+            return data;
+        }
+        StopWatch t0 = new MetricsStopWatch(
+                "deflate", imageRegionCtx.metricsLabels());
+        // Favour speed; the data is compressed on every request
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (PooledOutputStream output =
+                new PooledOutputStream(data.length / 2)) {
+            DeflaterOutputStream deflaterOutput =
+                    new DeflaterOutputStream(output, deflater);
+            deflaterOutput.write(data);
+            // Closing the deflater stream would release the pooled buffer
+            deflaterOutput.finish();
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+            t0.stop();
+        }
     }
 
     private PixelBuffer getPixelBuffer(Pixels pixels)
             throws ApiUsageException {
-        StopWatch t0 = new Slf4JStopWatch("getPixelBuffer");
+        StopWatch t0 = new MetricsStopWatch(
+                "getPixelBuffer", imageRegionCtx.metricsLabels());
         try {
-            return pixelsService.getPixelBuffer(pixels, false);
+            return pixelBufferCache.getPixelBuffer(pixels);
+        } catch (RuntimeException e) {
+            // The pixel data may have been replaced or removed so any cached
+            // geometry can no longer be trusted
+            if (pixels.getId() != null) {
+                pixelsGeometryCache.invalidate(pixels.getId());
+            }
+            throw e;
         } finally {
             t0.stop();
         }
@@ -225,75 +589,87 @@ public class ImageRegionRequestHandler {
     /**
      * Retrieves a single region from the server in the requested format as
      * defined by <code>imageRegionCtx.format</code>.
-     * @param iQuery OMERO query service to use for metadata access.
      * @param iPixels OMERO pixels service to use for metadata access.
-     * @param pixelsAndSeries {@link Pixels} identifier and Bio-Formats series
-     * to retrieve image region for.
+     * @param imageMetadata metadata of the {@link Image} to retrieve the
+     * image region for.
      * @return Image region as a byte array.
      * @throws QuantizationException
      */
     private byte[] getRegion(
-            IQueryPrx iQuery, IPixelsPrx iPixels, List<RType> pixelsIdAndSeries)
+            IPixelsPrx iPixels, ImageMetadata imageMetadata)
                     throws IllegalArgumentException, ServerError, IOException,
                     QuantizationException {
-        log.debug("Getting image region");
-        Map<String, String> ctx = new HashMap<String, String>();
-        ctx.put("omero.group", "-1");
-        StopWatch t0 = new Slf4JStopWatch(
-                "PixelsService.retrievePixDescription");
-        Pixels pixels;
-        try {
-            long pixelsId =
-                    ((omero.RLong) pixelsIdAndSeries.get(0)).getValue();
-            pixels = (Pixels) mapper.reverse(
-                    iPixels.retrievePixDescription(pixelsId, ctx));
-            // The series will be used by our version of PixelsService which
-            // avoids attempting to retrieve the series from the database
-            // via IQuery later.
-            Image image = new Image(pixels.getImage().getId(), true);
-            image.setSeries(((omero.RInt) pixelsIdAndSeries.get(1)).getValue());
-            pixels.setImage(image);
-        } finally {
-            t0.stop();
-        }
+        return getRegions(
+                iPixels, imageMetadata,
+                Collections.singletonList(imageRegionCtx)).get(0);
+    }
+
+    /**
+     * Retrieves many regions of the same {@link Image} from the server in
+     * the requested format as defined by <code>imageRegionCtx.format</code>.
+     * The rendering settings of <code>imageRegionCtx</code> are used for all
+     * regions and the metadata lookup, {@link Renderer} and
+     * {@link PixelBuffer} are shared between them.
+     * @param iPixels OMERO pixels service to use for metadata access.
+     * @param imageMetadata metadata of the {@link Image} to retrieve the
+     * image regions for.
+     * @param imageRegions image regions to retrieve; differing from
+     * <code>imageRegionCtx</code> only in their plane and region.
+     * @return Image regions as byte arrays in the same order as
+     * <code>imageRegions</code>; an element is <code>null</code> if the
+     * corresponding image region is invalid.
+     * @throws QuantizationException
+     */
+    private List<byte[]> getRegions(
+            IPixelsPrx iPixels, ImageMetadata imageMetadata,
+            List<ImageRegionCtx> imageRegions)
+                    throws ServerError, IOException, QuantizationException {
+        log.debug("Getting {} image region(s)", imageRegions.size());
+        // Both the Pixels and the RenderingDef are new objects as they are
+        // modified during rendering and the originals are cached.
+        Pixels pixels = newPixels(iPixels, imageMetadata);
+        RenderingDef renderingDef = imageMetadata.newRenderingDef(iPixels);
         QuantumFactory quantumFactory = new QuantumFactory(families);
+        ImageRegionCtx settings = imageRegionCtx;
         try (PixelBuffer pixelBuffer = getPixelBuffer(pixels)) {
             renderer = new Renderer(
                 quantumFactory, renderingModels,
-                pixels, getRenderingDef(iPixels, pixels.getId()),
+                pixels, renderingDef,
                 pixelBuffer, lutProvider
             );
-            PlaneDef planeDef = new PlaneDef(PlaneDef.XY, imageRegionCtx.t);
-            planeDef.setZ(imageRegionCtx.z);
-
-            // Avoid asking for resolution descriptions if there is no image
-            // pyramid.  This can be *very* expensive.
-            int countResolutionLevels = pixelBuffer.getResolutionLevels();
-            List<List<Integer>> resolutionLevels;
-            if (countResolutionLevels > 1) {
-                resolutionLevels = pixelBuffer.getResolutionDescriptions();
-            } else {
-                resolutionLevels = new ArrayList<List<Integer>>();
-                resolutionLevels.add(
-                        Arrays.asList(pixels.getSizeX(), pixels.getSizeY()));
-            }
-            planeDef.setRegion(getRegionDef(resolutionLevels, pixelBuffer));
-            setResolutionLevel(renderer, resolutionLevels);
-            if (imageRegionCtx.compressionQuality != null) {
-                compressionSrv.setCompressionLevel(
-                        imageRegionCtx.compressionQuality);
-            }
+
+            PixelsGeometry geometry =
+                    pixelsGeometryCache.getGeometry(pixels, pixelBuffer);
+            List<List<Integer>> resolutionLevels =
+                    geometry.getResolutionLevels();
             updateSettings(renderer);
-            StopWatch t1 = new Slf4JStopWatch("render");
-            try {
-                // The actual act of rendering will close the provided pixel
-                // buffer.  However, just in case an exception is thrown before
-                // reaching this point a double close may occur due to the
-                // surrounding try-with-resources block.
-                return render(renderer, resolutionLevels, pixels, planeDef);
-            } finally {
-                t1.stop();
+
+            List<byte[]> regions = new ArrayList<byte[]>(imageRegions.size());
+            for (ImageRegionCtx region : imageRegions) {
+                // Plane and region specific state is read from the context
+                // throughout rendering
+                imageRegionCtx = region;
+                PlaneDef planeDef =
+                        new PlaneDef(PlaneDef.XY, imageRegionCtx.t);
+                planeDef.setZ(imageRegionCtx.z);
+                StopWatch t1 = new MetricsStopWatch(
+                        "render", imageRegionCtx.metricsLabels());
+                try {
+                    planeDef.setRegion(getRegionDef(
+                            resolutionLevels, geometry.getTileSize()));
+                    setResolutionLevel(renderer, resolutionLevels);
+                    regions.add(render(
+                            renderer, resolutionLevels, pixels, planeDef));
+                } catch (IllegalArgumentException e) {
+                    log.debug("Invalid image region", e);
+                    regions.add(null);
+                } finally {
+                    t1.stop();
+                }
             }
+            return regions;
+        } finally {
+            imageRegionCtx = settings;
         }
     }
 
@@ -315,16 +691,25 @@ public class ImageRegionRequestHandler {
             Pixels pixels, PlaneDef planeDef)
                     throws ServerError, IOException, QuantizationException {
         checkPlaneDef(resolutionLevels, planeDef);
+        checkCancelled("read");
+        RegionDef region = planeDef.getRegion();
+        int sizeX = region != null? region.getWidth() : pixels.getSizeX();
+        int sizeY = region != null? region.getHeight() : pixels.getSizeY();
 
-        StopWatch t0 = new Slf4JStopWatch("Renderer.renderAsPackedInt");
+        StopWatch t0 = new MetricsStopWatch(
+                "Renderer.renderAsPackedInt", imageRegionCtx.metricsLabels());
         int[] buf;
         try {
             PixelBuffer newBuffer = null;
             if (imageRegionCtx.projection != null) {
                 byte[][][][] planes = new byte[1][pixels.getSizeC()][1][];
-                int projectedSizeC = 0;
                 ChannelBinding[] channelBindings =
                         renderer.getChannelBindings();
+                int[] activeChannels = IntStream
+                        .range(0, channelBindings.length)
+                        .filter(i -> channelBindings[i].getActive())
+                        .toArray();
+                int projectedSizeC = activeChannels.length;
                 PixelBuffer pixelBuffer = getPixelBuffer(pixels);
                 int start = Optional
                         .ofNullable(imageRegionCtx.projectionStart)
@@ -333,27 +718,33 @@ public class ImageRegionRequestHandler {
                         .ofNullable(imageRegionCtx.projectionEnd)
                         .orElse(pixels.getSizeZ() - 1);
                 try {
-                    for (int i = 0; i < channelBindings.length; i++) {
-                        if (!channelBindings[i].getActive()) {
-                            continue;
-                        }
-                        StopWatch t1 = new Slf4JStopWatch(
-                                "ProjectionService.projectStack");
-                        try {
-                            planes[0][i][0] = projectionService.projectStack(
-                                pixels,
-                                pixelBuffer,
-                                imageRegionCtx.projection.ordinal(),
-                                imageRegionCtx.t,
-                                i,  // Channel index
-                                1,  // Stepping 1 in ImageWrapper.renderJpeg()
-                                start,
-                                end
-                            );
-                        } finally {
-                            t1.stop();
+                    // Only the requested region of each optical section, at
+                    // the requested resolution level, is read and projected
+                    if (imageRegionCtx.resolution != null) {
+                        pixelBuffer.setResolutionLevel(
+                                resolutionLevels.size()
+                                - imageRegionCtx.resolution - 1);
+                    }
+                    StopWatch t1 = new MetricsStopWatch(
+                            "ProjectionService.projectStacks",
+                            imageRegionCtx.metricsLabels());
+                    try {
+                        byte[][] projected = projectionService.projectStacks(
+                            pixels,
+                            pixelBuffer,
+                            imageRegionCtx.projection.ordinal(),
+                            imageRegionCtx.t,
+                            activeChannels,
+                            1,  // Stepping 1 in ImageWrapper.renderJpeg()
+                            start,
+                            end,
+                            region
+                        );
+                        for (int i = 0; i < activeChannels.length; i++) {
+                            planes[0][activeChannels[i]][0] = projected[i];
                         }
-                        projectedSizeC++;
+                    } finally {
+                        t1.stop();
                     }
                 } finally {
                     pixelBuffer.close();
@@ -361,8 +752,8 @@ public class ImageRegionRequestHandler {
                 Pixels projectedPixels = new Pixels(
                     pixels.getImage(),
                     pixels.getPixelsType(),
-                    pixels.getSizeX(),
-                    pixels.getSizeY(),
+                    sizeX,
+                    sizeY,
                     1,  // Z
                     projectedSizeC,
                     1,  // T
@@ -373,6 +764,7 @@ public class ImageRegionRequestHandler {
                         projectedPixels, planes);
                 planeDef = new PlaneDef(PlaneDef.XY, 0);
                 planeDef.setZ(0);
+                checkCancelled("quantization");
             }
             buf =  renderer.renderAsPackedInt(planeDef, newBuffer);
         } finally {
@@ -385,51 +777,56 @@ public class ImageRegionRequestHandler {
             }
         }
 
-        String format = imageRegionCtx.format;
-        RegionDef region = planeDef.getRegion();
-        int sizeX = region != null? region.getWidth() : pixels.getSizeX();
-        int sizeY = region != null? region.getHeight() : pixels.getSizeY();
+        checkCancelled("encoding");
         buf = flip(buf, sizeX, sizeY,
                 imageRegionCtx.flipHorizontal, imageRegionCtx.flipVertical);
-        BufferedImage image = ImageUtil.createBufferedImage(
-            buf, sizeX, sizeY
-        );
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        if (format.equals("jpeg")) {
-            compressionSrv.compressToStream(image, output);
-            return output.toByteArray();
-        } else if (format.equals("png") || format.equals("tif")) {
-            if (format.equals("tif")) {
-                try (ImageOutputStream ios =
-                        ImageIO.createImageOutputStream(output)) {
-                    IIORegistry registry = IIORegistry.getDefaultInstance();
-                    registry.registerServiceProviders(
-                            ServiceRegistry.lookupProviders(
-                                    TIFFImageWriterSpi.class));
-                    TIFFImageWriterSpi spi = registry.getServiceProviderByClass(
-                            TIFFImageWriterSpi.class);
-                    TIFFImageWriter writer = new TIFFImageWriter(spi);
-                    writer.setOutput(ios);
-                    writer.write(null, new IIOImage(image, null, null), null);
-                }
-            } else {
-                ImageIO.write(image, "png", output);
-            }
+        StopWatch t1 = new MetricsStopWatch(
+                "encode", imageRegionCtx.metricsLabels());
+        try {
+            return encode(buf, sizeX, sizeY);
+        } finally {
+            t1.stop();
+        }
+    }
+
+    /**
+     * Encodes a rendered image region in the requested format as defined by
+     * <code>imageRegionCtx.format</code>.
+     * @param buf rendered image region as packed integers
+     * @param sizeX width of the image region
+     * @param sizeY height of the image region
+     * @return Encoded image region as a byte array or <code>null</code> if
+     * the format is unknown.
+     * @throws IOException
+     */
+    protected byte[] encode(int[] buf, int sizeX, int sizeY)
+            throws IOException {
+        String format = imageRegionCtx.format;
+        if (!encoder.canEncode(format)) {
+            log.error("Unknown format {}", imageRegionCtx.format);
+            return null;
+        }
+        // Encoders write into a pooled buffer sized for roughly one byte
+        // per pixel and the result is copied out exactly once
+        try (PooledOutputStream output =
+                new PooledOutputStream(sizeX * sizeY)) {
+            encoder.encode(
+                    buf, sizeX, sizeY, format,
+                    imageRegionCtx.compressionQuality, output);
             return output.toByteArray();
         }
-        log.error("Unknown format {}", imageRegionCtx.format);
-        return null;
     }
 
     /**
-     * Flip an image horizontally, vertically, or both.
+     * Flip an image horizontally, vertically, or both, in place.  Rows are
+     * processed in memory order; vertical flips exchange whole rows and
+     * horizontal flips reverse each row.
      * @param src source image buffer
      * @param sizeX size of <code>src</code> in X (number of columns)
      * @param sizeY size of <code>src</code> in Y (number of rows)
      * @param flipHorizontal whether or not to flip the image horizontally
      * @param flipVertical whether or not to flip the image vertically
-     * @return Newly allocated buffer with flipping applied or <code>src</code>
-     * if no flipping has been requested.
+     * @return <code>src</code> with flipping applied.
      */
     public static int[] flip(
             int[] src, int sizeX, int sizeY,
@@ -444,16 +841,75 @@ public class ImageRegionRequestHandler {
             throw new IllegalArgumentException("Attempted to flip image with 0 size");
         }
 
-        int[] dest = new int[src.length];
-        int srcIndex, destIndex;
-        int xOffset = flipHorizontal? sizeX : 1;
-        int yOffset = flipVertical? sizeY : 1;
-        for (int x = 0; x < sizeX; x++) {
+        int swap;
+        if (flipHorizontal && flipVertical) {
+            // Flipping in both dimensions reverses the entire image
+            for (int left = 0, right = sizeX * sizeY - 1; left < right;
+                    left++, right--) {
+                swap = src[left];
+                src[left] = src[right];
+                src[right] = swap;
+            }
+        } else if (flipVertical) {
+            int[] row = new int[sizeX];
+            for (int top = 0, bottom = sizeY - 1; top < bottom;
+                    top++, bottom--) {
+                int topIndex = top * sizeX;
+                int bottomIndex = bottom * sizeX;
+                System.arraycopy(src, topIndex, row, 0, sizeX);
+                System.arraycopy(src, bottomIndex, src, topIndex, sizeX);
+                System.arraycopy(row, 0, src, bottomIndex, sizeX);
+            }
+        } else {
             for (int y = 0; y < sizeY; y++) {
-                srcIndex = (y * sizeX) + x;
-                destIndex = Math.abs(((yOffset - y - 1) * sizeX))
-                        + Math.abs((xOffset - x - 1));
-                dest[destIndex] = src[srcIndex];
+                for (int left = y * sizeX, right = left + sizeX - 1;
+                        left < right; left++, right--) {
+                    swap = src[left];
+                    src[left] = src[right];
+                    src[right] = swap;
+                }
+            }
+        }
+        return src;
+    }
+
+    /**
+     * Flip raw pixel data horizontally, vertically, or both.
+     * @param src source pixel data
+     * @param sizeX size of <code>src</code> in X (number of columns)
+     * @param sizeY size of <code>src</code> in Y (number of rows)
+     * @param bytesPerPixel number of bytes used to store each pixel
+     * @param flipHorizontal whether or not to flip the image horizontally
+     * @param flipVertical whether or not to flip the image vertically
+     * @return <code>src</code> if no flipping is required, otherwise a new
+     * array with flipping applied.
+     */
+    public static byte[] flip(
+            byte[] src, int sizeX, int sizeY, int bytesPerPixel,
+            boolean flipHorizontal, boolean flipVertical) {
+        if (!flipHorizontal && !flipVertical) {
+            return src;
+        }
+
+        if (src == null) {
+            throw new IllegalArgumentException("Attempted to flip null image");
+        } else if (sizeX == 0 || sizeY == 0) {
+            throw new IllegalArgumentException("Attempted to flip image with 0 size");
+        }
+
+        int rowLength = sizeX * bytesPerPixel;
+        byte[] dest = new byte[src.length];
+        for (int y = 0; y < sizeY; y++) {
+            int srcRow = (flipVertical? sizeY - y - 1 : y) * rowLength;
+            int destRow = y * rowLength;
+            if (!flipHorizontal) {
+                System.arraycopy(src, srcRow, dest, destRow, rowLength);
+                continue;
+            }
+            for (int x = 0; x < sizeX; x++) {
+                System.arraycopy(
+                        src, srcRow + (sizeX - x - 1) * bytesPerPixel,
+                        dest, destRow + x * bytesPerPixel, bytesPerPixel);
             }
         }
         return dest;
@@ -612,13 +1068,27 @@ public class ImageRegionRequestHandler {
     protected RegionDef getRegionDef(
             List<List<Integer>> resolutionLevels, PixelBuffer pixelBuffer)
                     throws IllegalArgumentException, ServerError {
+        return getRegionDef(resolutionLevels, pixelBuffer.getTileSize());
+    }
+
+    /**
+     * Returns RegionDef to read based on tile / region provided in
+     * ImageRegionCtx.
+     * @param resolutionLevels complete definition of all resolution levels
+     * @param imageTileSize tile size of the image
+     * @return RegionDef {@link RegionDef} describing image region to read
+     * @throws IllegalArgumentException
+     * @throws ServerError
+     */
+    protected RegionDef getRegionDef(
+            List<List<Integer>> resolutionLevels, Dimension imageTileSize)
+                    throws IllegalArgumentException, ServerError {
         log.debug("Setting region to read");
         int resolution =
                 Optional.ofNullable(imageRegionCtx.resolution).orElse(0);
         int sizeX = resolutionLevels.get(resolution).get(0);
         int sizeY = resolutionLevels.get(resolution).get(1);
         RegionDef regionDef = new RegionDef();
-        Dimension imageTileSize = pixelBuffer.getTileSize();
         if (imageRegionCtx.tile != null) {
             int tileSizeX = imageRegionCtx.tile.getWidth();
             int tileSizeY = imageRegionCtx.tile.getHeight();
@@ -676,6 +1146,29 @@ public class ImageRegionRequestHandler {
                     resolutionLevels.size() - imageRegionCtx.resolution - 1;
             log.debug("Setting resolution level to: {}", level);
             renderer.setResolutionLevel(level);
+        } else if (resolutionLevels.size() > 1) {
+            // Pixel buffers, and so renderers, may be reused and left at
+            // any resolution level; default to full resolution
+            renderer.setResolutionLevel(resolutionLevels.size() - 1);
+        }
+    }
+
+    /**
+     * Sets the pyramid resolution level on the <code>pixelBuffer</code>
+     * @param pixelBuffer raw pixel data access buffer
+     * @param resolutionLevels complete definition of all resolution levels for
+     * the image.
+     */
+    private void setResolutionLevel(
+            PixelBuffer pixelBuffer,
+            List<List<Integer>> resolutionLevels) {
+        if (imageRegionCtx.resolution != null) {
+            pixelBuffer.setResolutionLevel(
+                    resolutionLevels.size() - imageRegionCtx.resolution - 1);
+        } else if (resolutionLevels.size() > 1) {
+            // Pixel buffers may be reused and left at any resolution level;
+            // default to full resolution
+            pixelBuffer.setResolutionLevel(resolutionLevels.size() - 1);
         }
     }
 
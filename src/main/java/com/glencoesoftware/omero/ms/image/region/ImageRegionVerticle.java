@@ -19,33 +19,47 @@
 package com.glencoesoftware.omero.ms.image.region;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.stream.Collectors;
 
 import org.perf4j.StopWatch;
-import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.glencoesoftware.omero.ms.core.OmeroRequest;
+import com.glencoesoftware.omero.ms.core.RedisCacheVerticle;
+import com.glencoesoftware.omero.ms.image.region.ImageRegionRequestHandler.RawPixelData;
+import com.glencoesoftware.omero.ms.image.region.OmeroClientPool.PooledRequest;
 
 import Glacier2.CannotCreateSessionException;
 import Glacier2.PermissionDeniedException;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
 import ome.model.enums.Family;
 import ome.model.enums.RenderingModel;
 import ome.services.scripts.ScriptFileType;
 import ome.system.PreferenceContext;
-import ome.api.local.LocalCompress;
-import ome.io.nio.PixelsService;
+import omeis.providers.re.data.RegionDef;
 import omeis.providers.re.lut.LutProvider;
 import omero.ApiUsageException;
 import omero.ServerError;
+import omero.api.IPixelsPrx;
 import omero.util.IceMapper;
 
 public class ImageRegionVerticle extends AbstractVerticle {
@@ -56,14 +70,71 @@ public class ImageRegionVerticle extends AbstractVerticle {
     public static final String RENDER_IMAGE_REGION_EVENT =
             "omero.render_image_region";
 
+    /**
+     * Event bus address for image region requests which have been
+     * classified as expensive
+     */
+    public static final String RENDER_IMAGE_REGION_BULK_EVENT =
+            "omero.render_image_region.bulk";
+
+    /**
+     * Suffix appended to the event bus address of a lane to form the
+     * address for batches of image region requests in that lane
+     */
+    public static final String BATCH_ADDRESS_SUFFIX = ".batch";
+
+    /**
+     * Suffix appended to the event bus address of a lane to form the
+     * address for raw pixel data requests in that lane
+     */
+    public static final String RAW_PIXEL_DATA_ADDRESS_SUFFIX = ".raw";
+
+    /** Reply header carrying the OMERO pixels type of raw pixel data */
+    public static final String PIXELS_TYPE_HEADER = "X-Pixels-Type";
+
+    /**
+     * Reply header carrying the byte order, <code>big-endian</code> or
+     * <code>little-endian</code>, of raw pixel data
+     */
+    public static final String BYTE_ORDER_HEADER = "X-Byte-Order";
+
+    /**
+     * Reply header carrying the region, <code>x,y,width,height</code>, of
+     * the resolution level that raw pixel data was read from
+     */
+    public static final String REGION_HEADER = "X-Region";
+
     public static final String RENDER_IMAGE_REGION_PNG_EVENT =
             "omero.render_image_region_png";
 
-    /** OMERO server host */
-    private final String host;
+    /**
+     * Failure code for requests which have been cancelled, typically because
+     * the client has disconnected, and will not be completed
+     */
+    public static final int CANCELLED = 499;
+
+    /** Delivery options for replies which avoid copying the reply body */
+    private static final DeliveryOptions LOCAL_BYTE_ARRAY =
+            new DeliveryOptions().setCodecName(
+                    LocalByteArrayMessageCodec.NAME);
+
+    /** Pool of OMERO clients joined to OMERO sessions */
+    private final OmeroClientPool clientPool;
+
+    /** Admission control for image region requests */
+    private final AdmissionController admissionController;
 
-    /** OMERO server port */
-    private final int port;
+    /** Event bus address image region requests are consumed from */
+    private final String address;
+
+    /** Cache of open pixel buffers */
+    private final PixelBufferCache pixelBufferCache;
+
+    /** Cache of pyramid geometry */
+    private final PixelsGeometryCache pixelsGeometryCache;
+
+    /** Encoder for rendered image regions */
+    private final ImageEncoder encoder;
 
     /** OMERO server Spring application context. */
     private ApplicationContext context;
@@ -95,16 +166,48 @@ public class ImageRegionVerticle extends AbstractVerticle {
     /** Configured maximum size size in either dimension */
     private final int maxTileLength;
 
+    /** Image metadata service */
+    private ImageMetadataService metadataService;
+
+    /**
+     * Dedicated pool for projections so that they do not occupy Vert.x
+     * worker threads beyond the one waiting for the result
+     */
+    private ForkJoinPool projectionPool;
+
+    /** Projection service */
+    private ProjectionService projectionService;
+
+    /** In flight renders keyed by image region cache key */
+    private final ConcurrentHashMap<String, InFlightRender> inFlightRenders =
+            new ConcurrentHashMap<String, InFlightRender>();
+
     /**
      * Default constructor.
-     * @param host OMERO server host.
-     * @param port OMERO server port.
+     * @param clientPool pool of OMERO clients to use for OMERO server access.
+     * @param context OMERO server Spring application context.
+     * @param admissionController admission control for image region
+     * requests, used to record the time requests spend queued.
+     * @param address event bus address to consume image region requests
+     * from, one of {@link #RENDER_IMAGE_REGION_EVENT} or
+     * {@link #RENDER_IMAGE_REGION_BULK_EVENT}.
+     * @param pixelBufferCache cache of open pixel buffers.
+     * @param pixelsGeometryCache cache of pyramid geometry.
+     * @param encoder encoder for rendered image regions.
      */
     public ImageRegionVerticle(
-            String host, int port, ApplicationContext context)
+            OmeroClientPool clientPool, ApplicationContext context,
+            AdmissionController admissionController, String address,
+            PixelBufferCache pixelBufferCache,
+            PixelsGeometryCache pixelsGeometryCache,
+            ImageEncoder encoder)
     {
-        this.host = host;
-        this.port = port;
+        this.clientPool = clientPool;
+        this.admissionController = admissionController;
+        this.address = address;
+        this.pixelBufferCache = pixelBufferCache;
+        this.pixelsGeometryCache = pixelsGeometryCache;
+        this.encoder = encoder;
         this.context = context;
         this.preferences =
                 (PreferenceContext) this.context.getBean("preferenceContext");
@@ -123,40 +226,103 @@ public class ImageRegionVerticle extends AbstractVerticle {
      */
     @Override
     public void start() {
-        log.info("Starting verticle");
+        log.info("Starting verticle consuming: {}", address);
 
-        vertx.eventBus().<String>consumer(
-                RENDER_IMAGE_REGION_EVENT, event -> {
-                    renderImageRegion(event);
+        // Image metadata is retrieved directly from the OMERO database
+        // only if configured
+        JsonObject jdbcMetadata = config().getJsonObject("jdbc-metadata");
+        if (jdbcMetadata != null && jdbcMetadata.getBoolean("enabled", false)) {
+            metadataService = JdbcImageMetadataService.fromConfig(
+                    config().getJsonObject("image-metadata-cache"),
+                    jdbcMetadata, context);
+        } else {
+            metadataService = ImageMetadataService.fromConfig(
+                    config().getJsonObject("image-metadata-cache"));
+        }
+        // Image regions rendered with superseded rendering settings are
+        // removed from the tile cache
+        metadataService.setRenderingDefChangedHandler(imageId -> {
+            vertx.eventBus().publish(TileCache.INVALIDATE_EVENT, imageId);
+        });
+
+        int projectionParallelism = config().getInteger(
+                "projection-parallelism",
+                Runtime.getRuntime().availableProcessors());
+        log.info("Projection parallelism: {}", projectionParallelism);
+        projectionPool = new ForkJoinPool(
+                projectionParallelism,
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool
+                            .defaultForkJoinWorkerThreadFactory
+                            .newThread(pool);
+                    thread.setName("projection-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null, false);
+        projectionService = new ProjectionService(true, projectionPool);
+
+        vertx.eventBus().<ImageRegionCtx>consumer(address, event -> {
+            renderImageRegion(event);
+        });
+        vertx.eventBus().<ImageRegionBatchCtx>consumer(
+                address + BATCH_ADDRESS_SUFFIX, event -> {
+                    renderImageRegionBatch(event);
+                });
+        vertx.eventBus().<ImageRegionCtx>consumer(
+                address + RAW_PIXEL_DATA_ADDRESS_SUFFIX, event -> {
+                    getRawPixelData(event);
                 });
     }
 
+    /* (non-Javadoc)
+     * @see io.vertx.core.AbstractVerticle#stop()
+     */
+    @Override
+    public void stop() {
+        if (projectionPool != null) {
+            projectionPool.shutdown();
+        }
+    }
+
     /**
      * Render Image region event handler. Responds with a
      * request body on success based on the <code>format</code>
      * <code>imageId</code>, <code>z</code> and <code>t</code> encoded in the
      * URL or HTTP 404 if the {@link Image} does not exist or the user
      * does not have permissions to access it.
-     * @param event Current routing context.
-     * @param message JSON encoded {@link ImageRegionCtx} object.
+     * @param message {@link ImageRegionCtx} object.
      */
-    private void renderImageRegion(Message<String> message) {
-        ObjectMapper mapper = new ObjectMapper();
-        ImageRegionCtx imageRegionCtx;
+    private void renderImageRegion(Message<ImageRegionCtx> message) {
+        admissionController.dequeued(message);
+        ImageRegionCtx imageRegionCtx = message.body();
+        if (log.isDebugEnabled()) {
+            log.debug("Render image region request with data: {}",
+                    Json.encode(imageRegionCtx));
+        }
+        // Drop requests which were cancelled while queued
+        if (imageRegionCtx.isCancelled()) {
+            log.debug("Dropping cancelled image region request");
+            message.fail(CANCELLED, "Request cancelled");
+            return;
+        }
+
+        PooledRequest request;
         try {
-            imageRegionCtx = mapper.readValue(
-                    message.body(), ImageRegionCtx.class);
+            request = clientPool.borrow(imageRegionCtx.omeroSessionKey);
+        } catch (PermissionDeniedException
+                | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+            return;
         } catch (Exception e) {
-            String v = "Illegal image region context";
-            log.error(v + ": {}", message.body(), e);
-            message.fail(400, v);
+            String v = "Exception while retrieving image region";
+            log.error(v, e);
+            message.fail(500, v);
             return;
         }
-        log.debug(
-            "Render image region request with data: {}", message.body());
-        try (OmeroRequest request = new OmeroRequest(
-                 host, port, imageRegionCtx.omeroSessionKey))
-        {
+
+        try {
             if (families == null) {
                 request.execute(this::updateFamilies);
             }
@@ -164,35 +330,515 @@ public class ImageRegionVerticle extends AbstractVerticle {
                 request.execute(this::updateRenderingModels);
             }
 
-            PixelsService pixelsService = (PixelsService) context.getBean("/OMERO/Pixels");
-            LocalCompress compressionService =
-                (LocalCompress) context.getBean("internal-ome.api.ICompress");
-            byte[] imageRegion = request.execute(
-                    new ImageRegionRequestHandler(
-                            imageRegionCtx, context, families,
-                            renderingModels, lutProvider,
-                            pixelsService,
-                            compressionService,
-                            maxTileLength)::renderImageRegion);
-            if (imageRegion == null) {
-                message.fail(
-                        404, "Cannot find Image:" + imageRegionCtx.imageId);
-            } else {
-                message.reply(imageRegion);
+            ImageRegionRequestHandler requestHandler =
+                    createRequestHandler(imageRegionCtx);
+
+            // Checks we have permissions to access the image and retrieves
+            // the state and identity of its rendering settings, which form
+            // part of the cache key, along with the rest of the metadata
+            // required for rendering.  No worker thread is held while
+            // waiting on the server.
+            Context vertxContext = vertx.getOrCreateContext();
+            IPixelsPrx iPixels = request.getPixelsService();
+            requestHandler.getRenderingDefUpdateTimeAsync(
+                    vertxContext, request.getQueryService()
+            ).setHandler(updateTime -> {
+                if (updateTime.result() == null) {
+                    lookupImageRegion(
+                            message, imageRegionCtx, request, requestHandler,
+                            null);
+                    return;
+                }
+                requestHandler.prefetchMetadata(vertxContext, iPixels)
+                    .setHandler(result -> {
+                        lookupImageRegion(
+                                message, imageRegionCtx, request,
+                                requestHandler, updateTime.result());
+                    });
+            });
+        } catch (Exception e) {
+            request.close();
+            String v = "Exception while retrieving image region";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Looks up an image region in the cache once the state and identity of
+     * the rendering settings of its {@link Image} are known.
+     * @param message {@link ImageRegionCtx} object.
+     * @param imageRegionCtx image region context.
+     * @param request OMERO request to use for rendering.
+     * @param requestHandler request handler to use for rendering.
+     * @param updateTime update time of the rendering settings or
+     * <code>null</code> if the {@link Image} does not exist or the user does
+     * not have permissions to access it.
+     */
+    private void lookupImageRegion(
+            Message<ImageRegionCtx> message, ImageRegionCtx imageRegionCtx,
+            PooledRequest request, ImageRegionRequestHandler requestHandler,
+            Long updateTime) {
+        if (updateTime == null) {
+            request.close();
+            message.fail(404, "Cannot find Image:" + imageRegionCtx.imageId);
+            return;
+        }
+        Long renderingDefId = requestHandler.getRenderingDefId();
+        if (renderingDefId == null) {
+            // The rendering settings could not be retrieved so neither the
+            // cache key nor the render is possible
+            request.close();
+            message.fail(500, "Exception while retrieving image region");
+            return;
+        }
+        try {
+            String key = imageRegionCtx.cacheKey(renderingDefId, updateTime);
+            vertx.eventBus().<byte[]>send(
+                RedisCacheVerticle.REDIS_CACHE_GET_EVENT, key, result -> {
+                    byte[] imageRegion =
+                            result.succeeded()? result.result().body() : null;
+                    renderImageRegion(
+                            message, imageRegionCtx, request, requestHandler,
+                            key, imageRegion);
+                }
+            );
+        } catch (Exception e) {
+            request.close();
+            String v = "Exception while retrieving image region";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Creates a request handler for an image region request.
+     * @param imageRegionCtx image region context of the request.
+     * @return See above.
+     */
+    private ImageRegionRequestHandler createRequestHandler(
+            ImageRegionCtx imageRegionCtx) {
+        return new ImageRegionRequestHandler(
+                imageRegionCtx, context, families,
+                renderingModels, lutProvider,
+                pixelBufferCache,
+                pixelsGeometryCache,
+                encoder,
+                maxTileLength,
+                metadataService,
+                projectionService);
+    }
+
+    /**
+     * Render image region batch event handler.  Responds with the encoded
+     * image regions, in request order, each prefixed by its length as a
+     * four byte big endian integer; invalid image regions have a length of
+     * <code>-1</code> and no body.  Responds with HTTP 404 if the
+     * {@link Image} does not exist or the user does not have permissions to
+     * access it.  Image regions in a batch are neither looked up in nor
+     * added to the cache.
+     * @param message {@link ImageRegionBatchCtx} object.
+     */
+    private void renderImageRegionBatch(
+            Message<ImageRegionBatchCtx> message) {
+        admissionController.dequeued(message);
+        ImageRegionBatchCtx imageRegionBatchCtx = message.body();
+        if (log.isDebugEnabled()) {
+            log.debug("Render image region batch request with data: {}",
+                    Json.encode(imageRegionBatchCtx));
+        }
+        if (imageRegionBatchCtx.isCancelled()) {
+            log.debug("Dropping cancelled image region batch request");
+            message.fail(CANCELLED, "Request cancelled");
+            return;
+        }
+
+        PooledRequest request;
+        try {
+            request = clientPool.borrow(imageRegionBatchCtx.omeroSessionKey);
+        } catch (PermissionDeniedException
+                | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+            return;
+        } catch (Exception e) {
+            String v = "Exception while retrieving image regions";
+            log.error(v, e);
+            message.fail(500, v);
+            return;
+        }
+
+        try {
+            if (families == null) {
+                request.execute(this::updateFamilies);
             }
+            if (renderingModels == null) {
+                request.execute(this::updateRenderingModels);
+            }
+
+            ImageRegionRequestHandler requestHandler = createRequestHandler(
+                    imageRegionBatchCtx.imageRegions.get(0));
+            requestHandler.setCancelled(imageRegionBatchCtx::isCancelled);
+
+            // Retrieve the metadata required for rendering without holding
+            // a worker thread; only pixel I/O and rendering are performed on
+            // one
+            Context vertxContext = vertx.getOrCreateContext();
+            IPixelsPrx iPixels = request.getPixelsService();
+            requestHandler.getRenderingDefUpdateTimeAsync(
+                    vertxContext, request.getQueryService()
+            ).setHandler(updateTime -> {
+                if (updateTime.result() == null) {
+                    request.close();
+                    message.fail(404, "Cannot find Image:"
+                            + imageRegionBatchCtx.imageId);
+                    return;
+                }
+                requestHandler.prefetchMetadata(vertxContext, iPixels)
+                    .setHandler(result -> {
+                        renderImageRegionBatch(
+                                message, imageRegionBatchCtx, request,
+                                requestHandler);
+                    });
+            });
+        } catch (Exception e) {
+            request.close();
+            String v = "Exception while retrieving image regions";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Renders a batch of image regions once the metadata required for
+     * rendering has been retrieved and then closes the request.
+     * @param message {@link ImageRegionBatchCtx} object.
+     * @param imageRegionBatchCtx image region batch context.
+     * @param request OMERO request to use for rendering.
+     * @param requestHandler request handler to use for rendering.
+     */
+    private void renderImageRegionBatch(
+            Message<ImageRegionBatchCtx> message,
+            ImageRegionBatchCtx imageRegionBatchCtx, PooledRequest request,
+            ImageRegionRequestHandler requestHandler) {
+        try (PooledRequest r = request) {
+            List<byte[]> rendered = requestHandler.renderImageRegions(
+                    request.getQueryService(), request.getPixelsService(),
+                    imageRegionBatchCtx.imageRegions);
+            if (rendered == null) {
+                message.fail(404, "Cannot find Image:"
+                        + imageRegionBatchCtx.imageId);
+                return;
+            }
+
+            int length = 0;
+            for (byte[] imageRegion : rendered) {
+                length += 4 + (imageRegion == null? 0 : imageRegion.length);
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            for (byte[] imageRegion : rendered) {
+                if (imageRegion == null) {
+                    body.putInt(-1);
+                } else {
+                    body.putInt(imageRegion.length);
+                    body.put(imageRegion);
+                }
+            }
+            message.reply(body.array(), LOCAL_BYTE_ARRAY);
+        } catch (CancellationException e) {
+            message.fail(CANCELLED, "Request cancelled");
+        } catch (Exception e) {
+            String v = "Exception while retrieving image regions";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Raw pixel data event handler.  Responds with the raw, unrendered,
+     * pixel data of a single channel of an image region, described by
+     * reply headers, on success or HTTP 404 if the {@link Image} does not
+     * exist, the user does not have permissions to access it or the plane
+     * or region is invalid.  Raw pixel data is not cached.
+     * @param message {@link ImageRegionCtx} object.
+     */
+    private void getRawPixelData(Message<ImageRegionCtx> message) {
+        admissionController.dequeued(message);
+        ImageRegionCtx imageRegionCtx = message.body();
+        if (log.isDebugEnabled()) {
+            log.debug("Raw pixel data request with data: {}",
+                    Json.encode(imageRegionCtx));
+        }
+        if (imageRegionCtx.isCancelled()) {
+            log.debug("Dropping cancelled raw pixel data request");
+            message.fail(CANCELLED, "Request cancelled");
+            return;
+        }
+
+        PooledRequest request;
+        try {
+            request = clientPool.borrow(imageRegionCtx.omeroSessionKey);
         } catch (PermissionDeniedException
                 | CannotCreateSessionException e) {
             String v = "Permission denied";
             log.debug(v);
             message.fail(403, v);
-        } catch (IllegalArgumentException e) {
-            log.debug(
-                "Illegal argument received while retrieving image region", e);
-            message.fail(400, e.getMessage());
+            return;
+        } catch (Exception e) {
+            String v = "Exception while retrieving raw pixel data";
+            log.error(v, e);
+            message.fail(500, v);
+            return;
+        }
+
+        try {
+            ImageRegionRequestHandler requestHandler =
+                    createRequestHandler(imageRegionCtx);
+
+            // Retrieve the metadata required for reading without holding a
+            // worker thread; only pixel I/O is performed on one
+            Context vertxContext = vertx.getOrCreateContext();
+            IPixelsPrx iPixels = request.getPixelsService();
+            requestHandler.getRenderingDefUpdateTimeAsync(
+                    vertxContext, request.getQueryService()
+            ).setHandler(updateTime -> {
+                if (updateTime.result() == null) {
+                    request.close();
+                    message.fail(404, "Cannot find Image:"
+                            + imageRegionCtx.imageId);
+                    return;
+                }
+                requestHandler.prefetchMetadata(vertxContext, iPixels)
+                    .setHandler(result -> {
+                        getRawPixelData(
+                                message, imageRegionCtx, request,
+                                requestHandler);
+                    });
+            });
+        } catch (Exception e) {
+            request.close();
+            String v = "Exception while retrieving raw pixel data";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Reads raw pixel data once the metadata required has been retrieved
+     * and then closes the request.
+     * @param message {@link ImageRegionCtx} object.
+     * @param imageRegionCtx image region context.
+     * @param request OMERO request to use for reading.
+     * @param requestHandler request handler to use for reading.
+     */
+    private void getRawPixelData(
+            Message<ImageRegionCtx> message, ImageRegionCtx imageRegionCtx,
+            PooledRequest request, ImageRegionRequestHandler requestHandler) {
+        try (PooledRequest r = request) {
+            RawPixelData rawPixelData = requestHandler.getRawPixelData(
+                    request.getQueryService(), request.getPixelsService());
+            if (rawPixelData == null) {
+                message.fail(404, "Cannot find Image:"
+                        + imageRegionCtx.imageId);
+                return;
+            }
+            RegionDef region = rawPixelData.region;
+            message.reply(rawPixelData.data, new DeliveryOptions()
+                    .setCodecName(LocalByteArrayMessageCodec.NAME)
+                    .addHeader(PIXELS_TYPE_HEADER, rawPixelData.pixelsType)
+                    .addHeader(BYTE_ORDER_HEADER,
+                            ByteOrder.BIG_ENDIAN.equals(rawPixelData.order)?
+                                    "big-endian" : "little-endian")
+                    .addHeader(REGION_HEADER, String.format(
+                            "%d,%d,%d,%d", region.getX(), region.getY(),
+                            region.getWidth(), region.getHeight())));
+        } catch (CancellationException e) {
+            message.fail(CANCELLED, "Request cancelled");
+        } catch (Exception e) {
+            String v = "Exception while retrieving raw pixel data";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Completes a render image region request, either from the cache or by
+     * rendering the image region, and then closes the request.  Concurrent
+     * requests for the same image region, each of which has already had
+     * its permissions checked and whose rendering settings are the same,
+     * share a single render.
+     * @param message {@link ImageRegionCtx} object.
+     * @param imageRegionCtx image region context.
+     * @param request OMERO request to use for rendering.
+     * @param requestHandler request handler to use for rendering.
+     * @param key cache key for the image region.
+     * @param imageRegion cached image region or <code>null</code> if the
+     * image region was not found in the cache.
+     */
+    private void renderImageRegion(
+            Message<ImageRegionCtx> message, ImageRegionCtx imageRegionCtx,
+            PooledRequest request, ImageRegionRequestHandler requestHandler,
+            String key, byte[] imageRegion) {
+        InFlightRender render = new InFlightRender(imageRegionCtx);
+        try {
+            // If the image region is in the cache we have already checked
+            // that we have permissions to access it so just return it
+            if (imageRegion != null) {
+                request.close();
+                log.debug("Cache hit for image region: {}", key);
+                message.reply(imageRegion, LOCAL_BYTE_ARRAY);
+                return;
+            }
+
+            // If the image region is already being rendered wait for that
+            // render rather than starting another
+            InFlightRender inFlightRender = joinOrStart(
+                    inFlightRenders, key, render, imageRegionCtx);
+            if (inFlightRender != null) {
+                request.close();
+                log.debug("Waiting on in flight render of image region: {}",
+                        key);
+                inFlightRender.future.whenComplete((rendered, t) -> {
+                    replyImageRegion(message, imageRegionCtx, rendered, t);
+                });
+                return;
+            }
+            if (imageRegionCtx.isCancelled()) {
+                request.close();
+                inFlightRenders.remove(key, render);
+                log.debug("Dropping cancelled image region request");
+                message.fail(CANCELLED, "Request cancelled");
+                return;
+            }
         } catch (Exception e) {
+            request.close();
             String v = "Exception while retrieving image region";
             log.error(v, e);
             message.fail(500, v);
+            return;
+        }
+
+        // The image region is not in the cache we have to render it.
+        // The render is abandoned only if every request waiting on it
+        // has been cancelled.
+        requestHandler.setCancelled(render::isCancelled);
+        renderImageRegion(
+                message, imageRegionCtx, request, requestHandler, key,
+                render);
+    }
+
+    /**
+     * Joins the in flight render of an image region or, if there is none or
+     * it has been abandoned, registers a new render for other requests to
+     * join.
+     * @param inFlightRenders in flight renders keyed by cache key.
+     * @param key cache key for the image region.
+     * @param render new render of the image region to register.
+     * @param imageRegionCtx image region context of the request.
+     * @return Render which the request has joined or <code>null</code> if
+     * <code>render</code> has been registered and must be performed by the
+     * caller.
+     */
+    static InFlightRender joinOrStart(
+            ConcurrentHashMap<String, InFlightRender> inFlightRenders,
+            String key, InFlightRender render,
+            ImageRegionCtx imageRegionCtx) {
+        while (true) {
+            InFlightRender inFlightRender =
+                    inFlightRenders.putIfAbsent(key, render);
+            if (inFlightRender == null) {
+                return null;
+            }
+            if (inFlightRender.join(imageRegionCtx)) {
+                return inFlightRender;
+            }
+            // The in flight render has been abandoned; replace it so that
+            // subsequent requests wait on this render instead
+            if (inFlightRenders.replace(key, inFlightRender, render)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Renders an image region which is not in the cache, replies to all
+     * requests waiting on the render and then closes the request.
+     * @param message {@link ImageRegionCtx} object.
+     * @param imageRegionCtx image region context.
+     * @param request OMERO request to use for rendering.
+     * @param requestHandler request handler to use for rendering.
+     * @param key cache key for the image region.
+     * @param render in flight render of the image region.
+     */
+    private void renderImageRegion(
+            Message<ImageRegionCtx> message, ImageRegionCtx imageRegionCtx,
+            PooledRequest request, ImageRegionRequestHandler requestHandler,
+            String key, InFlightRender render) {
+        try (PooledRequest r = request) {
+            byte[] imageRegion = null;
+            try {
+                imageRegion = requestHandler.renderImageRegion(
+                        request.getQueryService(),
+                        request.getPixelsService());
+                render.future.complete(imageRegion);
+            } catch (Exception e) {
+                render.future.completeExceptionally(e);
+                if (!(e instanceof IllegalArgumentException
+                        || e instanceof CancellationException)) {
+                    log.error("Exception while retrieving image region", e);
+                }
+            } finally {
+                inFlightRenders.remove(key, render);
+            }
+            render.future.whenComplete((rendered, t) -> {
+                replyImageRegion(message, imageRegionCtx, rendered, t);
+            });
+            if (imageRegion == null) {
+                return;
+            }
+
+            JsonObject setMessage = new JsonObject();
+            setMessage.put("key", key);
+            setMessage.put("value", imageRegion);
+            vertx.eventBus().send(
+                    RedisCacheVerticle.REDIS_CACHE_SET_EVENT, setMessage);
+        } catch (Exception e) {
+            String v = "Exception while retrieving image region";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Replies to a render image region request with the outcome of a
+     * render.
+     * @param message {@link ImageRegionCtx} object.
+     * @param imageRegionCtx image region context.
+     * @param imageRegion rendered image region or <code>null</code> if the
+     * image region could not be found.
+     * @param t exception thrown while rendering or <code>null</code> if the
+     * render was successful.
+     */
+    private void replyImageRegion(
+            Message<ImageRegionCtx> message, ImageRegionCtx imageRegionCtx,
+            byte[] imageRegion, Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof IllegalArgumentException) {
+            log.debug(
+                "Illegal argument received while retrieving image region", t);
+            message.fail(400, t.getMessage());
+        } else if (t instanceof CancellationException) {
+            message.fail(CANCELLED, "Request cancelled");
+        } else if (t != null) {
+            message.fail(500, "Exception while retrieving image region");
+        } else if (imageRegion == null) {
+            message.fail(
+                    404, "Cannot find Image:" + imageRegionCtx.imageId);
+        } else {
+            message.reply(imageRegion, LOCAL_BYTE_ARRAY);
         }
     }
 
@@ -225,7 +871,7 @@ public class ImageRegionVerticle extends AbstractVerticle {
             omero.client client, Class<T> klass) {
         Map<String, String> ctx = new HashMap<String, String>();
         ctx.put("omero.group", "-1");
-        StopWatch t0 = new Slf4JStopWatch("getAllEnumerations");
+        StopWatch t0 = new MetricsStopWatch("getAllEnumerations");
         try {
             return (List<T>) client
                     .getSession()
@@ -248,4 +894,53 @@ public class ImageRegionVerticle extends AbstractVerticle {
             t0.stop();
         }
     }
+
+    /**
+     * A render of an image region which one or more requests are waiting on.
+     */
+    static class InFlightRender {
+
+        /** Outcome of the render */
+        final CompletableFuture<byte[]> future =
+                new CompletableFuture<byte[]>();
+
+        /** Requests waiting on the render */
+        private final List<ImageRegionCtx> requests =
+                new ArrayList<ImageRegionCtx>();
+
+        /** Whether or not the render has been abandoned */
+        private boolean cancelled = false;
+
+        InFlightRender(ImageRegionCtx imageRegionCtx) {
+            requests.add(imageRegionCtx);
+        }
+
+        /**
+         * Adds a request to those waiting on the render.
+         * @param imageRegionCtx request to add.
+         * @return <code>true</code> if the request was added or
+         * <code>false</code> if the render has already been abandoned.
+         */
+        synchronized boolean join(ImageRegionCtx imageRegionCtx) {
+            if (cancelled) {
+                return false;
+            }
+            requests.add(imageRegionCtx);
+            return true;
+        }
+
+        /**
+         * Whether or not the render should be abandoned because every
+         * request waiting on it has been cancelled.  Once abandoned no
+         * further requests may join the render.
+         * @return See above.
+         */
+        synchronized boolean isCancelled() {
+            if (!cancelled) {
+                cancelled = requests.stream()
+                        .allMatch(ImageRegionCtx::isCancelled);
+            }
+            return cancelled;
+        }
+    }
 }
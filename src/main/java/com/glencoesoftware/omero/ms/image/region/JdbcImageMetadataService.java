@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.perf4j.StopWatch;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import ome.model.core.Channel;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import ome.model.display.ChannelBinding;
+import ome.model.display.QuantumDef;
+import ome.model.display.RenderingDef;
+import ome.model.enums.DimensionOrder;
+import ome.model.enums.Family;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import ome.model.stats.StatsInfo;
+import ome.system.Roles;
+import omero.InternalException;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+
+/**
+ * Retrieves the metadata required to render an {@link Image} directly from
+ * the OMERO database rather than through the OMERO server, removing the
+ * server from the rendering path once a session has been joined.  The
+ * validating query enforces the same read permissions as an all groups
+ * query made through the server by the owner of the OMERO session:
+ * administrators may read everything; other users may read objects in
+ * groups they are a member of if they own the object, own the group or
+ * the group is at least read-only.  Rendering settings with persisted
+ * codomain maps are retrieved through the OMERO server instead so that
+ * they are rendered exactly as they would be without this service.
+ */
+public class JdbcImageMetadataService extends ImageMetadataService {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(JdbcImageMetadataService.class);
+
+    /** Group permissions bit granting group members read access */
+    public static final long GROUP_READ = 0x40;
+
+    /**
+     * Query for the {@link Pixels} identifier, Bio-Formats series, last
+     * update time of the rendering settings, session user and
+     * {@link Pixels} owner of an {@link Image}.  Returns no rows if the
+     * session is closed, has outlived its time to live or its user may not
+     * read the {@link Image}.  The OMERO server does not persist the last
+     * access time of sessions so their time to idle cannot be checked here;
+     * sessions which have been idle for too long are closed by the server
+     * and rejected by the pooled client health check.
+     */
+    private static final String PIXELS_ID_AND_SERIES_SQL =
+            "SELECT p.id, i.series, max(e.time), s.owner, p.owner_id " +
+            "FROM pixels p " +
+            "JOIN image i ON i.id = p.image " +
+            "JOIN experimentergroup g ON g.id = i.group_id " +
+            "JOIN session s ON s.uuid = ? AND s.closed IS NULL " +
+                "AND (s.timetolive = 0 OR s.started + " +
+                    "s.timetolive * INTERVAL '1 millisecond' > now()) " +
+            "LEFT OUTER JOIN renderingdef r ON r.pixels = p.id " +
+            "LEFT OUTER JOIN event e ON e.id = r.update_id " +
+            "WHERE i.id = ? AND (" +
+            "EXISTS (SELECT 1 FROM groupexperimentermap m " +
+                "WHERE m.child = s.owner AND m.parent = ?) " +
+            "OR EXISTS (SELECT 1 FROM groupexperimentermap m " +
+                "WHERE m.child = s.owner AND m.parent = i.group_id " +
+                "AND (i.owner_id = s.owner OR m.owner " +
+                    "OR (g.permissions & ?) = ?))) " +
+            "GROUP BY p.id, i.series, s.owner, p.owner_id";
+
+    /** Query for a {@link Pixels} description */
+    private static final String PIXELS_SQL =
+            "SELECT p.image, p.sizex, p.sizey, p.sizez, p.sizec, p.sizet, " +
+            "p.sha1, p.significantbits, pt.value, pt.bitsize, d.value " +
+            "FROM pixels p " +
+            "JOIN pixelstype pt ON pt.id = p.pixelstype " +
+            "JOIN dimensionorder d ON d.id = p.dimensionorder " +
+            "WHERE p.id = ?";
+
+    /** Query for the channel statistics of a {@link Pixels} */
+    private static final String CHANNELS_SQL =
+            "SELECT si.globalmin, si.globalmax FROM channel c " +
+            "LEFT OUTER JOIN statsinfo si ON si.id = c.statsinfo " +
+            "WHERE c.pixels = ? ORDER BY c.pixels_index";
+
+    /**
+     * Query for the rendering settings of a {@link Pixels}; the most recent
+     * settings of the session user, falling back to those of the
+     * {@link Pixels} owner as the server does
+     */
+    private static final String RENDERING_DEF_SQL =
+            "SELECT r.id, r.defaultz, r.defaultt, m.value, " +
+            "q.cdstart, q.cdend, q.bitresolution " +
+            "FROM renderingdef r " +
+            "JOIN renderingmodel m ON m.id = r.model " +
+            "JOIN quantumdef q ON q.id = r.quantization " +
+            "WHERE r.pixels = ? AND r.owner_id IN (?, ?) " +
+            "ORDER BY CASE WHEN r.owner_id = ? THEN 0 ELSE 1 END, " +
+            "r.id DESC LIMIT 1";
+
+    /** Query for the channel bindings of rendering settings */
+    private static final String CHANNEL_BINDINGS_SQL =
+            "SELECT cb.active, cb.coefficient, f.value, cb.inputstart, " +
+            "cb.inputend, cb.noisereduction, cb.red, cb.green, cb.blue, " +
+            "cb.alpha, cb.lookuptable " +
+            "FROM channelbinding cb " +
+            "JOIN family f ON f.id = cb.family " +
+            "WHERE cb.renderingdef = ? ORDER BY cb.renderingdef_index";
+
+    /** Query for the number of codomain maps of rendering settings */
+    private static final String CODOMAIN_MAPS_SQL =
+            "SELECT count(*) FROM codomainmapcontext c " +
+            "WHERE c.renderingdef = ?";
+
+    /** OMERO database */
+    private final DataSource dataSource;
+
+    /** OMERO system roles */
+    private final Roles roles = new Roles();
+
+    /**
+     * Default constructor.
+     * @param maxEntries maximum number of entries in the cache.
+     * @param timeToLive time in milliseconds after which an entry expires.
+     * @param dataSource OMERO database.
+     */
+    public JdbcImageMetadataService(
+            int maxEntries, long timeToLive, DataSource dataSource) {
+        super(maxEntries, timeToLive);
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Creates a metadata service from configuration.
+     * @param cacheConfig <code>image-metadata-cache</code> configuration
+     * block.  May be <code>null</code> in which case defaults are used.
+     * @param config <code>jdbc-metadata</code> configuration block.
+     * @param context OMERO server Spring application context providing
+     * the OMERO database.
+     * @return See above.
+     */
+    public static JdbcImageMetadataService fromConfig(
+            JsonObject cacheConfig, JsonObject config,
+            ApplicationContext context) {
+        if (cacheConfig == null) {
+            cacheConfig = new JsonObject();
+        }
+        String dataSourceBean =
+                config.getString("data-source-bean", "dataSource");
+        log.info("Retrieving image metadata from the OMERO database using " +
+                "data source: {}", dataSourceBean);
+        return new JdbcImageMetadataService(
+                cacheConfig.getInteger("max-entries", 1000),
+                cacheConfig.getLong("time-to-live", 300L) * 1000,
+                (DataSource) context.getBean(dataSourceBean));
+    }
+
+    /**
+     * Retrieves the metadata for an {@link Image} from the OMERO database,
+     * reusing previously retrieved metadata if it is still valid.
+     * @param iQuery unused.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier to query for.
+     * @return See above or <code>null</code> if the {@link Image} does not
+     * exist, the OMERO session is closed or its user does not have
+     * permissions to access the {@link Image}.
+     * @throws ServerError If there was any sort of error retrieving the
+     * metadata.
+     */
+    @Override
+    public ImageMetadata getImageMetadata(
+            IQueryPrx iQuery, String omeroSessionKey, long imageId)
+                    throws ServerError {
+        StopWatch t0 = new MetricsStopWatch("getPixelsIdAndSeries.jdbc");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement =
+                     connection.prepareStatement(PIXELS_ID_AND_SERIES_SQL)) {
+            long systemGroupId = roles.getSystemGroupId();
+            statement.setString(1, omeroSessionKey);
+            statement.setLong(2, imageId);
+            statement.setLong(3, systemGroupId);
+            statement.setLong(4, GROUP_READ);
+            statement.setLong(5, GROUP_READ);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return cache(omeroSessionKey, imageId, null);
+                }
+                Timestamp updateTime = rs.getTimestamp(3);
+                return cache(omeroSessionKey, imageId,
+                        new JdbcImageMetadata(
+                                rs.getLong(1), rs.getInt(2),
+                                updateTime == null? 0L : updateTime.getTime(),
+                                rs.getLong(4), rs.getLong(5)));
+            }
+        } catch (SQLException e) {
+            throw internalException(
+                    "Exception while retrieving metadata for Image:"
+                    + imageId, e);
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * Retrieves the metadata for an {@link Image} from the OMERO database.
+     * Database access is local and is performed on the calling thread.
+     * @param context unused.
+     * @param iQuery unused.
+     * @param omeroSessionKey OMERO session key of the request.
+     * @param imageId {@link Image} identifier to query for.
+     * @return See {@link #getImageMetadata(IQueryPrx, String, long)}.
+     */
+    @Override
+    public Future<ImageMetadata> getImageMetadataAsync(
+            Context context, IQueryPrx iQuery, String omeroSessionKey,
+            long imageId) {
+        try {
+            return Future.succeededFuture(
+                    getImageMetadata(iQuery, omeroSessionKey, imageId));
+        } catch (ServerError e) {
+            return Future.failedFuture(e);
+        }
+    }
+
+    /**
+     * Wraps a database access exception for callers expecting OMERO server
+     * exceptions.
+     * @param message description of the failed operation.
+     * @param cause database access exception.
+     * @return See above.
+     */
+    private static InternalException internalException(
+            String message, SQLException cause) {
+        InternalException e = new InternalException();
+        e.message = message;
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Metadata required to render a single {@link Image} retrieved from the
+     * OMERO database.  Query results are cached and new server side
+     * objects are created from them for each request.
+     */
+    public class JdbcImageMetadata extends ImageMetadata {
+
+        /** Experimenter identifier of the OMERO session user */
+        private final long userId;
+
+        /** Experimenter identifier of the {@link Pixels} owner */
+        private final long ownerId;
+
+        /** {@link Pixels} description query results */
+        private Object[] pixelsRow;
+
+        /** Channel statistics query results, in channel order */
+        private List<Double[]> channelRows;
+
+        /** Rendering settings query results */
+        private Object[] renderingDefRow;
+
+        /** Channel binding query results, in channel order */
+        private List<Object[]> channelBindingRows;
+
+        /**
+         * Whether or not the rendering settings have persisted codomain
+         * maps, which are not loaded from the OMERO database
+         */
+        private boolean hasCodomainMaps;
+
+        /**
+         * Metadata retrieved through the OMERO server, used for rendering
+         * settings with persisted codomain maps
+         */
+        private IceImageMetadata iceImageMetadata;
+
+        JdbcImageMetadata(
+                long pixelsId, int series, long renderingDefUpdateTime,
+                long userId, long ownerId) {
+            super(pixelsId, series, renderingDefUpdateTime);
+            this.userId = userId;
+            this.ownerId = ownerId;
+        }
+
+        /**
+         * Retrieves the {@link Pixels} description and rendering settings
+         * from the OMERO database if they have not already been retrieved.
+         * Database access is local and is performed on the calling thread.
+         * @param context unused.
+         * @param iPixels unused.
+         * @return Future completed once both have been retrieved.
+         */
+        @Override
+        public Future<Void> prefetch(Context context, IPixelsPrx iPixels) {
+            try {
+                load();
+            } catch (ServerError e) {
+                return Future.failedFuture(e);
+            }
+            IceImageMetadata server = getIceImageMetadata();
+            if (server != null) {
+                return server.prefetch(context, iPixels);
+            }
+            return Future.succeededFuture();
+        }
+
+        /**
+         * Metadata to retrieve through the OMERO server because the
+         * rendering settings have persisted codomain maps.
+         * @return See above or <code>null</code> if the rendering settings
+         * can be created from the OMERO database query results.
+         */
+        private synchronized IceImageMetadata getIceImageMetadata() {
+            if (!hasCodomainMaps) {
+                return null;
+            }
+            if (iceImageMetadata == null) {
+                log.debug("Rendering settings of Pixels:{} have codomain " +
+                        "maps; retrieving them through the OMERO server",
+                        getPixelsId());
+                iceImageMetadata = new IceImageMetadata(
+                        getPixelsId(), getSeries(),
+                        getRenderingDefUpdateTime());
+            }
+            return iceImageMetadata;
+        }
+
+        @Override
+        public synchronized Long getRenderingDefId() {
+            if (pixelsRow == null) {
+                return null;
+            }
+            return renderingDefRow == null? 0L : (Long) renderingDefRow[0];
+        }
+
+        @Override
+        public Pixels newPixels(IPixelsPrx iPixels) throws ServerError {
+            load();
+            Object[] row;
+            List<Double[]> channels;
+            synchronized (this) {
+                row = pixelsRow;
+                channels = channelRows;
+            }
+            PixelsType pixelsType = new PixelsType((String) row[8]);
+            pixelsType.setBitSize((Integer) row[9]);
+            Pixels pixels = new Pixels(
+                    new Image((Long) row[0], false), pixelsType,
+                    (Integer) row[1], (Integer) row[2], (Integer) row[3],
+                    (Integer) row[4], (Integer) row[5], (String) row[6],
+                    new DimensionOrder((String) row[10]));
+            pixels.setId(getPixelsId());
+            pixels.setSignificantBits((Integer) row[7]);
+            for (Double[] stats : channels) {
+                Channel channel = new Channel();
+                if (stats[0] != null && stats[1] != null) {
+                    channel.setStatsInfo(new StatsInfo(stats[0], stats[1]));
+                }
+                pixels.addChannel(channel);
+            }
+            return pixels;
+        }
+
+        @Override
+        public RenderingDef newRenderingDef(IPixelsPrx iPixels)
+                throws ServerError {
+            load();
+            IceImageMetadata server = getIceImageMetadata();
+            if (server != null) {
+                return server.newRenderingDef(iPixels);
+            }
+            Object[] row;
+            List<Object[]> channelBindings;
+            synchronized (this) {
+                row = renderingDefRow;
+                channelBindings = channelBindingRows;
+            }
+            if (row == null) {
+                return null;
+            }
+            RenderingDef renderingDef = new RenderingDef();
+            renderingDef.setId((Long) row[0]);
+            renderingDef.setDefaultZ((Integer) row[1]);
+            renderingDef.setDefaultT((Integer) row[2]);
+            renderingDef.setModel(new RenderingModel((String) row[3]));
+            QuantumDef quantumDef = new QuantumDef();
+            quantumDef.setCdStart((Integer) row[4]);
+            quantumDef.setCdEnd((Integer) row[5]);
+            quantumDef.setBitResolution((Integer) row[6]);
+            renderingDef.setQuantization(quantumDef);
+            renderingDef.setPixels(new Pixels(getPixelsId(), false));
+            for (Object[] cb : channelBindings) {
+                ChannelBinding channelBinding = new ChannelBinding();
+                channelBinding.setActive((Boolean) cb[0]);
+                channelBinding.setCoefficient((Double) cb[1]);
+                channelBinding.setFamily(new Family((String) cb[2]));
+                channelBinding.setInputStart((Double) cb[3]);
+                channelBinding.setInputEnd((Double) cb[4]);
+                channelBinding.setNoiseReduction((Boolean) cb[5]);
+                channelBinding.setRed((Integer) cb[6]);
+                channelBinding.setGreen((Integer) cb[7]);
+                channelBinding.setBlue((Integer) cb[8]);
+                channelBinding.setAlpha((Integer) cb[9]);
+                channelBinding.setLookupTable((String) cb[10]);
+                renderingDef.addChannelBinding(channelBinding);
+            }
+            return renderingDef;
+        }
+
+        /**
+         * Retrieves the {@link Pixels} description and rendering settings
+         * query results from the OMERO database if they have not already
+         * been retrieved.
+         * @throws ServerError If there was any sort of error retrieving
+         * them.
+         */
+        private synchronized void load() throws ServerError {
+            if (pixelsRow != null) {
+                return;
+            }
+            long pixelsId = getPixelsId();
+            StopWatch t0 = new MetricsStopWatch("loadRenderingMetadata.jdbc");
+            try (Connection connection = dataSource.getConnection()) {
+                Object[] pixels = null;
+                try (PreparedStatement statement =
+                        connection.prepareStatement(PIXELS_SQL)) {
+                    statement.setLong(1, pixelsId);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next()) {
+                            pixels = new Object[] {
+                                rs.getLong(1), rs.getInt(2), rs.getInt(3),
+                                rs.getInt(4), rs.getInt(5), rs.getInt(6),
+                                rs.getString(7), rs.getInt(8),
+                                rs.getString(9), rs.getInt(10),
+                                rs.getString(11)
+                            };
+                        }
+                    }
+                }
+                if (pixels == null) {
+                    throw new SQLException("Missing Pixels:" + pixelsId);
+                }
+
+                List<Double[]> channels = new ArrayList<Double[]>();
+                try (PreparedStatement statement =
+                        connection.prepareStatement(CHANNELS_SQL)) {
+                    statement.setLong(1, pixelsId);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            channels.add(new Double[] {
+                                getDouble(rs, 1), getDouble(rs, 2)
+                            });
+                        }
+                    }
+                }
+
+                Object[] renderingDef = null;
+                try (PreparedStatement statement =
+                        connection.prepareStatement(RENDERING_DEF_SQL)) {
+                    statement.setLong(1, pixelsId);
+                    statement.setLong(2, userId);
+                    statement.setLong(3, ownerId);
+                    statement.setLong(4, userId);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next()) {
+                            renderingDef = new Object[] {
+                                rs.getLong(1), rs.getInt(2), rs.getInt(3),
+                                rs.getString(4), rs.getInt(5), rs.getInt(6),
+                                rs.getInt(7)
+                            };
+                        }
+                    }
+                }
+
+                List<Object[]> channelBindings = new ArrayList<Object[]>();
+                if (renderingDef != null) {
+                    try (PreparedStatement statement =
+                            connection.prepareStatement(
+                                    CHANNEL_BINDINGS_SQL)) {
+                        statement.setLong(1, (Long) renderingDef[0]);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            while (rs.next()) {
+                                channelBindings.add(new Object[] {
+                                    rs.getBoolean(1), rs.getDouble(2),
+                                    rs.getString(3), rs.getDouble(4),
+                                    rs.getDouble(5), rs.getBoolean(6),
+                                    rs.getInt(7), rs.getInt(8),
+                                    rs.getInt(9), rs.getInt(10),
+                                    rs.getString(11)
+                                });
+                            }
+                        }
+                    }
+                } else {
+                    log.debug("No rendering settings for Pixels:{}",
+                            pixelsId);
+                }
+
+                boolean codomainMaps = false;
+                if (renderingDef != null) {
+                    try (PreparedStatement statement =
+                            connection.prepareStatement(CODOMAIN_MAPS_SQL)) {
+                        statement.setLong(1, (Long) renderingDef[0]);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            codomainMaps = rs.next() && rs.getLong(1) > 0;
+                        }
+                    }
+                }
+
+                pixelsRow = pixels;
+                channelRows = channels;
+                renderingDefRow = renderingDef;
+                channelBindingRows = channelBindings;
+                hasCodomainMaps = codomainMaps;
+            } catch (SQLException e) {
+                throw internalException(
+                        "Exception while retrieving metadata for Pixels:"
+                        + pixelsId, e);
+            } finally {
+                t0.stop();
+            }
+        }
+    }
+
+    /**
+     * Retrieves a nullable double precision column.
+     * @param rs result set positioned on a row.
+     * @param column column index.
+     * @return See above.
+     * @throws SQLException If the column cannot be read.
+     */
+    private static Double getDouble(ResultSet rs, int column)
+            throws SQLException {
+        double v = rs.getDouble(column);
+        return rs.wasNull()? null : v;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec for byte arrays which, unlike the default Vert.x byte
+ * array codec, does not copy the array when the message is delivered
+ * locally.  Senders must not modify the array once it has been sent.
+ */
+public class LocalByteArrayMessageCodec
+        implements MessageCodec<byte[], byte[]> {
+
+    /** Name of the codec for use with delivery options */
+    public static final String NAME = "omero.local_byte_array";
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#encodeToWire(io.vertx.core.buffer.Buffer, java.lang.Object)
+     */
+    @Override
+    public void encodeToWire(Buffer buffer, byte[] bytes) {
+        buffer.appendInt(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#decodeFromWire(int, io.vertx.core.buffer.Buffer)
+     */
+    @Override
+    public byte[] decodeFromWire(int pos, Buffer buffer) {
+        int length = buffer.getInt(pos);
+        pos += 4;
+        return buffer.getBytes(pos, pos + length);
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#transform(java.lang.Object)
+     */
+    @Override
+    public byte[] transform(byte[] bytes) {
+        return bytes;
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#name()
+     */
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#systemCodecID()
+     */
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
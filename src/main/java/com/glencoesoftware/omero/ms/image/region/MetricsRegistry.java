@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Registry of the latency histograms, counters and gauges of this
+ * microservice which can be rendered in the Prometheus text exposition
+ * format.  Each metric is identified by a name and a set of labels given
+ * as alternating label names and values.  Latencies are recorded in
+ * HdrHistogram {@link Recorder}s and are exposed as summaries whose
+ * quantiles cover a sliding window of recent requests while their sum and
+ * count cover the lifetime of the process.  The windows are advanced by
+ * {@link #rotate()}, which should be called at least every half window, so
+ * that quantiles are independent of how often metrics are scraped.
+ */
+public class MetricsRegistry {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(MetricsRegistry.class);
+
+    /** Prefix of the name of all metrics exposed */
+    public static final String PREFIX = "omero_ms_image_region_";
+
+    /** Quantiles exposed for each latency histogram */
+    private static final double[] QUANTILES =
+            new double[] { 0.5, 0.9, 0.99, 0.999 };
+
+    /** Significant decimal digits kept by each latency histogram */
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /** Registry shared by all verticles of this process */
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    /** Metric families keyed by metric name */
+    private final Map<String, Family> families =
+            new ConcurrentSkipListMap<String, Family>();
+
+    /** Length in milliseconds of the window quantiles are calculated over */
+    private volatile long window = 60000;
+
+    /** Type of a metric family */
+    enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        private final String value;
+
+        Type(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Registry shared by all verticles of this process.
+     * @return See above.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Configures a registry.
+     * @param registry registry to configure.
+     * @param config <code>metrics</code> configuration block.  May be
+     * <code>null</code> in which case defaults are used.
+     */
+    public static void configure(MetricsRegistry registry, JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        long window = config.getLong("window", 60L) * 1000;
+        log.info("Metrics quantile window: {}ms", window);
+        registry.setWindow(window);
+    }
+
+    /**
+     * Sets the length of the window quantiles are calculated over.
+     * @param window length of the window in milliseconds.
+     */
+    public void setWindow(long window) {
+        if (window < 2) {
+            throw new IllegalArgumentException("window must be at least 2ms");
+        }
+        this.window = window;
+    }
+
+    /** @return Length in milliseconds of the quantile window */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Advances the quantile window of all latency histograms, discarding
+     * latencies which were recorded before the window.
+     */
+    public void rotate() {
+        long now = System.currentTimeMillis();
+        for (Family family : families.values()) {
+            for (Metric metric : family.metrics.values()) {
+                if (metric instanceof Timer) {
+                    ((Timer) metric).rotate(now, window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves or creates a latency histogram.
+     * @param name metric name, without {@link #PREFIX}.
+     * @param help description of the metric.
+     * @param labels alternating label names and values.
+     * @return See above.
+     */
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) family(name, help, Type.SUMMARY)
+                .metrics.computeIfAbsent(
+                        formatLabels(labels), k -> new Timer());
+    }
+
+    /**
+     * Retrieves or creates a counter.
+     * @param name metric name, without {@link #PREFIX}.
+     * @param help description of the metric.
+     * @param labels alternating label names and values.
+     * @return See above.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER)
+                .metrics.computeIfAbsent(
+                        formatLabels(labels), k -> new Counter());
+    }
+
+    /**
+     * Registers a counter whose value is maintained elsewhere, replacing
+     * any already registered with the same name and labels.
+     * @param name metric name, without {@link #PREFIX}.
+     * @param help description of the metric.
+     * @param value supplier of the current value of the counter.
+     * @param labels alternating label names and values.
+     */
+    public void counter(
+            String name, String help, Supplier<Number> value,
+            String... labels) {
+        family(name, help, Type.COUNTER)
+                .metrics.put(formatLabels(labels), new Gauge(value));
+    }
+
+    /**
+     * Registers a gauge, replacing any already registered with the same
+     * name and labels.
+     * @param name metric name, without {@link #PREFIX}.
+     * @param help description of the metric.
+     * @param value supplier of the current value of the gauge.
+     * @param labels alternating label names and values.
+     */
+    public void gauge(
+            String name, String help, Supplier<Number> value,
+            String... labels) {
+        family(name, help, Type.GAUGE)
+                .metrics.put(formatLabels(labels), new Gauge(value));
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     * @return See above.
+     */
+    public String scrape() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        families.forEach((name, family) -> {
+            sb.append("# HELP ").append(PREFIX).append(name).append(' ')
+                .append(family.help).append('\n');
+            sb.append("# TYPE ").append(PREFIX).append(name).append(' ')
+                .append(family.type.value).append('\n');
+            family.metrics.forEach((labels, metric) -> {
+                metric.write(sb, PREFIX + name, labels, now, window);
+            });
+        });
+        return sb.toString();
+    }
+
+    /**
+     * Retrieves or creates a metric family.
+     * @param name metric name, without {@link #PREFIX}.
+     * @param help description of the metric.
+     * @param type type of the metric.
+     * @return See above.
+     */
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(
+                name, k -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(
+                    name + " is already registered as a " + family.type.value);
+        }
+        return family;
+    }
+
+    /**
+     * Formats labels as the comma separated body of a Prometheus label set.
+     * @param labels alternating label names and values.
+     * @return See above.
+     */
+    static String formatLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "Labels must be alternating names and values");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String value = labels[i + 1] == null? "" : labels[i + 1];
+            sb.append(labels[i]).append("=\"")
+                .append(value.replace("\\", "\\\\")
+                             .replace("\"", "\\\"")
+                             .replace("\n", "\\n"))
+                .append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a single sample.
+     * @param sb builder to append to.
+     * @param name full metric name.
+     * @param labels formatted labels.
+     * @param extraLabel an additional formatted label or <code>null</code>.
+     * @param value value of the sample.
+     */
+    private static void sample(
+            StringBuilder sb, String name, String labels, String extraLabel,
+            double value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            sb.append('{').append(labels);
+            if (extraLabel != null) {
+                if (!labels.isEmpty()) {
+                    sb.append(',');
+                }
+                sb.append(extraLabel);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)
+                && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /** Metrics of the same name and type */
+    private static class Family {
+
+        /** Description of the metric */
+        final String help;
+
+        /** Type of the metric */
+        final Type type;
+
+        /** Metrics keyed by formatted labels */
+        final Map<String, Metric> metrics =
+                new ConcurrentHashMap<String, Metric>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** A single metric with a specific set of labels */
+    private interface Metric {
+
+        /**
+         * Appends the samples of this metric.
+         * @param sb builder to append to.
+         * @param name full metric name.
+         * @param labels formatted labels.
+         * @param now current time in milliseconds.
+         * @param window length in milliseconds of the quantile window.
+         */
+        void write(
+                StringBuilder sb, String name, String labels, long now,
+                long window);
+    }
+
+    /** Monotonically increasing count */
+    public static class Counter implements Metric {
+
+        private final LongAdder count = new LongAdder();
+
+        /** Increments the counter by one. */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Increments the counter.
+         * @param value amount to increment the counter by.
+         */
+        public void add(long value) {
+            count.add(value);
+        }
+
+        /** @return Current value of the counter */
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(
+                StringBuilder sb, String name, String labels, long now,
+                long window) {
+            sample(sb, name, labels, null, get());
+        }
+    }
+
+    /** Value maintained elsewhere and read when rendered */
+    private static class Gauge implements Metric {
+
+        private final Supplier<Number> value;
+
+        Gauge(Supplier<Number> value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(
+                StringBuilder sb, String name, String labels, long now,
+                long window) {
+            Number v = value.get();
+            if (v != null) {
+                sample(sb, name, labels, null, v.doubleValue());
+            }
+        }
+    }
+
+    /**
+     * Latency histogram.  Recording is wait free; quantiles are calculated
+     * over the current and previous half window so always cover between
+     * half and all of the window.
+     */
+    public static class Timer implements Metric {
+
+        /** Recorder of latencies in microseconds */
+        private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+        /** Number of latencies recorded */
+        private final LongAdder count = new LongAdder();
+
+        /** Sum of all latencies recorded in nanoseconds */
+        private final LongAdder sum = new LongAdder();
+
+        /** Latencies of the current half window */
+        private Histogram current = new Histogram(SIGNIFICANT_DIGITS);
+
+        /** Latencies of the previous half window */
+        private Histogram previous = new Histogram(SIGNIFICANT_DIGITS);
+
+        /** Start of the current half window in milliseconds */
+        private long currentStart = System.currentTimeMillis();
+
+        /**
+         * Records a latency.
+         * @param duration latency.
+         * @param unit unit of <code>duration</code>.
+         */
+        public void record(long duration, TimeUnit unit) {
+            long nanos = Math.max(unit.toNanos(duration), 0);
+            recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        /** @return Number of latencies recorded */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Moves latencies recorded since the last rotation into the current
+         * half window and then, if the current half window has ended,
+         * starts a new one.  If more than a whole window has elapsed all
+         * latencies, which can no longer be placed within the window, are
+         * discarded.
+         * @param now current time in milliseconds.
+         * @param window length in milliseconds of the window.
+         */
+        synchronized void rotate(long now, long window) {
+            current.add(recorder.getIntervalHistogram());
+            long halfWindow = window / 2;
+            if (now - currentStart >= window) {
+                previous.reset();
+                current.reset();
+                currentStart = now;
+            } else if (now - currentStart >= halfWindow) {
+                Histogram recycled = previous;
+                previous = current;
+                current = recycled;
+                current.reset();
+                currentStart = now;
+            }
+        }
+
+        /**
+         * Latencies recorded within the window.
+         * @param now current time in milliseconds.
+         * @param window length in milliseconds of the window.
+         * @return Histogram of latencies in microseconds.
+         */
+        synchronized Histogram snapshot(long now, long window) {
+            rotate(now, window);
+            Histogram snapshot = previous.copy();
+            snapshot.add(current);
+            return snapshot;
+        }
+
+        @Override
+        public void write(
+                StringBuilder sb, String name, String labels, long now,
+                long window) {
+            Histogram snapshot = snapshot(now, window);
+            for (double quantile : QUANTILES) {
+                double value = snapshot.getTotalCount() == 0? Double.NaN
+                        : snapshot.getValueAtPercentile(quantile * 100) / 1e6;
+                sample(sb, name, labels, "quantile=\"" + quantile + "\"",
+                        value);
+            }
+            sample(sb, name + "_sum", labels, null, sum.sum() / 1e9);
+            sample(sb, name + "_count", labels, null, getCount());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+
+import org.perf4j.slf4j.Slf4JStopWatch;
+
+/**
+ * Stop watch which, in addition to logging like {@link Slf4JStopWatch},
+ * records the time elapsed between construction and {@link #stop()} in the
+ * <code>stage_seconds</code> latency histogram of a {@link MetricsRegistry}
+ * with the tag as the <code>stage</code> label.
+ */
+public class MetricsStopWatch extends Slf4JStopWatch {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Name of the latency histogram metric */
+    public static final String STAGE_SECONDS = "stage_seconds";
+
+    /** Registry to record the elapsed time in */
+    private final transient MetricsRegistry registry;
+
+    /** Alternating label names and values, after the stage */
+    private final String[] labels;
+
+    /** {@link System#nanoTime()} at construction */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Creates a stop watch recording to the default registry.
+     * @param tag stop watch tag, also the <code>stage</code> label.
+     * @param labels additional alternating label names and values.
+     */
+    public MetricsStopWatch(String tag, String... labels) {
+        this(MetricsRegistry.getDefault(), tag, labels);
+    }
+
+    /**
+     * Creates a stop watch.
+     * @param registry registry to record the elapsed time in.
+     * @param tag stop watch tag, also the <code>stage</code> label.
+     * @param labels additional alternating label names and values.
+     */
+    public MetricsStopWatch(
+            MetricsRegistry registry, String tag, String... labels) {
+        super(tag);
+        this.registry = registry;
+        String[] stageLabels = new String[labels.length + 2];
+        stageLabels[0] = "stage";
+        stageLabels[1] = tag;
+        System.arraycopy(labels, 0, stageLabels, 2, labels.length);
+        this.labels = stageLabels;
+    }
+
+    @Override
+    public String stop() {
+        registry.timer(
+                STAGE_SECONDS, "Time spent in each processing stage",
+                labels).record(
+                        System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        return super.stop();
+    }
+}
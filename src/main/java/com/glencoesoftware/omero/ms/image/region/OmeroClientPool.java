@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.perf4j.StopWatch;
+import org.slf4j.LoggerFactory;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import io.vertx.core.json.JsonObject;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+
+/**
+ * Bounded pool of OMERO clients which have joined an OMERO session, keyed
+ * by OMERO session key.  A single joined client is shared by all concurrent
+ * requests for the same session, is periodically health checked and is
+ * closed once it has been idle for a configurable period of time.  Closing
+ * a pooled client detaches from, rather than destroys, the OMERO session.
+ * Proxies to the stateless OMERO services used for metadata access are
+ * retrieved once per joined client rather than once per request.
+ */
+public class OmeroClientPool {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroClientPool.class);
+
+    /** OMERO server host */
+    private final String host;
+
+    /** OMERO server port */
+    private final int port;
+
+    /** Maximum number of pooled clients */
+    private final int maxSize;
+
+    /** Time in milliseconds after which an unused client is closed */
+    private final long idleTimeout;
+
+    /** Time in milliseconds after which a client is health checked */
+    private final long validationInterval;
+
+    /** Pooled clients keyed by OMERO session key */
+    private final Map<String, PooledClient> clients =
+            new ConcurrentHashMap<String, PooledClient>();
+
+    /**
+     * Default constructor.
+     * @param host OMERO server host.
+     * @param port OMERO server port.
+     * @param maxSize maximum number of pooled clients.
+     * @param idleTimeout time in milliseconds after which an unused client
+     * is closed.
+     * @param validationInterval time in milliseconds after which a client
+     * is health checked before reuse.
+     */
+    public OmeroClientPool(
+            String host, int port, int maxSize, long idleTimeout,
+            long validationInterval) {
+        this.host = host;
+        this.port = port;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Creates a pool from configuration.
+     * @param host OMERO server host.
+     * @param port OMERO server port.
+     * @param config <code>client-pool</code> configuration block.  May be
+     * <code>null</code> in which case defaults are used.
+     * @return See above.
+     */
+    public static OmeroClientPool fromConfig(
+            String host, int port, JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        return new OmeroClientPool(
+                host, port,
+                config.getInteger("max-size", 256),
+                config.getLong("idle-timeout", 300L) * 1000,
+                config.getLong("validation-interval", 30L) * 1000);
+    }
+
+    /** @return Time in milliseconds after which an unused client is closed */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /** @return Number of pooled clients */
+    public int getSize() {
+        return clients.size();
+    }
+
+    /**
+     * Borrows a client joined to an OMERO session, joining the session if
+     * there is no healthy pooled client for it.  The returned request must
+     * be closed once the caller has finished with it.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return See above.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    public PooledRequest borrow(String omeroSessionKey)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        PooledClient pooledClient = clients.get(omeroSessionKey);
+        if (pooledClient == null) {
+            if (clients.size() >= maxSize) {
+                evict(clients.size() - maxSize + 1, 0);
+            }
+            if (clients.size() >= maxSize) {
+                // Pool is exhausted by clients which are in use so fall back
+                // to a client which is closed as soon as it is returned
+                log.debug("Client pool exhausted; using unpooled client");
+                PooledClient unpooled = new PooledClient(omeroSessionKey);
+                unpooled.pooled = false;
+                return unpooled.acquire();
+            }
+            pooledClient = clients.computeIfAbsent(
+                    omeroSessionKey, PooledClient::new);
+        }
+        try {
+            return pooledClient.acquire();
+        } catch (PermissionDeniedException | CannotCreateSessionException
+                | ServerError | RuntimeException e) {
+            clients.remove(omeroSessionKey, pooledClient);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all clients which have been unused for longer than the idle
+     * timeout.  Performs blocking OMERO server calls.
+     */
+    public void evictIdle() {
+        int evicted = evict(Integer.MAX_VALUE, idleTimeout);
+        if (evicted > 0) {
+            log.debug("Evicted {} idle clients", evicted);
+        }
+    }
+
+    /**
+     * Closes up to <code>count</code> clients which are not in use, least
+     * recently used first.
+     * @param count maximum number of clients to close.
+     * @param minimumIdle minimum time in milliseconds a client must have
+     * been unused for to be eligible.
+     * @return Number of clients closed.
+     */
+    private int evict(int count, long minimumIdle) {
+        long now = System.currentTimeMillis();
+        List<PooledClient> candidates = new ArrayList<PooledClient>();
+        for (PooledClient pooledClient : clients.values()) {
+            if (pooledClient.isIdle(now, minimumIdle)) {
+                candidates.add(pooledClient);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(c -> c.lastUsed));
+        int evicted = 0;
+        for (PooledClient pooledClient : candidates) {
+            if (evicted >= count) {
+                break;
+            }
+            if (pooledClient.retire(now, minimumIdle)) {
+                clients.remove(pooledClient.omeroSessionKey, pooledClient);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Closes all pooled clients.
+     */
+    public void close() {
+        for (PooledClient pooledClient : clients.values()) {
+            pooledClient.retire(Long.MAX_VALUE, Long.MIN_VALUE);
+        }
+        clients.clear();
+    }
+
+    /**
+     * Creates a new, unjoined, OMERO client.
+     * @return See above.
+     */
+    protected omero.client newClient() {
+        return new omero.client(host, port);
+    }
+
+    /**
+     * Closes a joined client, detaching from the OMERO session.  Performs
+     * blocking OMERO server calls so must not be called while holding a
+     * pooled client's monitor.
+     * @param joined client to close; may be <code>null</code>.
+     */
+    private static void destroy(JoinedClient joined) {
+        if (joined == null) {
+            return;
+        }
+        try {
+            joined.client.__del__();
+        } catch (Exception e) {
+            log.warn("Exception while closing client", e);
+        }
+    }
+
+    /**
+     * A single OMERO client, joined to an OMERO session, which may be used
+     * by multiple requests concurrently.  The joined client is replaced if
+     * it fails a health check; a replaced client is closed once the last
+     * request using it has finished.  Joining and health checking are
+     * blocking OMERO server calls and are made without holding the monitor
+     * so that other requests for the session are not held up by them.
+     */
+    private class PooledClient {
+
+        /** OMERO session key the client is joined to */
+        final String omeroSessionKey;
+
+        /** Whether or not the client is retained once it is released */
+        boolean pooled = true;
+
+        /**
+         * Joined client or <code>null</code> if not yet joined or the
+         * previous client failed its health check
+         */
+        JoinedClient current;
+
+        /**
+         * Join of the OMERO session in progress, shared by all requests
+         * waiting on it, or <code>null</code>
+         */
+        CompletableFuture<JoinedClient> joining;
+
+        /** Whether or not <code>current</code> is being health checked */
+        boolean validating = false;
+
+        /** Number of requests currently using, or acquiring, the client */
+        int borrowed = 0;
+
+        /** Whether or not the client has been closed */
+        boolean retired = false;
+
+        /** Time in milliseconds since the epoch the client was last used */
+        volatile long lastUsed = System.currentTimeMillis();
+
+        /**
+         * Time in milliseconds since the epoch the client was last known to
+         * be healthy
+         */
+        long lastValidated;
+
+        PooledClient(String omeroSessionKey) {
+            this.omeroSessionKey = omeroSessionKey;
+        }
+
+        /**
+         * Marks the client as in use, joining the OMERO session or replacing
+         * the client if it is not healthy.
+         * @return New request using this client.
+         */
+        PooledRequest acquire()
+                throws PermissionDeniedException,
+                    CannotCreateSessionException, ServerError {
+            JoinedClient joined;
+            boolean validate = false;
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (retired) {
+                    // Lost a race with eviction; join with a fresh client
+                    pooled = false;
+                    retired = false;
+                    current = null;
+                }
+                borrowed++;
+                lastUsed = now;
+                joined = current;
+                if (joined != null) {
+                    joined.borrowed++;
+                    if (!validating
+                            && now - lastValidated >= validationInterval) {
+                        validating = true;
+                        validate = true;
+                    }
+                }
+            }
+            try {
+                if (validate && !validate(joined)) {
+                    joined = null;
+                }
+                if (joined == null) {
+                    joined = joinShared();
+                }
+                return new PooledRequest(this, joined);
+            } catch (PermissionDeniedException | CannotCreateSessionException
+                    | ServerError | RuntimeException e) {
+                release(null);
+                throw e;
+            }
+        }
+
+        /**
+         * Health checks a joined client which the caller has borrowed,
+         * replacing it if it is not healthy.
+         * @param joined client to health check.
+         * @return <code>true</code> if the client is healthy; otherwise the
+         * caller's use of it has been released.
+         */
+        private boolean validate(JoinedClient joined) {
+            boolean healthy = isHealthy(joined);
+            JoinedClient unused;
+            synchronized (this) {
+                validating = false;
+                if (healthy) {
+                    lastValidated = System.currentTimeMillis();
+                    return true;
+                }
+                // Other requests may still be using the client so it is
+                // closed by the last of them
+                if (current == joined) {
+                    current = null;
+                }
+                joined.stale = true;
+                unused = joined.release();
+            }
+            destroy(unused);
+            return false;
+        }
+
+        /**
+         * Borrows the current joined client, joining the OMERO session if
+         * there is none.  Concurrent requests share a single join.
+         * @return Borrowed joined client.
+         */
+        private JoinedClient joinShared()
+                throws PermissionDeniedException,
+                    CannotCreateSessionException, ServerError {
+            while (true) {
+                CompletableFuture<JoinedClient> future;
+                boolean joiner = false;
+                synchronized (this) {
+                    if (current != null) {
+                        current.borrowed++;
+                        return current;
+                    }
+                    if (joining == null) {
+                        joining = new CompletableFuture<JoinedClient>();
+                        joiner = true;
+                    }
+                    future = joining;
+                }
+                if (!joiner) {
+                    try {
+                        future.join();
+                    } catch (CompletionException e) {
+                        throw rethrow(e.getCause());
+                    }
+                    // Borrow whichever client is now current
+                    continue;
+                }
+                JoinedClient joined;
+                try {
+                    joined = new JoinedClient(join());
+                } catch (PermissionDeniedException
+                        | CannotCreateSessionException | ServerError
+                        | RuntimeException e) {
+                    synchronized (this) {
+                        joining = null;
+                    }
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+                synchronized (this) {
+                    joining = null;
+                    current = joined;
+                    joined.borrowed++;
+                    lastValidated = System.currentTimeMillis();
+                }
+                future.complete(joined);
+                return joined;
+            }
+        }
+
+        /**
+         * Marks the client as no longer in use by a request, closing the
+         * joined client used by the request if it has been replaced and
+         * closing this client if it is not pooled.
+         * @param joined joined client used by the request or
+         * <code>null</code> if the request failed to acquire one.
+         */
+        void release(JoinedClient joined) {
+            JoinedClient unused = null;
+            JoinedClient closed = null;
+            synchronized (this) {
+                borrowed--;
+                lastUsed = System.currentTimeMillis();
+                if (joined != null) {
+                    unused = joined.release();
+                }
+                if (!pooled && borrowed == 0) {
+                    closed = current;
+                    current = null;
+                    retired = true;
+                }
+            }
+            destroy(unused);
+            destroy(closed);
+        }
+
+        /**
+         * Whether or not the client is not in use and has been unused for
+         * at least <code>minimumIdle</code> milliseconds.
+         */
+        synchronized boolean isIdle(long now, long minimumIdle) {
+            return borrowed == 0 && now - lastUsed >= minimumIdle;
+        }
+
+        /**
+         * Closes the client if it is still idle.
+         * @return Whether or not the client was closed.
+         */
+        boolean retire(long now, long minimumIdle) {
+            JoinedClient closed;
+            synchronized (this) {
+                if (!isIdle(now, minimumIdle)) {
+                    return false;
+                }
+                closed = current;
+                current = null;
+                retired = true;
+            }
+            destroy(closed);
+            return true;
+        }
+
+        /**
+         * Health checks a joined client.
+         * @param joined client to health check.
+         * @return <code>true</code> if the OMERO session is still reachable.
+         */
+        private boolean isHealthy(JoinedClient joined) {
+            StopWatch t0 = new MetricsStopWatch("OmeroClientPool.isHealthy");
+            try {
+                joined.client.getSession().ice_ping();
+                return true;
+            } catch (Exception e) {
+                log.debug("Pooled client failed health check", e);
+                return false;
+            } finally {
+                t0.stop();
+            }
+        }
+
+        /**
+         * Joins the OMERO session with a new client.
+         * @return Joined client.
+         */
+        private omero.client join()
+                throws PermissionDeniedException,
+                    CannotCreateSessionException, ServerError {
+            StopWatch t0 = new MetricsStopWatch("OmeroClientPool.join");
+            omero.client newClient = newClient();
+            try {
+                newClient.joinSession(omeroSessionKey).detachOnDestroy();
+                return newClient;
+            } catch (PermissionDeniedException | CannotCreateSessionException
+                    | ServerError | RuntimeException e) {
+                newClient.__del__();
+                throw e;
+            } finally {
+                t0.stop();
+            }
+        }
+
+        /**
+         * Rethrows the failure of a join made by another request.
+         * @param t failure of the join.
+         * @return Never returns normally.
+         */
+        private RuntimeException rethrow(Throwable t)
+                throws PermissionDeniedException,
+                    CannotCreateSessionException, ServerError {
+            if (t instanceof PermissionDeniedException) {
+                throw (PermissionDeniedException) t;
+            }
+            if (t instanceof CannotCreateSessionException) {
+                throw (CannotCreateSessionException) t;
+            }
+            if (t instanceof ServerError) {
+                throw (ServerError) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            return new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * An OMERO client which has joined an OMERO session.  The borrow count
+     * and staleness are guarded by the owning {@link PooledClient}'s
+     * monitor; service proxies by this client's own monitor.
+     */
+    private static class JoinedClient {
+
+        /** Joined client */
+        final omero.client client;
+
+        /** Query service proxy of <code>client</code> once retrieved */
+        private IQueryPrx queryService;
+
+        /** Pixels service proxy of <code>client</code> once retrieved */
+        private IPixelsPrx pixelsService;
+
+        /** Number of requests currently using the client */
+        int borrowed = 0;
+
+        /**
+         * Whether or not the client has been replaced and should be closed
+         * once it is no longer in use
+         */
+        boolean stale = false;
+
+        JoinedClient(omero.client client) {
+            this.client = client;
+        }
+
+        /**
+         * Marks the client as no longer in use by a request.
+         * @return This client if it is stale and no longer in use, and so
+         * should be closed by the caller, otherwise <code>null</code>.
+         */
+        JoinedClient release() {
+            borrowed--;
+            return stale && borrowed == 0? this : null;
+        }
+
+        /**
+         * Retrieves the query service proxy, reusing the proxy retrieved by
+         * a previous request.
+         * @return See above.
+         */
+        synchronized IQueryPrx getQueryService() throws ServerError {
+            if (queryService == null) {
+                queryService = client.getSession().getQueryService();
+            }
+            return queryService;
+        }
+
+        /**
+         * Retrieves the pixels service proxy, reusing the proxy retrieved by
+         * a previous request.
+         * @return See above.
+         */
+        synchronized IPixelsPrx getPixelsService() throws ServerError {
+            if (pixelsService == null) {
+                pixelsService = client.getSession().getPixelsService();
+            }
+            return pixelsService;
+        }
+    }
+
+    /**
+     * A single use of a pooled client; closing the request returns the
+     * client to the pool.
+     */
+    public class PooledRequest implements AutoCloseable {
+
+        /** Pooled client in use by this request */
+        private final PooledClient pooledClient;
+
+        /** Joined client in use by this request */
+        private final JoinedClient joined;
+
+        /** Whether or not this request has been closed */
+        private boolean closed = false;
+
+        PooledRequest(PooledClient pooledClient, JoinedClient joined) {
+            this.pooledClient = pooledClient;
+            this.joined = joined;
+        }
+
+        /**
+         * Executes an action using the joined client.
+         * @param action action to execute.
+         * @return Result of the action.
+         */
+        public <T> T execute(Function<omero.client, T> action) {
+            return action.apply(joined.client);
+        }
+
+        /**
+         * Query service of the joined client, for use with asynchronous
+         * calls which cannot be made through {@link #execute(Function)}.
+         * @return See above.
+         * @throws ServerError If the service could not be retrieved.
+         */
+        public IQueryPrx getQueryService() throws ServerError {
+            return joined.getQueryService();
+        }
+
+        /**
+         * Pixels service of the joined client, for use with asynchronous
+         * calls which cannot be made through {@link #execute(Function)}.
+         * @return See above.
+         * @throws ServerError If the service could not be retrieved.
+         */
+        public IPixelsPrx getPixelsService() throws ServerError {
+            return joined.getPixelsService();
+        }
+
+        /**
+         * Returns the client to the pool.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            pooledClient.release(joined);
+        }
+    }
+}
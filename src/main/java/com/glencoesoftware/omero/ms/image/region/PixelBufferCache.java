@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.json.JsonObject;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+
+/**
+ * Cache of open pixel buffers keyed by {@link Pixels} identifier.  Opening
+ * a pixel buffer for a Bio-Formats backed or pyramid file parses the file
+ * headers, which can cost more than rendering from it, so buffers are
+ * returned to the cache when closed rather than being closed.  Pixel
+ * buffers are not thread safe so each is leased to a single user at a time
+ * and concurrent users of the same {@link Pixels} each lease their own.
+ * The number of idle buffers is bounded, least recently used first, and
+ * idle buffers are closed after a timeout by {@link #evictIdle()}.
+ */
+public class PixelBufferCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PixelBufferCache.class);
+
+    /** Pixels service used to open pixel buffers */
+    private final PixelsService pixelsService;
+
+    /** Maximum number of idle pixel buffers */
+    private final int maxIdle;
+
+    /** Time in milliseconds after which an idle pixel buffer is closed */
+    private final long idleTimeout;
+
+    /** Idle pixel buffers for each {@link Pixels} identifier */
+    private final Map<Long, Deque<IdleBuffer>> idleByPixelsId =
+            new HashMap<Long, Deque<IdleBuffer>>();
+
+    /** All idle pixel buffers, least recently used first */
+    private final LinkedList<IdleBuffer> idle = new LinkedList<IdleBuffer>();
+
+    /** Number of leases satisfied by an idle pixel buffer */
+    private long hits = 0;
+
+    /** Number of leases which required a pixel buffer to be opened */
+    private long misses = 0;
+
+    /** Number of idle pixel buffers closed to stay within bounds */
+    private long evictions = 0;
+
+    /**
+     * Default constructor.
+     * @param pixelsService pixels service used to open pixel buffers.
+     * @param maxIdle maximum number of idle pixel buffers; <code>0</code>
+     * disables caching.
+     * @param idleTimeout time in milliseconds after which an idle pixel
+     * buffer is closed.
+     */
+    public PixelBufferCache(
+            PixelsService pixelsService, int maxIdle, long idleTimeout) {
+        this.pixelsService = pixelsService;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Creates a cache from configuration.
+     * @param pixelsService pixels service used to open pixel buffers.
+     * @param config <code>pixel-buffer-cache</code> configuration block; may
+     * be <code>null</code> in which case defaults are used.
+     * @return A new cache.
+     */
+    public static PixelBufferCache fromConfig(
+            PixelsService pixelsService, JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        int maxIdle = config.getInteger("max-idle", 16);
+        long idleTimeout = config.getLong("idle-timeout", 60L) * 1000;
+        log.info("Pixel buffer cache max-idle: {} idle-timeout: {}ms",
+                maxIdle, idleTimeout);
+        return new PixelBufferCache(pixelsService, maxIdle, idleTimeout);
+    }
+
+    /**
+     * Time in milliseconds after which an idle pixel buffer is closed.
+     * @return See above.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Leases a pixel buffer for the given {@link Pixels}, opening one if
+     * there is no idle pixel buffer available.  Closing the returned pixel
+     * buffer returns it to the cache; it must not be used afterwards.
+     * @param pixels pixels metadata to lease a pixel buffer for.
+     * @return See above.
+     */
+    public PixelBuffer getPixelBuffer(Pixels pixels) {
+        Long pixelsId = pixels.getId();
+        PixelBuffer pixelBuffer = null;
+        synchronized (this) {
+            Deque<IdleBuffer> candidates = idleByPixelsId.get(pixelsId);
+            if (candidates != null) {
+                IdleBuffer idleBuffer = candidates.pollLast();
+                if (candidates.isEmpty()) {
+                    idleByPixelsId.remove(pixelsId);
+                }
+                idle.remove(idleBuffer);
+                pixelBuffer = idleBuffer.pixelBuffer;
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (pixelBuffer == null) {
+            log.debug("Opening pixel buffer for Pixels:{}", pixelsId);
+            pixelBuffer = pixelsService.getPixelBuffer(pixels, false);
+        }
+        return lease(pixelsId, pixelBuffer);
+    }
+
+    /**
+     * Wraps a pixel buffer so that closing it returns it to the cache.
+     * @param pixelsId {@link Pixels} identifier of the pixel buffer.
+     * @param pixelBuffer pixel buffer to wrap.
+     * @return See above.
+     */
+    private PixelBuffer lease(Long pixelsId, PixelBuffer pixelBuffer) {
+        boolean[] released = new boolean[] { false };
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class },
+                (proxy, method, args) -> {
+                    synchronized (released) {
+                        if (method.getName().equals("close")
+                                && method.getParameterCount() == 0) {
+                            if (!released[0]) {
+                                released[0] = true;
+                                release(pixelsId, pixelBuffer);
+                            }
+                            return null;
+                        }
+                        if (released[0]) {
+                            throw new IllegalStateException(
+                                    "Pixel buffer used after close");
+                        }
+                    }
+                    try {
+                        return method.invoke(pixelBuffer, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * Returns a leased pixel buffer to the cache, closing it instead if the
+     * cache is full or it cannot be reset.
+     * @param pixelsId {@link Pixels} identifier of the pixel buffer.
+     * @param pixelBuffer pixel buffer to return.
+     */
+    private void release(Long pixelsId, PixelBuffer pixelBuffer) {
+        List<PixelBuffer> toClose = new ArrayList<PixelBuffer>();
+        try {
+            // Users may leave the pixel buffer at any resolution level
+            int resolutionLevels = pixelBuffer.getResolutionLevels();
+            if (resolutionLevels > 1) {
+                pixelBuffer.setResolutionLevel(resolutionLevels - 1);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to reset pixel buffer for Pixels:{}",
+                    pixelsId, e);
+            close(pixelBuffer);
+            return;
+        }
+        synchronized (this) {
+            if (maxIdle < 1) {
+                toClose.add(pixelBuffer);
+            } else {
+                IdleBuffer idleBuffer = new IdleBuffer(pixelsId, pixelBuffer);
+                idleByPixelsId.computeIfAbsent(
+                        pixelsId, k -> new ArrayDeque<IdleBuffer>())
+                    .addLast(idleBuffer);
+                idle.addLast(idleBuffer);
+                while (idle.size() > maxIdle) {
+                    toClose.add(removeIdle(idle.removeFirst()));
+                    evictions++;
+                }
+            }
+        }
+        toClose.forEach(this::close);
+    }
+
+    /**
+     * Closes idle pixel buffers which have exceeded the idle timeout.
+     * Performs potentially blocking I/O.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<PixelBuffer> toClose = new ArrayList<PixelBuffer>();
+        synchronized (this) {
+            Iterator<IdleBuffer> i = idle.iterator();
+            while (i.hasNext()) {
+                IdleBuffer idleBuffer = i.next();
+                if (now - idleBuffer.released < idleTimeout) {
+                    // Least recently used first so no more have expired
+                    break;
+                }
+                i.remove();
+                toClose.add(removeIdle(idleBuffer));
+            }
+        }
+        if (!toClose.isEmpty()) {
+            log.debug("Closing {} idle pixel buffer(s)", toClose.size());
+        }
+        toClose.forEach(this::close);
+    }
+
+    /**
+     * Closes all idle pixel buffers.  Performs potentially blocking I/O.
+     */
+    public void clear() {
+        List<PixelBuffer> toClose = new ArrayList<PixelBuffer>();
+        synchronized (this) {
+            for (IdleBuffer idleBuffer : idle) {
+                toClose.add(idleBuffer.pixelBuffer);
+            }
+            idle.clear();
+            idleByPixelsId.clear();
+        }
+        toClose.forEach(this::close);
+    }
+
+    /**
+     * Removes an idle pixel buffer from the per {@link Pixels} index.
+     * Must be called with the lock held.
+     * @param idleBuffer idle pixel buffer to remove.
+     * @return The pixel buffer of <code>idleBuffer</code>.
+     */
+    private PixelBuffer removeIdle(IdleBuffer idleBuffer) {
+        Deque<IdleBuffer> candidates =
+                idleByPixelsId.get(idleBuffer.pixelsId);
+        if (candidates != null) {
+            candidates.remove(idleBuffer);
+            if (candidates.isEmpty()) {
+                idleByPixelsId.remove(idleBuffer.pixelsId);
+            }
+        }
+        return idleBuffer.pixelBuffer;
+    }
+
+    /**
+     * Closes a pixel buffer, logging any failure.
+     * @param pixelBuffer pixel buffer to close.
+     */
+    private void close(PixelBuffer pixelBuffer) {
+        try {
+            pixelBuffer.close();
+        } catch (IOException e) {
+            log.warn("Failed to close pixel buffer", e);
+        }
+    }
+
+    /**
+     * Number of idle pixel buffers.
+     * @return See above.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Number of leases satisfied by an idle pixel buffer.
+     * @return See above.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of leases which required a pixel buffer to be opened.
+     * @return See above.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of idle pixel buffers closed to stay within bounds.
+     * @return See above.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long leases = hits + misses;
+        return String.format(
+                "PixelBufferCache[idle=%d hits=%d misses=%d hitRate=%.3f " +
+                "evictions=%d]",
+                idle.size(), hits, misses,
+                leases == 0? 0.0 : (double) hits / leases, evictions);
+    }
+
+    /**
+     * An idle pixel buffer.
+     */
+    private static class IdleBuffer {
+
+        /** {@link Pixels} identifier of the pixel buffer */
+        final Long pixelsId;
+
+        /** Open pixel buffer */
+        final PixelBuffer pixelBuffer;
+
+        /** Time in milliseconds since the epoch the buffer became idle */
+        final long released = System.currentTimeMillis();
+
+        IdleBuffer(Long pixelsId, PixelBuffer pixelBuffer) {
+            this.pixelsId = pixelsId;
+            this.pixelBuffer = pixelBuffer;
+        }
+    }
+}
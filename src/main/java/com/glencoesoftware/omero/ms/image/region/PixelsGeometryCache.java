@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.perf4j.StopWatch;
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.json.JsonObject;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+
+/**
+ * Caches the pyramid geometry of {@link Pixels}; the dimensions of each
+ * resolution level and the tile size.  Retrieving resolution descriptions
+ * from a pixel buffer can be very expensive as it may require file level
+ * introspection.  The geometry does not depend on the OMERO session so
+ * entries are shared by all requests.  Entries are invalidated if the
+ * {@link Pixels} dimensions no longer match, after a timeout or
+ * explicitly.
+ */
+public class PixelsGeometryCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PixelsGeometryCache.class);
+
+    /** Maximum number of entries in the cache */
+    private final int maxEntries;
+
+    /** Time in milliseconds after which an entry expires */
+    private final long timeToLive;
+
+    /** Cached geometry keyed by {@link Pixels} identifier */
+    private final Map<Long, PixelsGeometry> cache;
+
+    /** Number of cache hits */
+    private long hits = 0;
+
+    /** Number of cache misses */
+    private long misses = 0;
+
+    /**
+     * Default constructor.
+     * @param maxEntries maximum number of entries in the cache.
+     * @param timeToLive time in milliseconds after which an entry expires.
+     */
+    public PixelsGeometryCache(int maxEntries, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        cache = new LinkedHashMap<Long, PixelsGeometry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, PixelsGeometry> eldest) {
+                return size() > PixelsGeometryCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache from configuration.
+     * @param config <code>pixels-geometry-cache</code> configuration block.
+     * May be <code>null</code> in which case defaults are used.
+     * @return See above.
+     */
+    public static PixelsGeometryCache fromConfig(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        int maxEntries = config.getInteger("max-entries", 1000);
+        long timeToLive = config.getLong("time-to-live", 3600L) * 1000;
+        log.info("Pixels geometry cache max-entries: {} time-to-live: {}ms",
+                maxEntries, timeToLive);
+        return new PixelsGeometryCache(maxEntries, timeToLive);
+    }
+
+    /**
+     * Retrieves the pyramid geometry of a {@link Pixels}, from its pixel
+     * buffer if there is no valid cached entry.  A cached entry whose
+     * number of resolution levels no longer matches the pixel buffer, for
+     * example because the pixel data has been regenerated, is invalidated.
+     * @param pixels pixels metadata.
+     * @param pixelBuffer open pixel buffer for <code>pixels</code> at full
+     * resolution.
+     * @return See above.
+     */
+    public PixelsGeometry getGeometry(Pixels pixels, PixelBuffer pixelBuffer) {
+        Long pixelsId = pixels.getId();
+        PixelsGeometry cached;
+        synchronized (cache) {
+            cached = cache.get(pixelsId);
+        }
+        if (cached != null && cached.isValid(pixels)) {
+            int levels = pixelBuffer.getResolutionLevels();
+            if (levels == cached.getResolutionLevels().size()) {
+                synchronized (cache) {
+                    hits++;
+                }
+                return cached;
+            }
+            log.debug("Pixels:{} resolution levels changed from {} to {}",
+                    pixelsId, cached.getResolutionLevels().size(), levels);
+            invalidate(pixelsId);
+        }
+        synchronized (cache) {
+            misses++;
+        }
+
+        StopWatch t0 = new MetricsStopWatch("getPixelsGeometry");
+        try {
+            // Avoid asking for resolution descriptions if there is no image
+            // pyramid.  This can be *very* expensive.
+            int countResolutionLevels = pixelBuffer.getResolutionLevels();
+            List<List<Integer>> resolutionLevels;
+            if (countResolutionLevels > 1) {
+                resolutionLevels = pixelBuffer.getResolutionDescriptions();
+            } else {
+                resolutionLevels = new ArrayList<List<Integer>>();
+                resolutionLevels.add(
+                        Arrays.asList(pixels.getSizeX(), pixels.getSizeY()));
+            }
+            PixelsGeometry geometry = new PixelsGeometry(
+                    pixels, resolutionLevels, pixelBuffer.getTileSize());
+            if (pixelsId != null) {
+                synchronized (cache) {
+                    cache.put(pixelsId, geometry);
+                }
+            }
+            return geometry;
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * Removes any cached geometry for a {@link Pixels}.
+     * @param pixelsId {@link Pixels} identifier.
+     */
+    public void invalidate(long pixelsId) {
+        synchronized (cache) {
+            cache.remove(pixelsId);
+        }
+    }
+
+    /**
+     * Number of cache hits.
+     * @return See above.
+     */
+    public long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * Number of cache misses.
+     * @return See above.
+     */
+    public long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    /**
+     * Pyramid geometry of a single {@link Pixels}.
+     */
+    public class PixelsGeometry {
+
+        /** Time in milliseconds since the epoch the entry was created */
+        private final long created = System.currentTimeMillis();
+
+        /** Full resolution width of the {@link Pixels} */
+        private final int sizeX;
+
+        /** Full resolution height of the {@link Pixels} */
+        private final int sizeY;
+
+        /** Dimensions of each resolution level, full resolution first */
+        private final List<List<Integer>> resolutionLevels;
+
+        /** Tile size */
+        private final Dimension tileSize;
+
+        PixelsGeometry(
+                Pixels pixels, List<List<Integer>> resolutionLevels,
+                Dimension tileSize) {
+            this.sizeX = pixels.getSizeX();
+            this.sizeY = pixels.getSizeY();
+            this.resolutionLevels =
+                    Collections.unmodifiableList(resolutionLevels);
+            this.tileSize = new Dimension(tileSize);
+        }
+
+        /**
+         * Whether or not this entry can still be used for the given
+         * {@link Pixels}.
+         * @param pixels current pixels metadata.
+         * @return See above.
+         */
+        boolean isValid(Pixels pixels) {
+            return sizeX == pixels.getSizeX()
+                    && sizeY == pixels.getSizeY()
+                    && System.currentTimeMillis() - created <= timeToLive;
+        }
+
+        /** @return Dimensions of each resolution level, full resolution
+         * first. */
+        public List<List<Integer>> getResolutionLevels() {
+            return resolutionLevels;
+        }
+
+        /** @return Tile size. */
+        public Dimension getTileSize() {
+            return new Dimension(tileSize);
+        }
+    }
+}
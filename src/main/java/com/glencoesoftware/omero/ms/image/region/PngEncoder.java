@@ -0,0 +1,618 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.IntFunction;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * PNG encoder writing directly from packed integer RGB pixels and from
+ * palette indexes, with a configurable deflate level and row filter.
+ * Large images may be compressed in parallel: the filtered rows are split
+ * into strips, each deflated independently, primed with the end of the
+ * previous strip as a dictionary and flushed to a byte boundary so that
+ * the strips concatenate into a single zlib stream.
+ */
+public class PngEncoder {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PngEncoder.class);
+
+    /** Row filters; see the PNG specification, section 9 */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Chooses the filter of each row which minimizes the sum of the
+         * absolute values of its filtered bytes
+         */
+        ADAPTIVE
+    }
+
+    /** Default deflate level, matching the ImageIO PNG writer */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    /** PNG file signature */
+    private static final byte[] SIGNATURE = new byte[] {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    /** Maximum size of a deflate dictionary */
+    private static final int DICTIONARY_SIZE = 32768;
+
+    /** PNG color type of RGB images */
+    private static final int COLOR_TYPE_RGB = 2;
+
+    /** PNG color type of palette indexed images */
+    private static final int COLOR_TYPE_INDEXED = 3;
+
+    /** Deflate level, from 0 for none to 9 for best compression */
+    private final int compressionLevel;
+
+    /** Row filter of RGB images; indexed images are not filtered */
+    private final Filter filter;
+
+    /**
+     * Number of pixels from which images are compressed in parallel; 0
+     * disables parallel compression
+     */
+    private final int parallelThreshold;
+
+    /**
+     * Pool to compress large images on or <code>null</code> if images are
+     * compressed on the calling thread
+     */
+    private final ForkJoinPool pool;
+
+    /** Raw deflater of each thread */
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * Creates an encoder with the default deflate level and adaptive
+     * filtering, compressing on the calling thread.
+     */
+    public PngEncoder() {
+        this(DEFAULT_COMPRESSION_LEVEL, Filter.ADAPTIVE, 0, null);
+    }
+
+    /**
+     * Default constructor.
+     * @param compressionLevel deflate level, from 0 for none to 9 for best
+     * compression.
+     * @param filter row filter of RGB images.
+     * @param parallelThreshold number of pixels from which images are
+     * compressed in parallel on <code>pool</code>; 0 disables parallel
+     * compression.
+     * @param pool pool to compress large images on or <code>null</code> if
+     * images are to be compressed on the calling thread.
+     */
+    public PngEncoder(
+            int compressionLevel, Filter filter, int parallelThreshold,
+            ForkJoinPool pool) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException(
+                    "png.compression-level must be between 0 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.parallelThreshold = parallelThreshold;
+        this.pool = pool;
+        deflaters = ThreadLocal.withInitial(
+                () -> new Deflater(compressionLevel, true));
+    }
+
+    /**
+     * Creates an encoder from configuration.
+     * @param config <code>png</code> block of the <code>encoder</code>
+     * configuration.  May be <code>null</code> in which case defaults are
+     * used.
+     * @return See above.
+     */
+    public static PngEncoder fromConfig(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        int compressionLevel = config.getInteger(
+                "compression-level", DEFAULT_COMPRESSION_LEVEL);
+        Filter filter = Filter.valueOf(
+                config.getString("filter", "adaptive").toUpperCase());
+        int parallelThreshold = config.getInteger("parallel-threshold", 0);
+        int parallelism = config.getInteger(
+                "parallelism", Runtime.getRuntime().availableProcessors());
+        log.info("PNG compression-level: {} filter: {} " +
+                "parallel-threshold: {} parallelism: {}",
+                compressionLevel, filter, parallelThreshold, parallelism);
+        ForkJoinPool pool = null;
+        if (parallelThreshold > 0 && parallelism > 1) {
+            pool = new ForkJoinPool(
+                    parallelism,
+                    p -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool
+                                .defaultForkJoinWorkerThreadFactory
+                                .newThread(p);
+                        thread.setName("png-" + thread.getPoolIndex());
+                        return thread;
+                    },
+                    null, false);
+        }
+        return new PngEncoder(
+                compressionLevel, filter, parallelThreshold, pool);
+    }
+
+    /**
+     * Encodes an RGB image.
+     * @param pixels packed <code>0x00RRGGBB</code> pixels, row by row; the
+     * high byte is ignored.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error writing the image.
+     */
+    public void encodeRgb(
+            int[] pixels, int width, int height, OutputStream output)
+                    throws IOException {
+        int rowBytes = checkSize(width, height, 24);
+        byte[] filtered = new byte[(rowBytes + 1) * height];
+        int strips = strips(width, height);
+        run(strips, strip -> {
+            int[] rows = stripRows(strip, strips, height);
+            filterRgb(pixels, width, rows[0], rows[1], filtered);
+            return null;
+        });
+        writeImage(output, width, height, 8, COLOR_TYPE_RGB, null, null,
+                filtered, rowBytes, strips);
+    }
+
+    /**
+     * Encodes a palette indexed image.
+     * @param indexes palette indexes, row by row, with each row starting
+     * on a byte boundary; for bit depths below 8 multiple indexes are
+     * packed into each byte, most significant bits first.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param bitDepth bits per index; 1, 2, 4 or 8.
+     * @param colorModel palette, including transparency.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error writing the image.
+     */
+    public void encodeIndexed(
+            byte[] indexes, int width, int height, int bitDepth,
+            IndexColorModel colorModel, OutputStream output)
+                    throws IOException {
+        if (bitDepth != 1 && bitDepth != 2 && bitDepth != 4
+                && bitDepth != 8) {
+            throw new IllegalArgumentException(
+                    "Unsupported bit depth: " + bitDepth);
+        }
+        int rowBytes = checkSize(width, height, bitDepth);
+        if (indexes.length < rowBytes * height) {
+            throw new IllegalArgumentException(
+                    "Expected " + rowBytes * height + " bytes of indexes");
+        }
+        int size = colorModel.getMapSize();
+        byte[] palette = new byte[size * 3];
+        byte[] alphas = new byte[size];
+        int transparent = 0;
+        for (int i = 0; i < size; i++) {
+            palette[i * 3] = (byte) colorModel.getRed(i);
+            palette[i * 3 + 1] = (byte) colorModel.getGreen(i);
+            palette[i * 3 + 2] = (byte) colorModel.getBlue(i);
+            alphas[i] = (byte) colorModel.getAlpha(i);
+            if (colorModel.getAlpha(i) != 0xFF) {
+                transparent = i + 1;
+            }
+        }
+        // Palette images are not filtered, as the PNG specification
+        // recommends; filters rarely help with indexes
+        byte[] filtered = new byte[(rowBytes + 1) * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(indexes, y * rowBytes,
+                    filtered, y * (rowBytes + 1) + 1, rowBytes);
+        }
+        writeImage(output, width, height, bitDepth, COLOR_TYPE_INDEXED,
+                palette, transparent > 0?
+                        Arrays.copyOf(alphas, transparent) : null,
+                filtered, rowBytes, strips(width, height));
+    }
+
+    /**
+     * Validates the dimensions of an image.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param bitsPerPixel bits per pixel.
+     * @return Number of bytes in each unfiltered row.
+     */
+    private static int checkSize(int width, int height, int bitsPerPixel) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid size: " + width + "x" + height);
+        }
+        long rowBytes = ((long) width * bitsPerPixel + 7) / 8;
+        if ((rowBytes + 1) * height > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(
+                    "Image too large: " + width + "x" + height);
+        }
+        return (int) rowBytes;
+    }
+
+    /**
+     * Number of strips to filter and compress an image in.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return See above.
+     */
+    private int strips(int width, int height) {
+        if (pool == null || parallelThreshold < 1
+                || (long) width * height < parallelThreshold) {
+            return 1;
+        }
+        return Math.min(pool.getParallelism(), height);
+    }
+
+    /**
+     * First row and row after the last of a strip.
+     * @param strip index of the strip.
+     * @param strips number of strips.
+     * @param height height of the image.
+     * @return See above.
+     */
+    private static int[] stripRows(int strip, int strips, int height) {
+        return new int[] {
+            (int) ((long) height * strip / strips),
+            (int) ((long) height * (strip + 1) / strips)
+        };
+    }
+
+    /**
+     * Runs a task for each strip, in parallel if there is more than one.
+     * @param strips number of strips.
+     * @param task task to run for each strip index.
+     * @return Result of the task for each strip.
+     */
+    private <T> List<T> run(int strips, IntFunction<T> task) {
+        List<T> results = new ArrayList<T>(strips);
+        if (strips == 1) {
+            results.add(task.apply(0));
+            return results;
+        }
+        List<ForkJoinTask<T>> tasks = new ArrayList<ForkJoinTask<T>>();
+        for (int i = 0; i < strips; i++) {
+            int strip = i;
+            tasks.add(pool.submit(() -> task.apply(strip)));
+        }
+        // Wait for all strips, even on failure, so that no task is still
+        // writing once the caller has given up on the image
+        RuntimeException error = null;
+        for (ForkJoinTask<T> t : tasks) {
+            try {
+                results.add(t.join());
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return results;
+    }
+
+    /**
+     * Converts rows of packed RGB pixels to bytes and filters them.
+     * @param pixels packed RGB pixels.
+     * @param width width of the image.
+     * @param start first row to filter.
+     * @param end row after the last to filter.
+     * @param filtered filtered image, each row prefixed by its filter
+     * type.
+     */
+    private void filterRgb(
+            int[] pixels, int width, int start, int end, byte[] filtered) {
+        int rowBytes = width * 3;
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = null;
+        if (filter == Filter.ADAPTIVE) {
+            candidates = new byte[Filter.ADAPTIVE.ordinal()][rowBytes];
+        }
+        if (start > 0) {
+            unpackRow(pixels, width, start - 1, previous);
+        }
+        for (int y = start; y < end; y++) {
+            unpackRow(pixels, width, y, current);
+            int offset = y * (rowBytes + 1);
+            if (candidates == null) {
+                filtered[offset] = (byte) filter.ordinal();
+                filterRow(filter, current, previous, 3,
+                        filtered, offset + 1);
+            } else {
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < candidates.length; type++) {
+                    long sum = filterRow(Filter.values()[type], current,
+                            previous, 3, candidates[type], 0);
+                    if (sum < bestSum) {
+                        best = type;
+                        bestSum = sum;
+                    }
+                }
+                filtered[offset] = (byte) best;
+                System.arraycopy(candidates[best], 0,
+                        filtered, offset + 1, rowBytes);
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+    }
+
+    /**
+     * Converts a row of packed RGB pixels to bytes.
+     * @param pixels packed RGB pixels.
+     * @param width width of the image.
+     * @param y row to convert.
+     * @param row destination of the converted row.
+     */
+    private static void unpackRow(int[] pixels, int width, int y, byte[] row) {
+        for (int x = 0, i = y * width, j = 0; x < width; x++, i++) {
+            int pixel = pixels[i];
+            row[j++] = (byte) (pixel >> 16);
+            row[j++] = (byte) (pixel >> 8);
+            row[j++] = (byte) pixel;
+        }
+    }
+
+    /**
+     * Filters a row.
+     * @param filter filter to apply; not {@link Filter#ADAPTIVE}.
+     * @param current row to filter.
+     * @param previous row above <code>current</code>, all zeros for the
+     * first row.
+     * @param bpp bytes per complete pixel, rounded up to 1.
+     * @param dst destination of the filtered row.
+     * @param offset offset in <code>dst</code> to write to.
+     * @return Sum of the absolute values of the filtered bytes, as signed
+     * bytes.
+     */
+    static long filterRow(
+            Filter filter, byte[] current, byte[] previous, int bpp,
+            byte[] dst, int offset) {
+        long sum = 0;
+        for (int i = 0; i < current.length; i++) {
+            int x = current[i] & 0xFF;
+            int a = i >= bpp? current[i - bpp] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bpp? previous[i - bpp] & 0xFF : 0;
+            int predictor;
+            switch (filter) {
+                case SUB:
+                    predictor = a;
+                    break;
+                case UP:
+                    predictor = b;
+                    break;
+                case AVERAGE:
+                    predictor = (a + b) >>> 1;
+                    break;
+                case PAETH:
+                    predictor = paeth(a, b, c);
+                    break;
+                default:
+                    predictor = 0;
+            }
+            byte value = (byte) (x - predictor);
+            dst[offset + i] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    /**
+     * Paeth predictor.
+     * @param a byte to the left.
+     * @param b byte above.
+     * @param c byte above and to the left.
+     * @return Whichever of <code>a</code>, <code>b</code> or
+     * <code>c</code> is closest to <code>a + b - c</code>.
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc? b : c;
+    }
+
+    /**
+     * Compresses filtered rows and writes the complete PNG.
+     * @param output stream to write to.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param bitDepth bits per sample or index.
+     * @param colorType PNG color type.
+     * @param palette <code>PLTE</code> chunk data or <code>null</code>.
+     * @param transparency <code>tRNS</code> chunk data or
+     * <code>null</code>.
+     * @param filtered filtered image, each row prefixed by its filter
+     * type.
+     * @param rowBytes number of bytes in each unfiltered row.
+     * @param strips number of strips to compress the image in.
+     * @throws IOException If there is an error writing the image.
+     */
+    private void writeImage(
+            OutputStream output, int width, int height, int bitDepth,
+            int colorType, byte[] palette, byte[] transparency,
+            byte[] filtered, int rowBytes, int strips) throws IOException {
+        List<byte[]> compressed = run(strips, strip -> {
+            int[] rows = stripRows(strip, strips, height);
+            int start = rows[0] * (rowBytes + 1);
+            int end = rows[1] * (rowBytes + 1);
+            return deflate(filtered, start, end - start,
+                    Math.max(0, start - DICTIONARY_SIZE),
+                    strip == strips - 1);
+        });
+        Adler32 adler32 = new Adler32();
+        adler32.update(filtered, 0, filtered.length);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = (byte) colorType;
+        output.write(SIGNATURE);
+        writeChunk(output, "IHDR", header);
+        if (palette != null) {
+            writeChunk(output, "PLTE", palette);
+        }
+        if (transparency != null) {
+            writeChunk(output, "tRNS", transparency);
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) adler32.getValue());
+        compressed.add(0, zlibHeader());
+        compressed.add(trailer);
+        writeChunk(output, "IDAT", compressed.toArray(new byte[0][]));
+        writeChunk(output, "IEND");
+    }
+
+    /**
+     * Deflates part of the filtered image, without a zlib wrapper.
+     * @param data filtered image.
+     * @param offset offset of the first byte to compress.
+     * @param length number of bytes to compress.
+     * @param dictionary offset of the first byte preceding
+     * <code>offset</code> to prime the deflater with.
+     * @param last whether or not this is the end of the image; if not the
+     * output is flushed to a byte boundary rather than finished.
+     * @return Compressed bytes.
+     */
+    private byte[] deflate(
+            byte[] data, int offset, int length, int dictionary,
+            boolean last) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        try {
+            if (dictionary < offset) {
+                deflater.setDictionary(data, dictionary, offset - dictionary);
+            }
+            deflater.setInput(data, offset, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] buffer = new byte[Math.max(64, length / 4)];
+            int size = 0;
+            while (true) {
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int space = buffer.length - size;
+                int count = deflater.deflate(buffer, size, space,
+                        last? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += count;
+                if (last? deflater.finished() : count < space) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buffer, size);
+        } finally {
+            // Release the reference to the image data
+            deflater.reset();
+        }
+    }
+
+    /**
+     * zlib stream header for the deflate level.
+     * @return See above.
+     */
+    private byte[] zlibHeader() {
+        int cmf = 0x78;  // Deflate with a 32K window
+        int level = compressionLevel < 2? 0
+                : compressionLevel < 6? 1
+                : compressionLevel == 6? 2 : 3;
+        int flg = level << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    /**
+     * Writes a chunk.
+     * @param output stream to write to.
+     * @param type chunk type.
+     * @param parts chunk data.
+     * @throws IOException If there is an error writing the chunk.
+     */
+    private static void writeChunk(
+            OutputStream output, String type, byte[]... parts)
+                    throws IOException {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc32 = new CRC32();
+        crc32.update(typeBytes);
+        byte[] field = new byte[4];
+        putInt(field, 0, length);
+        output.write(field);
+        output.write(typeBytes);
+        for (byte[] part : parts) {
+            crc32.update(part);
+            output.write(part);
+        }
+        putInt(field, 0, (int) crc32.getValue());
+        output.write(field);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Shuts down the pool used for parallel compression, if any.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.OutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Output stream for encoders which writes into a pooled Netty
+ * {@link ByteBuf} rather than a growing, unpooled, array as
+ * {@link java.io.ByteArrayOutputStream} does.  The encoded bytes are
+ * copied exactly once, into an array of exactly the right size, by
+ * {@link #toByteArray()}; that array can then be cached, sent over the
+ * event bus and wrapped with
+ * {@link io.netty.buffer.Unpooled#wrappedBuffer(byte[])} for the HTTP
+ * response without being copied again.  The pooled buffer is returned to
+ * the pool when the stream is closed.
+ */
+public class PooledOutputStream extends OutputStream {
+
+    /** Largest initial capacity requested from the pool */
+    public static final int MAX_INITIAL_CAPACITY = 4 * 1024 * 1024;
+
+    /** Pooled buffer the encoded bytes are written to */
+    private ByteBuf buffer;
+
+    /**
+     * Creates a stream backed by a buffer from the default pooled
+     * allocator.
+     * @param initialCapacity expected size of the encoded output; capped at
+     * {@link #MAX_INITIAL_CAPACITY}.
+     */
+    public PooledOutputStream(int initialCapacity) {
+        this(PooledByteBufAllocator.DEFAULT, initialCapacity);
+    }
+
+    /**
+     * Creates a stream.
+     * @param allocator allocator to retrieve the backing buffer from.
+     * @param initialCapacity expected size of the encoded output; capped at
+     * {@link #MAX_INITIAL_CAPACITY}.
+     */
+    public PooledOutputStream(ByteBufAllocator allocator, int initialCapacity) {
+        buffer = allocator.heapBuffer(Math.max(
+                0, Math.min(initialCapacity, MAX_INITIAL_CAPACITY)));
+    }
+
+    @Override
+    public void write(int b) {
+        checkOpen();
+        buffer.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        checkOpen();
+        buffer.writeBytes(b, off, len);
+    }
+
+    /**
+     * Number of bytes written.
+     * @return See above.
+     */
+    public int size() {
+        checkOpen();
+        return buffer.readableBytes();
+    }
+
+    /**
+     * Copies the bytes written into a new array of exactly their size.
+     * @return See above.
+     */
+    public byte[] toByteArray() {
+        checkOpen();
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the backing buffer to the pool.  The stream cannot be used
+     * once it has been closed; closing it again has no effect.
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (buffer == null) {
+            throw new IllegalStateException("Stream is closed");
+        }
+    }
+}
@@ -20,6 +20,18 @@ package com.glencoesoftware.omero.ms.image.region;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,15 +39,21 @@ import org.slf4j.LoggerFactory;
 import ome.api.IProjection;
 import ome.conditions.ResourceError;
 import ome.conditions.ValidationException;
-import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.util.PixelData;
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
+import omeis.providers.re.data.PlaneFactory;
+import omeis.providers.re.data.RegionDef;
 
 /**
  * Implements projection functionality for Pixels sets as declared in {@link
  * IProjection}.  Adapted from {@link ome.services.projection.ProjectionBean}.
+ * Each supported pixels type has a specialized kernel which operates on
+ * typed primitive views of the pixel data rather than on a per pixel basis
+ * via {@link PixelData}.  If a {@link ForkJoinPool} is provided channels
+ * are projected in parallel and each optical section is projected in
+ * parallel row bands.
  */
 public class ProjectionService {
 
@@ -43,10 +61,154 @@ public class ProjectionService {
     private static Logger log =
             LoggerFactory.getLogger(ProjectionService.class);
 
+    /** Pixels types which have specialized kernels. */
+    private static final Set<String> KERNEL_PIXELS_TYPES =
+            new HashSet<String>(Arrays.asList(
+                    PlaneFactory.INT8, PlaneFactory.UINT8,
+                    PlaneFactory.INT16, PlaneFactory.UINT16,
+                    PlaneFactory.INT32, PlaneFactory.UINT32,
+                    PlaneFactory.FLOAT, PlaneFactory.DOUBLE));
+
+    /**
+     * Minimum number of pixels in a row band projected as a single task.
+     * Row bands are always made up of whole rows.
+     */
+    private static final int MIN_BAND_SIZE = 64 * 1024;
+
+    /**
+     * Whether or not to use the specialized pixels type kernels rather than
+     * per pixel {@link PixelData} access.
+     */
+    private final boolean typedKernels;
+
+    /**
+     * Pool to perform projections on or <code>null</code> if projections
+     * are to be performed on the calling thread.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Default constructor.  Uses the specialized pixels type kernels and
+     * performs projections on the calling thread.
+     */
+    public ProjectionService() {
+        this(true);
+    }
+
+    /**
+     * Constructor allowing the specialized pixels type kernels to be
+     * disabled, primarily for comparison purposes.  Performs projections on
+     * the calling thread.
+     * @param typedKernels whether or not to use the specialized pixels type
+     * kernels.
+     */
+    public ProjectionService(boolean typedKernels) {
+        this(typedKernels, null);
+    }
+
+    /**
+     * Full constructor.
+     * @param typedKernels whether or not to use the specialized pixels type
+     * kernels.
+     * @param pool pool to perform projections on or <code>null</code> if
+     * projections are to be performed on the calling thread.
+     */
+    public ProjectionService(boolean typedKernels, ForkJoinPool pool) {
+        this.typedKernels = typedKernels;
+        this.pool = pool;
+    }
+
+    /**
+     * Projects a region of the stack of multiple channels, in parallel if
+     * this service has a pool.  Reads from <code>pixelBuffer</code> are
+     * serialized.  The caller retains ownership of <code>pixelBuffer</code>
+     * and is responsible for closing it.
+     * @param pixels source Pixels set.
+     * @param pixelBuffer raw pixel data access buffer for
+     * <code>pixels</code>.
+     * @param algorithm projection algorithm as defined by
+     * {@link IProjection}.
+     * @param timepoint timepoint to project.
+     * @param channelIndexes channels to project.
+     * @param stepping stepping value to use while calculating the
+     * projection.
+     * @param start optical section to start projecting from.
+     * @param end optical section to finish projecting.
+     * @param region region of each optical section to project or
+     * <code>null</code> to project the entire optical section.
+     * @return Projected region of each channel, in the order of
+     * <code>channelIndexes</code>, in the pixels type of
+     * <code>pixels</code>.
+     * @see #projectStack(Pixels, PixelBuffer, int, int, int, int, int, int,
+     * RegionDef)
+     */
+    public byte[][] projectStacks(Pixels pixels, PixelBuffer pixelBuffer,
+                                  int algorithm, int timepoint,
+                                  int[] channelIndexes, int stepping,
+                                  int start, int end, RegionDef region)
+    {
+        byte[][] projected = new byte[channelIndexes.length][];
+        if (pool == null || channelIndexes.length < 2) {
+            for (int i = 0; i < channelIndexes.length; i++) {
+                projected[i] = projectStack(
+                        pixels, pixelBuffer, algorithm, timepoint,
+                        channelIndexes[i], stepping, start, end, region);
+            }
+            return projected;
+        }
+        List<ForkJoinTask<byte[]>> tasks =
+                new ArrayList<ForkJoinTask<byte[]>>();
+        for (int channelIndex : channelIndexes) {
+            tasks.add(pool.submit(() -> projectStack(
+                    pixels, pixelBuffer, algorithm, timepoint,
+                    channelIndex, stepping, start, end, region)));
+        }
+        // Wait for all channels, even on failure, so that no task is still
+        // reading from the pixel buffer once the caller closes it
+        RuntimeException error = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                projected[i] = tasks.get(i).join();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return projected;
+    }
+
+    /**
+     * Projects a region of a stack.  Only the requested region of each
+     * optical section is read from <code>pixelBuffer</code>, at the
+     * resolution level <code>pixelBuffer</code> is currently set to.  Reads
+     * from <code>pixelBuffer</code> are synchronized on it.  The caller
+     * retains ownership of <code>pixelBuffer</code> and is responsible for
+     * closing it.
+     * @param pixels source Pixels set.
+     * @param pixelBuffer raw pixel data access buffer for
+     * <code>pixels</code>.
+     * @param algorithm projection algorithm as defined by
+     * {@link IProjection}.
+     * @param timepoint timepoint to project.
+     * @param channelIndex channel to project.
+     * @param stepping stepping value to use while calculating the
+     * projection.
+     * @param start optical section to start projecting from.
+     * @param end optical section to finish projecting.
+     * @param region region of each optical section to project or
+     * <code>null</code> to project the entire optical section.
+     * @return Projected region in the pixels type of <code>pixels</code>.
+     */
     public byte[] projectStack(Pixels pixels, PixelBuffer pixelBuffer,
                                int algorithm, int timepoint,
                                int channelIndex, int stepping,
-                               int start, int end)
+                               int start, int end, RegionDef region)
     {
         ProjectionContext ctx = new ProjectionContext();
         ctx.pixels = pixels;
@@ -62,27 +224,39 @@ public class ProjectionService {
         if (channelIndex >= v) {
             throw new ValidationException("channel index must be <" + v);
         }
+        if (region == null) {
+            region = new RegionDef(
+                    0, 0, pixelBuffer.getSizeX(), pixelBuffer.getSizeY());
+        }
+        ctx.region = region;
+        ctx.timepoint = timepoint;
+        ctx.channelIndex = channelIndex;
         try {
             PixelsType pixelsType = pixels.getPixelsType();
-            ctx.planeSizeInPixels =
-                ctx.pixels.getSizeX() * ctx.pixels.getSizeY();
+            if (typedKernels
+                    && KERNEL_PIXELS_TYPES.contains(pixelsType.getValue())) {
+                ctx.pixelsType = pixelsType.getValue();
+            }
+            ctx.planeSizeInPixels = region.getWidth() * region.getHeight();
             int planeSize =
                 ctx.planeSizeInPixels * (pixelsType.getBitSize() / 8);
             byte[] buf = new byte[planeSize];
-            ctx.from = pixelBuffer.getStack(channelIndex, timepoint);
             ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
 
             switch (algorithm) {
                 case IProjection.MAXIMUM_INTENSITY: {
-                    projectStackMax(ctx, stepping, start, end, false);
+                    projectStackMax(ctx, pixelBuffer, stepping, start, end,
+                                    false);
                     break;
                 }
                 case IProjection.MEAN_INTENSITY: {
-                    projectStackMean(ctx, stepping, start, end, false);
+                    projectStackMean(ctx, pixelBuffer, stepping, start, end,
+                                     false);
                     break;
                 }
                 case IProjection.SUM_INTENSITY: {
-                    projectStackSum(ctx, stepping, start, end, false);
+                    projectStackSum(ctx, pixelBuffer, stepping, start, end,
+                                    false);
                     break;
                 }
                 default: {
@@ -98,24 +272,49 @@ public class ProjectionService {
                     channelIndex, timepoint, e.getMessage());
             log.error(error, e);
             throw new ResourceError(error);
-        } catch (DimensionsOutOfBoundsException e) {
-            String error = String.format(
-                    "C=%d or T=%d out of range for Pixels Id %d: %s",
-                    channelIndex, timepoint, ctx.pixels.getId(),
-                    e.getMessage());
-            log.error(error, e);
-            throw new ValidationException(error);
-        } finally {
-            try {
-                pixelBuffer.close();
-            } catch (IOException e) {
-                log.error("Buffer did not close successfully.", e);
-                throw new ResourceError(
-                        e.getMessage() + " Please check server log.");
-            }
-            if (ctx.from != null) {
-                ctx.from.dispose();
-            }
+        }
+    }
+
+    /**
+     * Reads the requested region of a single optical section.
+     * @param ctx The context of our projection.
+     * @param pixelBuffer raw pixel data access buffer.
+     * @param z optical section to read.
+     * @return See above.  Must be disposed of by the caller.
+     * @throws IOException If there is an error reading the region.
+     */
+    private PixelData getTile(
+            ProjectionContext ctx, PixelBuffer pixelBuffer, int z)
+                    throws IOException {
+        // Pixel buffers are not thread safe
+        synchronized (pixelBuffer) {
+            return pixelBuffer.getTile(
+                    z, ctx.channelIndex, ctx.timepoint,
+                    ctx.region.getX(), ctx.region.getY(),
+                    ctx.region.getWidth(), ctx.region.getHeight());
+        }
+    }
+
+    /**
+     * Applies an operation to every pixel index of a projection, splitting
+     * the indexes into row bands which are processed in parallel if this
+     * service has a pool.
+     * @param ctx The context of our projection.
+     * @param band operation to apply to each row band.
+     */
+    private void forEachBand(ProjectionContext ctx, Band band) {
+        int n = ctx.planeSizeInPixels;
+        int width = Math.max(1, ctx.region.getWidth());
+        int bandSize = Math.max(1, MIN_BAND_SIZE / width) * width;
+        if (pool == null || n <= bandSize) {
+            band.apply(0, n);
+            return;
+        }
+        BandAction action = new BandAction(band, 0, n, bandSize);
+        if (ForkJoinTask.getPool() == pool) {
+            action.invoke();
+        } else {
+            pool.invoke(action);
         }
     }
 
@@ -163,6 +362,7 @@ public class ProjectionService {
     /**
      * Projects a stack based on the maximum intensity at each XY coordinate.
      * @param ctx The context of our projection.
+     * @param pixelBuffer raw pixel data access buffer.
      * @param stepping Stepping value to use while calculating the projection.
      * For example, <code>stepping=1</code> will use every optical section from
      * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
@@ -172,37 +372,29 @@ public class ProjectionService {
      * @param end Optical section to finish projecting.
      * @param doMinMax Whether or not to calculate the minimum and maximum of
      * the projected pixel data.
+     * @throws IOException If there is an error reading an optical section.
      */
-    private void projectStackMax(ProjectionContext ctx, int stepping,
-                                 int start, int end, boolean doMinMax) {
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++) {
-            projectedValue = 0;
-            for (int z = start; z <= end; z += stepping) {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                if (stackValue > projectedValue) {
-                    projectedValue = stackValue;
-                }
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax) {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
+    private void projectStackMax(ProjectionContext ctx,
+                                 PixelBuffer pixelBuffer, int stepping,
+                                 int start, int end, boolean doMinMax)
+                                         throws IOException {
+        double[] projected = new double[ctx.planeSizeInPixels];
+        for (int z = start; z <= end; z += stepping) {
+            PixelData from = getTile(ctx, pixelBuffer, z);
+            try {
+                forEachBand(ctx, (bandStart, bandEnd) -> accumulateMax(
+                        ctx, from, projected, bandStart, bandEnd));
+            } finally {
+                from.dispose();
             }
         }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
+        store(ctx, projected, doMinMax);
     }
 
     /**
      * Projects a stack based on the mean intensity at each XY coordinate.
-     * @param from The raw pixel data from the stack to project from.
      * @param ctx The context of our projection.
-     * source Pixels set pixels type will be used.
+     * @param pixelBuffer raw pixel data access buffer.
      * @param stepping Stepping value to use while calculating the projection.
      * For example, <code>stepping=1</code> will use every optical section from
      * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
@@ -212,17 +404,20 @@ public class ProjectionService {
      * @param end Optical section to finish projecting.
      * @param doMinMax Whether or not to calculate the minimum and maximum of
      * the projected pixel data.
+     * @throws IOException If there is an error reading an optical section.
      */
-    private void projectStackMean(ProjectionContext ctx, int stepping,
-                                  int start, int end, boolean doMinMax) {
-        projectStackMeanOrSum(ctx, stepping, start, end, true, doMinMax);
+    private void projectStackMean(ProjectionContext ctx,
+                                  PixelBuffer pixelBuffer, int stepping,
+                                  int start, int end, boolean doMinMax)
+                                          throws IOException {
+        projectStackMeanOrSum(
+                ctx, pixelBuffer, stepping, start, end, true, doMinMax);
     }
 
     /**
      * Projects a stack based on the sum intensity at each XY coordinate.
      * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
+     * @param pixelBuffer raw pixel data access buffer.
      * @param stepping Stepping value to use while calculating the projection.
      * For example, <code>stepping=1</code> will use every optical section from
      * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
@@ -232,18 +427,21 @@ public class ProjectionService {
      * @param end Optical section to finish projecting.
      * @param doMinMax Whether or not to calculate the minimum and maximum of
      * the projected pixel data.
+     * @throws IOException If there is an error reading an optical section.
      */
-    private void projectStackSum(ProjectionContext ctx, int stepping,
-                                 int start, int end, boolean doMinMax) {
-        projectStackMeanOrSum(ctx, stepping, start, end, false, doMinMax);
+    private void projectStackSum(ProjectionContext ctx,
+                                 PixelBuffer pixelBuffer, int stepping,
+                                 int start, int end, boolean doMinMax)
+                                         throws IOException {
+        projectStackMeanOrSum(
+                ctx, pixelBuffer, stepping, start, end, false, doMinMax);
     }
 
     /**
      * Projects a stack based on the sum intensity at each XY coordinate with
      * the option to also average the sum intensity.
      * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
+     * @param pixelBuffer raw pixel data access buffer.
      * @param stepping Stepping value to use while calculating the projection.
      * For example, <code>stepping=1</code> will use every optical section from
      * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
@@ -255,39 +453,384 @@ public class ProjectionService {
      * intensity projection.
      * @param doMinMax Whether or not to calculate the minimum and maximum of
      * the projected pixel data.
+     * @throws IOException If there is an error reading an optical section.
      */
-    private void projectStackMeanOrSum(ProjectionContext ctx, int stepping,
+    private void projectStackMeanOrSum(ProjectionContext ctx,
+                                       PixelBuffer pixelBuffer, int stepping,
                                        int start, int end,
-                                       boolean mean, boolean doMinMax) {
+                                       boolean mean, boolean doMinMax)
+                                               throws IOException {
         double planeMaximum = ctx.to.getMaximum();
 
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++) {
-            projectedValue = 0;
-            int projectedPlaneCount = 0;
-            for (int z = start; z < end; z += stepping) {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                projectedValue += stackValue;
-                projectedPlaneCount++;
+        double[] projected = new double[ctx.planeSizeInPixels];
+        int projectedPlaneCount = 0;
+        for (int z = start; z < end; z += stepping) {
+            PixelData from = getTile(ctx, pixelBuffer, z);
+            try {
+                forEachBand(ctx, (bandStart, bandEnd) -> accumulateSum(
+                        ctx, from, projected, bandStart, bandEnd));
+            } finally {
+                from.dispose();
+            }
+            projectedPlaneCount++;
+        }
+        int planeCount = projectedPlaneCount;
+        forEachBand(ctx, (bandStart, bandEnd) -> {
+            for (int i = bandStart; i < bandEnd; i++) {
+                if (mean) {
+                    projected[i] = projected[i] / planeCount;
+                }
+                if (projected[i] > planeMaximum) {
+                    projected[i] = planeMaximum;
+                }
+            }
+        });
+        store(ctx, projected, doMinMax);
+    }
+
+    /**
+     * Returns a view of the pixel data of a buffer, in the byte order of the
+     * buffer, positioned at the first pixel.
+     * @param pixelData buffer to return a view of.
+     * @return See above.
+     */
+    private static ByteBuffer data(PixelData pixelData) {
+        ByteBuffer data = pixelData.getData().duplicate();
+        data.order(pixelData.getOrder());
+        data.rewind();
+        return data;
+    }
+
+    /**
+     * Updates the maximum intensity at each XY coordinate of a row band with
+     * a single optical section.
+     * @param ctx The context of our projection.
+     * @param from Optical section to project.
+     * @param projected Maximum intensity at each XY coordinate so far.
+     * @param start First pixel index of the row band.
+     * @param end Pixel index after the last pixel index of the row band.
+     */
+    private void accumulateMax(
+            ProjectionContext ctx, PixelData from, double[] projected,
+            int start, int end) {
+        if (ctx.pixelsType == null) {
+            double stackValue;
+            for (int i = start; i < end; i++) {
+                stackValue = from.getPixelValue(i);
+                if (stackValue > projected[i]) {
+                    projected[i] = stackValue;
+                }
+            }
+            return;
+        }
+        ByteBuffer data = data(from);
+        switch (ctx.pixelsType) {
+            case PlaneFactory.INT8: {
+                for (int i = start; i < end; i++) {
+                    byte v = data.get(i);
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.UINT8: {
+                for (int i = start; i < end; i++) {
+                    int v = data.get(i) & 0xFF;
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.INT16: {
+                ShortBuffer view = data.asShortBuffer();
+                for (int i = start; i < end; i++) {
+                    short v = view.get(i);
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.UINT16: {
+                ShortBuffer view = data.asShortBuffer();
+                for (int i = start; i < end; i++) {
+                    int v = view.get(i) & 0xFFFF;
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.INT32: {
+                IntBuffer view = data.asIntBuffer();
+                for (int i = start; i < end; i++) {
+                    int v = view.get(i);
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.UINT32: {
+                IntBuffer view = data.asIntBuffer();
+                for (int i = start; i < end; i++) {
+                    long v = view.get(i) & 0xFFFFFFFFL;
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.FLOAT: {
+                FloatBuffer view = data.asFloatBuffer();
+                for (int i = start; i < end; i++) {
+                    float v = view.get(i);
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            case PlaneFactory.DOUBLE: {
+                DoubleBuffer view = data.asDoubleBuffer();
+                for (int i = start; i < end; i++) {
+                    double v = view.get(i);
+                    if (v > projected[i]) {
+                        projected[i] = v;
+                    }
+                }
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException(
+                        "Unsupported pixels type: " + ctx.pixelsType);
+            }
+        }
+    }
+
+    /**
+     * Adds a single optical section to the sum intensity at each XY
+     * coordinate of a row band.
+     * @param ctx The context of our projection.
+     * @param from Optical section to project.
+     * @param projected Sum intensity at each XY coordinate so far.
+     * @param start First pixel index of the row band.
+     * @param end Pixel index after the last pixel index of the row band.
+     */
+    private void accumulateSum(
+            ProjectionContext ctx, PixelData from, double[] projected,
+            int start, int end) {
+        if (ctx.pixelsType == null) {
+            for (int i = start; i < end; i++) {
+                projected[i] += from.getPixelValue(i);
             }
-            if (mean) {
-                projectedValue = projectedValue / projectedPlaneCount;
+            return;
+        }
+        ByteBuffer data = data(from);
+        switch (ctx.pixelsType) {
+            case PlaneFactory.INT8: {
+                for (int i = start; i < end; i++) {
+                    projected[i] += data.get(i);
+                }
+                break;
             }
-            if (projectedValue > planeMaximum) {
-                projectedValue = planeMaximum;
+            case PlaneFactory.UINT8: {
+                for (int i = start; i < end; i++) {
+                    projected[i] += data.get(i) & 0xFF;
+                }
+                break;
+            }
+            case PlaneFactory.INT16: {
+                ShortBuffer view = data.asShortBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i);
+                }
+                break;
             }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax) {
+            case PlaneFactory.UINT16: {
+                ShortBuffer view = data.asShortBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i) & 0xFFFF;
+                }
+                break;
+            }
+            case PlaneFactory.INT32: {
+                IntBuffer view = data.asIntBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i);
+                }
+                break;
+            }
+            case PlaneFactory.UINT32: {
+                IntBuffer view = data.asIntBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i) & 0xFFFFFFFFL;
+                }
+                break;
+            }
+            case PlaneFactory.FLOAT: {
+                FloatBuffer view = data.asFloatBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i);
+                }
+                break;
+            }
+            case PlaneFactory.DOUBLE: {
+                DoubleBuffer view = data.asDoubleBuffer();
+                for (int i = start; i < end; i++) {
+                    projected[i] += view.get(i);
+                }
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException(
+                        "Unsupported pixels type: " + ctx.pixelsType);
+            }
+        }
+    }
+
+    /**
+     * Stores projected values in the destination buffer of a projection,
+     * optionally calculating the minimum and maximum.
+     * @param ctx The context of our projection.
+     * @param projected projected values.
+     * @param doMinMax Whether or not to calculate the minimum and maximum of
+     * the projected pixel data.
+     */
+    private void store(
+            ProjectionContext ctx, double[] projected, boolean doMinMax) {
+        forEachBand(ctx, (bandStart, bandEnd) -> storeBand(
+                ctx, projected, bandStart, bandEnd));
+        if (doMinMax) {
+            double projectedValue;
+            double minimum = ctx.minimum;
+            double maximum = ctx.maximum;
+            for (int i = 0; i < ctx.planeSizeInPixels; i++) {
+                projectedValue = projected[i];
                 minimum = projectedValue < minimum? projectedValue : minimum;
                 maximum = projectedValue > maximum? projectedValue : maximum;
             }
+            ctx.minimum = minimum;
+            ctx.maximum = maximum;
+        }
+    }
+
+    /**
+     * Stores the projected values of a row band in the destination buffer
+     * of a projection.
+     * @param ctx The context of our projection.
+     * @param projected projected values.
+     * @param start First pixel index of the row band.
+     * @param end Pixel index after the last pixel index of the row band.
+     */
+    private void storeBand(
+            ProjectionContext ctx, double[] projected, int start, int end) {
+        if (ctx.pixelsType == null) {
+            for (int i = start; i < end; i++) {
+                ctx.to.setPixelValue(i, projected[i]);
+            }
+        } else {
+            ByteBuffer data = data(ctx.to);
+            switch (ctx.pixelsType) {
+                case PlaneFactory.INT8:
+                case PlaneFactory.UINT8: {
+                    for (int i = start; i < end; i++) {
+                        data.put(i, (byte) projected[i]);
+                    }
+                    break;
+                }
+                case PlaneFactory.INT16:
+                case PlaneFactory.UINT16: {
+                    ShortBuffer view = data.asShortBuffer();
+                    for (int i = start; i < end; i++) {
+                        view.put(i, (short) projected[i]);
+                    }
+                    break;
+                }
+                case PlaneFactory.INT32:
+                case PlaneFactory.UINT32: {
+                    IntBuffer view = data.asIntBuffer();
+                    for (int i = start; i < end; i++) {
+                        view.put(i, (int) (long) projected[i]);
+                    }
+                    break;
+                }
+                case PlaneFactory.FLOAT: {
+                    FloatBuffer view = data.asFloatBuffer();
+                    for (int i = start; i < end; i++) {
+                        view.put(i, (float) projected[i]);
+                    }
+                    break;
+                }
+                case PlaneFactory.DOUBLE: {
+                    DoubleBuffer view = data.asDoubleBuffer();
+                    for (int i = start; i < end; i++) {
+                        view.put(i, projected[i]);
+                    }
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException(
+                            "Unsupported pixels type: " + ctx.pixelsType);
+                }
+            }
+        }
+    }
+
+    /**
+     * An operation on a row band of a projection.
+     */
+    @FunctionalInterface
+    private interface Band {
+
+        /**
+         * Applies the operation.
+         * @param start First pixel index of the row band.
+         * @param end Pixel index after the last pixel index of the row band.
+         */
+        void apply(int start, int end);
+    }
+
+    /**
+     * Recursively splits a range of pixel indexes into row bands, applying
+     * an operation to each in parallel.
+     */
+    private static class BandAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Operation to apply to each row band */
+        private final Band band;
+
+        /** First pixel index of the range */
+        private final int start;
+
+        /** Pixel index after the last pixel index of the range */
+        private final int end;
+
+        /** Maximum number of pixels in a row band */
+        private final int bandSize;
+
+        BandAction(Band band, int start, int end, int bandSize) {
+            this.band = band;
+            this.start = start;
+            this.end = end;
+            this.bandSize = bandSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= bandSize) {
+                band.apply(start, end);
+                return;
+            }
+            int bands = (end - start + bandSize - 1) / bandSize;
+            int middle = start + (bands / 2) * bandSize;
+            invokeAll(new BandAction(band, start, middle, bandSize),
+                      new BandAction(band, middle, end, bandSize));
         }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
     }
 
     /**
@@ -299,7 +842,22 @@ public class ProjectionService {
         /** The Pixels set we're currently working on. */
         public Pixels pixels;
 
-        /** Count of the number of pixels per plane for <code>pixels</code>. */
+        /**
+         * Pixels type of the Pixels set or <code>null</code> if a
+         * specialized pixels type kernel is not in use.
+         */
+        public String pixelsType;
+
+        /** The region of each optical section we're projecting. */
+        public RegionDef region;
+
+        /** The timepoint we're projecting. */
+        public int timepoint;
+
+        /** The channel we're projecting. */
+        public int channelIndex;
+
+        /** Count of the number of pixels per plane for <code>region</code>. */
         public int planeSizeInPixels;
 
         /** Current minimum for the projected pixel data. */
@@ -308,9 +866,6 @@ public class ProjectionService {
         /** Current maximum for the projected pixel data. */
         public double maximum = Double.MIN_VALUE;
 
-        /** The raw pixel data from the stack to project from. */
-        public PixelData from;
-
         /** The raw pixel data buffer to project into. */
         public PixelData to;
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.json.JsonObject;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * Classifies image region requests by their estimated cost so that cheap,
+ * interactive requests such as tiles are processed in a separate lane from
+ * expensive requests such as full plane renders and projections and are
+ * never stuck behind them.  Cost is estimated from the request alone,
+ * without image metadata, as the number of pixels read: region area
+ * multiplied by the number of planes and active channels.
+ */
+public class RenderCostClassifier {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(RenderCostClassifier.class);
+
+    /** Default estimated cost above which requests use the bulk lane */
+    public static final long DEFAULT_BULK_THRESHOLD = 4L * 1024 * 1024;
+
+    /**
+     * Assumed area of a tile whose size is chosen by the server, which is
+     * the case when a tile request does not specify its width and height
+     */
+    public static final long DEFAULT_TILE_AREA = 512L * 512;
+
+    /** Request processing lanes */
+    public enum Lane {
+
+        /** Cheap requests such as tiles */
+        INTERACTIVE(ImageRegionVerticle.RENDER_IMAGE_REGION_EVENT),
+
+        /** Expensive requests such as full planes and projections */
+        BULK(ImageRegionVerticle.RENDER_IMAGE_REGION_BULK_EVENT);
+
+        /** Event bus address of the lane */
+        private final String address;
+
+        Lane(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Event bus address of the lane.
+         * @return See above.
+         */
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    /** Estimated cost above which requests use the bulk lane */
+    private final long bulkThreshold;
+
+    /**
+     * Default constructor.
+     * @param bulkThreshold estimated cost, in pixels read, above which
+     * requests use the bulk lane.
+     */
+    public RenderCostClassifier(long bulkThreshold) {
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    /**
+     * Creates a classifier from configuration.
+     * @param config <code>priority-lanes</code> configuration block; may be
+     * <code>null</code> in which case defaults are used.
+     * @return A new classifier.
+     */
+    public static RenderCostClassifier fromConfig(JsonObject config) {
+        if (config == null) {
+            config = new JsonObject();
+        }
+        long bulkThreshold =
+                config.getLong("bulk-threshold", DEFAULT_BULK_THRESHOLD);
+        log.info("Priority lanes bulk-threshold: {}", bulkThreshold);
+        return new RenderCostClassifier(bulkThreshold);
+    }
+
+    /**
+     * Estimated cost above which requests use the bulk lane.
+     * @return See above.
+     */
+    public long getBulkThreshold() {
+        return bulkThreshold;
+    }
+
+    /**
+     * Estimates the cost of an image region request as the number of
+     * pixels read.  Requests whose cost cannot be estimated without image
+     * metadata, full plane renders and projections over the whole stack,
+     * have an unbounded cost.
+     * @param imageRegionCtx image region context of the request.
+     * @return Estimated cost or {@link Long#MAX_VALUE} if unbounded.
+     */
+    public long estimateCost(ImageRegionCtx imageRegionCtx) {
+        long area;
+        if (imageRegionCtx.tile != null) {
+            RegionDef tile = imageRegionCtx.tile;
+            area = tile.getWidth() > 0 && tile.getHeight() > 0?
+                    (long) tile.getWidth() * tile.getHeight()
+                    : DEFAULT_TILE_AREA;
+        } else if (imageRegionCtx.region != null) {
+            RegionDef region = imageRegionCtx.region;
+            area = (long) region.getWidth() * region.getHeight();
+        } else {
+            return Long.MAX_VALUE;
+        }
+
+        long planes = 1;
+        if (imageRegionCtx.projection != null) {
+            if (imageRegionCtx.projectionStart == null
+                    || imageRegionCtx.projectionEnd == null) {
+                return Long.MAX_VALUE;
+            }
+            planes = Math.max(1, imageRegionCtx.projectionEnd
+                    - imageRegionCtx.projectionStart + 1);
+        }
+
+        // Channels with a negative index are inactive; if none are listed
+        // the rendering settings decide so assume the cheapest case
+        long channels = 0;
+        if (imageRegionCtx.channels != null) {
+            channels = imageRegionCtx.channels.stream()
+                    .filter(c -> c > 0)
+                    .count();
+        }
+        channels = Math.max(1, channels);
+        try {
+            return Math.multiplyExact(
+                    Math.multiplyExact(area, planes), channels);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Classifies an image region request into a processing lane.
+     * @param imageRegionCtx image region context of the request.
+     * @return See above.
+     */
+    public Lane classify(ImageRegionCtx imageRegionCtx) {
+        long cost = estimateCost(imageRegionCtx);
+        Lane lane = cost > bulkThreshold? Lane.BULK : Lane.INTERACTIVE;
+        log.debug("Image region request estimated cost: {} lane: {}",
+                cost, lane);
+        return lane;
+    }
+
+    /**
+     * Classifies an image region batch request into a processing lane by
+     * the total estimated cost of its image regions.
+     * @param imageRegionBatchCtx image region batch context of the request.
+     * @return See above.
+     */
+    public Lane classify(ImageRegionBatchCtx imageRegionBatchCtx) {
+        long cost = 0;
+        for (ImageRegionCtx imageRegionCtx
+                : imageRegionBatchCtx.imageRegions) {
+            cost += Math.min(
+                    estimateCost(imageRegionCtx), Long.MAX_VALUE - cost);
+        }
+        Lane lane = cost > bulkThreshold? Lane.BULK : Lane.INTERACTIVE;
+        log.debug("Image region batch request estimated cost: {} lane: {}",
+                cost, lane);
+        return lane;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+
+import com.glencoesoftware.omero.ms.core.OmeroRequestCtx;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.Json;
+
+/**
+ * Event bus codec for request contexts.  Locally delivered messages are
+ * passed by reference; messages which cross the wire in clustered mode are
+ * serialized as length prefixed JSON encoded as UTF-8.
+ * @param <T> request context type.
+ */
+public class RequestCtxMessageCodec<T extends OmeroRequestCtx>
+        implements MessageCodec<T, T> {
+
+    /** Request context type */
+    private final Class<T> type;
+
+    /**
+     * Default constructor.
+     * @param type request context type.
+     */
+    public RequestCtxMessageCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#encodeToWire(io.vertx.core.buffer.Buffer, java.lang.Object)
+     */
+    @Override
+    public void encodeToWire(Buffer buffer, T requestCtx) {
+        byte[] encoded;
+        try {
+            encoded = Json.mapper.writeValueAsBytes(requestCtx);
+        } catch (Exception e) {
+            throw new EncodeException(
+                    "Failed to encode as JSON: " + e.getMessage());
+        }
+        buffer.appendInt(encoded.length);
+        buffer.appendBytes(encoded);
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#decodeFromWire(int, io.vertx.core.buffer.Buffer)
+     */
+    @Override
+    public T decodeFromWire(int pos, Buffer buffer) {
+        int length = buffer.getInt(pos);
+        pos += 4;
+        byte[] encoded = buffer.getBytes(pos, pos + length);
+        try {
+            return Json.mapper.readValue(encoded, type);
+        } catch (IOException e) {
+            throw new DecodeException(
+                    "Failed to decode: " + e.getMessage());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#transform(java.lang.Object)
+     */
+    @Override
+    public T transform(T requestCtx) {
+        return requestCtx;
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#name()
+     */
+    @Override
+    public String name() {
+        return type.getName();
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.eventbus.MessageCodec#systemCodecID()
+     */
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
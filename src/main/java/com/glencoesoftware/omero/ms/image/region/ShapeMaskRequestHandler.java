@@ -18,15 +18,7 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
-import java.awt.Point;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
@@ -34,12 +26,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
-import javax.imageio.ImageIO;
-
 import org.perf4j.StopWatch;
-import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.LoggerFactory;
 
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import ome.util.PixelData;
 import ome.xml.model.primitives.Color;
 import omero.RType;
@@ -53,16 +44,30 @@ public class ShapeMaskRequestHandler {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ShapeMaskRequestHandler.class);
 
+    /** Query used to check that a {@link MaskI} can be read */
+    private static final String CAN_READ_QUERY =
+            "SELECT s.id FROM Shape as s WHERE s.id = :id";
+
+    /** Query used to load a {@link MaskI} */
+    private static final String GET_MASK_QUERY =
+            "SELECT s FROM Shape as s WHERE s.id = :id";
+
     /** Shape mask context */
     private final ShapeMaskCtx shapeMaskCtx;
 
+    /** Encoder for rendered shape masks */
+    private final ImageEncoder encoder;
+
     /**
      * Default constructor.
      * @param shapeMaskCtx {@link ShapeMaskCtx} object
+     * @param encoder encoder for rendered shape masks
      */
-    public ShapeMaskRequestHandler(ShapeMaskCtx shapeMaskCtx) {
+    public ShapeMaskRequestHandler(
+            ShapeMaskCtx shapeMaskCtx, ImageEncoder encoder) {
         log.info("Setting up handler");
         this.shapeMaskCtx = shapeMaskCtx;
+        this.encoder = encoder;
     }
 
     /**
@@ -117,14 +122,15 @@ public class ShapeMaskRequestHandler {
     }
 
     /**
-     * Flip an image horizontally, vertically, or both.
+     * Flip an image horizontally, vertically, or both, in place.  Rows are
+     * processed in memory order; vertical flips exchange whole rows and
+     * horizontal flips reverse each row.
      * @param src source image buffer
      * @param sizeX size of <code>src</code> in X (number of columns)
      * @param sizeY size of <code>src</code> in Y (number of rows)
      * @param flipHorizontal whether or not to flip the image horizontally
      * @param flipVertical whether or not to flip the image vertically
-     * @return Newly allocated buffer with flipping applied or <code>src</code>
-     * if no flipping has been requested.
+     * @return <code>src</code> with flipping applied.
      */
     public static byte[] flip(
             byte[] src, int sizeX, int sizeY,
@@ -139,19 +145,36 @@ public class ShapeMaskRequestHandler {
             throw new IllegalArgumentException("Attempted to flip image with 0 size");
         }
 
-        byte[] dest = new byte[src.length];
-        int srcIndex, destIndex;
-        int xOffset = flipHorizontal? sizeX : 1;
-        int yOffset = flipVertical? sizeY : 1;
-        for (int x = 0; x < sizeX; x++) {
+        byte swap;
+        if (flipHorizontal && flipVertical) {
+            // Flipping in both dimensions reverses the entire image
+            for (int left = 0, right = sizeX * sizeY - 1; left < right;
+                    left++, right--) {
+                swap = src[left];
+                src[left] = src[right];
+                src[right] = swap;
+            }
+        } else if (flipVertical) {
+            byte[] row = new byte[sizeX];
+            for (int top = 0, bottom = sizeY - 1; top < bottom;
+                    top++, bottom--) {
+                int topIndex = top * sizeX;
+                int bottomIndex = bottom * sizeX;
+                System.arraycopy(src, topIndex, row, 0, sizeX);
+                System.arraycopy(src, bottomIndex, src, topIndex, sizeX);
+                System.arraycopy(row, 0, src, bottomIndex, sizeX);
+            }
+        } else {
             for (int y = 0; y < sizeY; y++) {
-                srcIndex = (y * sizeX) + x;
-                destIndex = Math.abs(((yOffset - y - 1) * sizeX))
-                        + Math.abs((xOffset - x - 1));
-                dest[destIndex] = src[srcIndex];
+                for (int left = y * sizeX, right = left + sizeX - 1;
+                        left < right; left++, right--) {
+                    swap = src[left];
+                    src[left] = src[right];
+                    src[right] = swap;
+                }
             }
         }
-        return dest;
+        return src;
     }
 
 
@@ -167,14 +190,16 @@ public class ShapeMaskRequestHandler {
     protected byte[] renderShapeMask(
             Color fillColor, byte[] bytes, int width, int height)
                     throws IOException {
-        StopWatch t0 = new Slf4JStopWatch("renderShapeMask");
+        StopWatch t0 = new MetricsStopWatch("renderShapeMask");
         try {
-            // The underlying raster will used a MultiPixelPackedSampleModel
-            // which expects the row stride to be evenly divisible by the byte
-            // width of the data type.  If it is not so aligned we will need
-            // to convert it to a byte mask for rendering.
+            // Each PNG row starts on a byte boundary whereas the rows of the
+            // mask are packed contiguously.  If they are not byte aligned we
+            // will need to convert it to a byte mask for rendering.
+            // Flipping also operates on a byte mask rather than packed bits.
             int bitsPerPixel = 1;
-            if (width % 8 != 0) {
+            if (width % 8 != 0
+                    || shapeMaskCtx.flipHorizontal
+                    || shapeMaskCtx.flipVertical) {
                 bytes = convertBitsToBytes(bytes, width * height);
                 bitsPerPixel = 8;
             }
@@ -183,10 +208,6 @@ public class ShapeMaskRequestHandler {
                     shapeMaskCtx.flipVertical);
             log.debug("Rendering Mask Width:{} Height:{} bitsPerPixel:{} " +
                     "Size:{}", width, height, bitsPerPixel, bytes.length);
-            // Create buffered image
-            DataBuffer dataBuffer = new DataBufferByte(bytes, bytes.length);
-            WritableRaster raster = Raster.createPackedRaster(
-                    dataBuffer, width, height, bitsPerPixel, new Point(0, 0));
             byte[] colorMap = new byte[] {
                 // First index (0); 100% transparent
                 0, 0, 0, 0,
@@ -194,15 +215,19 @@ public class ShapeMaskRequestHandler {
                 (byte) fillColor.getRed(), (byte) fillColor.getGreen(),
                 (byte) fillColor.getBlue(), (byte) fillColor.getAlpha()
             };
-            ColorModel colorModel = new IndexColorModel(
+            IndexColorModel colorModel = new IndexColorModel(
                     1, 2, colorMap, 0, true);
-            BufferedImage image = new BufferedImage(
-                    colorModel, raster, false, null);
 
-            // Write PNG to memory and return
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            ImageIO.write(image, "png", output);
-            return output.toByteArray();
+            // Write PNG, directly from the mask, to a pooled buffer sized
+            // for one bit per pixel and return a copy of exactly the
+            // encoded size
+            try (PooledOutputStream output =
+                    new PooledOutputStream(width * height / 8)) {
+                encoder.encodePng(
+                        bytes, width, height, bitsPerPixel, colorModel,
+                        output);
+                return output.toByteArray();
+            }
         } finally {
             t0.stop();
         }
@@ -234,12 +259,11 @@ public class ShapeMaskRequestHandler {
         ctx.put("omero.group", "-1");
         ParametersI params = new ParametersI();
         params.addId(shapeMaskCtx.shapeId);
-        StopWatch t0 = new Slf4JStopWatch("canRead");
+        StopWatch t0 = new MetricsStopWatch("canRead");
         try {
             List<List<RType>> rows = client.getSession()
                     .getQueryService().projection(
-                            "SELECT s.id FROM Shape as s " +
-                            "WHERE s.id = :id", params, ctx);
+                            CAN_READ_QUERY, params, ctx);
             if (rows.size() > 0) {
                 return true;
             }
@@ -251,6 +275,28 @@ public class ShapeMaskRequestHandler {
         return false;
     }
 
+    /**
+     * Asynchronously checks whether or not a single {@link MaskI} can be
+     * read from the server.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @return Future completed with <code>true</code> if the {@link MaskI}
+     * can be loaded or <code>false</code> otherwise.
+     */
+    public Future<Boolean> canRead(Context context, IQueryPrx iQuery) {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addId(shapeMaskCtx.shapeId);
+        return IceFutures.projection(
+                context, iQuery, CAN_READ_QUERY, params, ctx
+            ).map(rows -> rows.size() > 0).otherwise(t -> {
+                log.error("Exception while checking shape mask readability",
+                        t);
+                return false;
+            });
+    }
+
     /**
      * Retrieves a single {@link MaskI} from the server.
      * @param client OMERO client to use for querying.
@@ -278,14 +324,31 @@ public class ShapeMaskRequestHandler {
         ctx.put("omero.group", "-1");
         ParametersI params = new ParametersI();
         params.addId(shapeId);
-        StopWatch t0 = new Slf4JStopWatch("getMask");
+        StopWatch t0 = new MetricsStopWatch("getMask");
         try {
-            return (MaskI) iQuery.findByQuery(
-                "SELECT s FROM Shape as s " +
-                "WHERE s.id = :id", params, ctx
-            );
+            return (MaskI) iQuery.findByQuery(GET_MASK_QUERY, params, ctx);
         } finally {
             t0.stop();
         }
     }
+
+    /**
+     * Asynchronously retrieves a single {@link MaskI} from the server.
+     * @param context Vert.x context to complete the future on.
+     * @param iQuery OMERO query service to use for metadata access.
+     * @param shapeId {@link MaskI} identifier to query for.
+     * @return Future completed with the loaded {@link MaskI} or
+     * <code>null</code> if the shape does not exist or the user does not
+     * have permissions to access it.
+     */
+    public Future<MaskI> getMask(
+            Context context, IQueryPrx iQuery, Long shapeId) {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addId(shapeId);
+        return IceFutures.findByQuery(
+                context, iQuery, GET_MASK_QUERY, params, ctx
+            ).map(object -> (MaskI) object);
+    }
 }
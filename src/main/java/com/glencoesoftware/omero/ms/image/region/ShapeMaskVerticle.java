@@ -20,15 +20,21 @@ package com.glencoesoftware.omero.ms.image.region;
 
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.glencoesoftware.omero.ms.core.OmeroRequest;
 import com.glencoesoftware.omero.ms.core.RedisCacheVerticle;
+import com.glencoesoftware.omero.ms.image.region.OmeroClientPool.PooledRequest;
 
 import Glacier2.CannotCreateSessionException;
 import Glacier2.PermissionDeniedException;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
+import omero.api.IQueryPrx;
+import omero.model.MaskI;
 
 public class ShapeMaskVerticle extends AbstractVerticle {
 
@@ -38,21 +44,35 @@ public class ShapeMaskVerticle extends AbstractVerticle {
     public static final String RENDER_SHAPE_MASK_EVENT =
             "omero.render_shape_mask";
 
-    /** OMERO server host */
-    private final String host;
+    /** Delivery options for replies which avoid copying the reply body */
+    private static final DeliveryOptions LOCAL_BYTE_ARRAY =
+            new DeliveryOptions().setCodecName(
+                    LocalByteArrayMessageCodec.NAME);
 
-    /** OMERO server port */
-    private final int port;
+    /** Pool of OMERO clients joined to OMERO sessions */
+    private final OmeroClientPool clientPool;
+
+    /** Admission control for shape mask requests */
+    private final AdmissionController admissionController;
+
+    /** Encoder for rendered shape masks */
+    private final ImageEncoder encoder;
 
     /**
      * Default constructor.
-     * @param host OMERO server host.
-     * @param port OMERO server port.
+     * @param clientPool pool of OMERO clients to use for OMERO server access.
+     * @param admissionController admission control for shape mask requests,
+     * used to record the time requests spend queued.
+     * @param encoder encoder for rendered shape masks.
      */
-    public ShapeMaskVerticle(String host, int port)
+    public ShapeMaskVerticle(
+            OmeroClientPool clientPool,
+            AdmissionController admissionController,
+            ImageEncoder encoder)
     {
-        this.host = host;
-        this.port = port;
+        this.clientPool = clientPool;
+        this.admissionController = admissionController;
+        this.encoder = encoder;
     }
 
     /* (non-Javadoc)
@@ -62,7 +82,7 @@ public class ShapeMaskVerticle extends AbstractVerticle {
     public void start() {
         log.info("Starting verticle");
 
-        vertx.eventBus().<String>consumer(
+        vertx.eventBus().<ShapeMaskCtx>consumer(
                 RENDER_SHAPE_MASK_EVENT, event -> {
                     renderShapeMask(event);
                 });
@@ -73,76 +93,138 @@ public class ShapeMaskVerticle extends AbstractVerticle {
      * <code>image/png</code> body on success based on the
      * <code>shapeId</code> encoded in the URL or HTTP 404 if the {@link Shape}
      * does not exist or the user does not have permissions to access it.
-     * @param message JSON encoded {@link ShapeMaskCtx} object.
+     * @param message {@link ShapeMaskCtx} object.
      */
-    private void renderShapeMask(Message<String> message) {
-        ObjectMapper mapper = new ObjectMapper();
-        ShapeMaskCtx shapeMaskCtx;
-        try {
-            shapeMaskCtx = mapper.readValue(
-                    message.body(), ShapeMaskCtx.class);
-        } catch (Exception e) {
-            String v = "Illegal shape mask context";
-            log.error(v + ": {}", message.body(), e);
-            message.fail(400, v);
-            return;
+    private void renderShapeMask(Message<ShapeMaskCtx> message) {
+        admissionController.dequeued(message);
+        ShapeMaskCtx shapeMaskCtx = message.body();
+        if (log.isDebugEnabled()) {
+            log.debug("Render shape mask request with data: {}",
+                    Json.encode(shapeMaskCtx));
         }
-        log.debug(
-            "Render shape mask request with data: {}", message.body());
 
         String key = shapeMaskCtx.cacheKey();
         vertx.eventBus().<byte[]>send(
             RedisCacheVerticle.REDIS_CACHE_GET_EVENT, key, result -> {
-                try (OmeroRequest request = new OmeroRequest(
-                         host, port, shapeMaskCtx.omeroSessionKey))
-                {
-                    byte[] shapeMask =
-                            result.succeeded()? result.result().body() : null;
-                    ShapeMaskRequestHandler requestHandler =
-                            new ShapeMaskRequestHandler(shapeMaskCtx);
-
-                    // If the PNG is in the cache, check we have permissions
-                    // to access it and assign and return
-                    if (shapeMask != null
-                            && request.execute(requestHandler::canRead)) {
-                        message.reply(shapeMask);
-                        return;
-                    }
-
-                    // The PNG is not in the cache we have to create it
-                    shapeMask = request.execute(
-                            requestHandler::renderShapeMask);
-                    if (shapeMask == null) {
-                        message.fail(404, "Cannot render Mask:" +
-                                shapeMaskCtx.shapeId);
-                        return;
-                    }
-                    message.reply(shapeMask);
-
-                    // Cache the PNG if the color was explicitly set
-                   if (shapeMaskCtx.color != null) {
-                        JsonObject setMessage = new JsonObject();
-                        setMessage.put("key", key);
-                        setMessage.put("value", shapeMask);
-                        vertx.eventBus().send(
-                                RedisCacheVerticle.REDIS_CACHE_SET_EVENT,
-                                setMessage);
-                    }
-                } catch (PermissionDeniedException
-                        | CannotCreateSessionException e) {
-                    String v = "Permission denied";
-                    log.debug(v);
-                    message.fail(403, v);
-                } catch (IllegalArgumentException e) {
-                    log.debug(
-                        "Illegal argument received while retrieving shape mask", e);
-                    message.fail(400, e.getMessage());
-                } catch (Exception e) {
-                    String v = "Exception while retrieving shape mask";
-                    log.error(v, e);
-                    message.fail(500, v);
-                }
+                byte[] shapeMask =
+                        result.succeeded()? result.result().body() : null;
+                renderShapeMask(message, shapeMaskCtx, key, shapeMask);
             }
         );
     }
+
+    /**
+     * Completes a render shape mask request once the cache has been
+     * checked.  The permissions check and the retrieval of the
+     * {@link MaskI} are performed without holding a worker thread.
+     * @param message {@link ShapeMaskCtx} object.
+     * @param shapeMaskCtx shape mask context.
+     * @param key cache key for the shape mask.
+     * @param shapeMask cached shape mask or <code>null</code> if the shape
+     * mask was not found in the cache.
+     */
+    private void renderShapeMask(
+            Message<ShapeMaskCtx> message, ShapeMaskCtx shapeMaskCtx,
+            String key, byte[] shapeMask) {
+        PooledRequest request;
+        try {
+            request = clientPool.borrow(shapeMaskCtx.omeroSessionKey);
+        } catch (PermissionDeniedException
+                | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+            return;
+        } catch (Exception e) {
+            String v = "Exception while retrieving shape mask";
+            log.error(v, e);
+            message.fail(500, v);
+            return;
+        }
+
+        try {
+            ShapeMaskRequestHandler requestHandler =
+                    new ShapeMaskRequestHandler(shapeMaskCtx, encoder);
+            Context vertxContext = vertx.getOrCreateContext();
+            IQueryPrx iQuery = request.getQueryService();
+
+            // If the PNG is in the cache, check we have permissions
+            // to access it and assign and return
+            Future<Boolean> readable = shapeMask == null?
+                    Future.succeededFuture(false)
+                    : requestHandler.canRead(vertxContext, iQuery);
+            readable.setHandler(canRead -> {
+                if (canRead.result()) {
+                    request.close();
+                    message.reply(shapeMask, LOCAL_BYTE_ARRAY);
+                    return;
+                }
+
+                // The PNG is not in the cache we have to create it
+                requestHandler.getMask(
+                        vertxContext, iQuery, shapeMaskCtx.shapeId
+                ).setHandler(mask -> {
+                    renderShapeMask(
+                            message, shapeMaskCtx, request, requestHandler,
+                            key, mask);
+                });
+            });
+        } catch (Exception e) {
+            request.close();
+            String v = "Exception while retrieving shape mask";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Renders a shape mask once its {@link MaskI} has been retrieved,
+     * replies and then closes the request.
+     * @param message {@link ShapeMaskCtx} object.
+     * @param shapeMaskCtx shape mask context.
+     * @param request OMERO request used to retrieve the {@link MaskI}.
+     * @param requestHandler request handler to use for rendering.
+     * @param key cache key for the shape mask.
+     * @param mask outcome of the retrieval of the {@link MaskI}.
+     */
+    private void renderShapeMask(
+            Message<ShapeMaskCtx> message, ShapeMaskCtx shapeMaskCtx,
+            PooledRequest request, ShapeMaskRequestHandler requestHandler,
+            String key, AsyncResult<MaskI> mask) {
+        try (PooledRequest r = request) {
+            byte[] shapeMask = null;
+            if (mask.failed()) {
+                log.error("Exception while retrieving shape mask",
+                        mask.cause());
+            } else if (mask.result() == null) {
+                log.debug("Cannot find Shape:{}", shapeMaskCtx.shapeId);
+            } else {
+                shapeMask = requestHandler.renderShapeMask(mask.result());
+            }
+            if (shapeMask == null) {
+                message.fail(404, "Cannot render Mask:" +
+                        shapeMaskCtx.shapeId);
+                return;
+            }
+            message.reply(shapeMask, LOCAL_BYTE_ARRAY);
+
+            // Cache the PNG if the color was explicitly set
+            if (shapeMaskCtx.color != null) {
+                JsonObject setMessage = new JsonObject();
+                setMessage.put("key", key);
+                setMessage.put("value", shapeMask);
+                vertx.eventBus().send(
+                        RedisCacheVerticle.REDIS_CACHE_SET_EVENT,
+                        setMessage);
+            }
+        } catch (IllegalArgumentException e) {
+            log.debug(
+                "Illegal argument received while retrieving shape mask", e);
+            message.fail(400, e.getMessage());
+        } catch (Exception e) {
+            String v = "Exception while retrieving shape mask";
+            log.error(v, e);
+            message.fail(500, v);
+        }
+    }
 }
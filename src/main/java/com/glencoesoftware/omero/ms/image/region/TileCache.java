@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import omero.model.Image;
+
+/**
+ * In-process, size bounded, least recently used cache of encoded image
+ * regions.  Entries may optionally be stored off the Java heap in direct
+ * byte buffers so that a large cache does not contribute to garbage
+ * collection pressure; hits are served from the cached memory without
+ * copying.  Expired entries are removed when they are next requested and
+ * are periodically swept from the cache so that they do not occupy it
+ * until they are evicted.
+ */
+public class TileCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TileCache.class);
+
+    /**
+     * Event bus address which accepts an {@link Image} identifier whose
+     * cached image regions are to be invalidated.  Published by
+     * {@link ImageRegionVerticle} when newer rendering settings are seen
+     * for an {@link Image}.
+     */
+    public static final String INVALIDATE_EVENT =
+            "omero.tile_cache.invalidate";
+
+    /** Maximum size of the cache in bytes */
+    private final long maxSize;
+
+    /** Time in milliseconds after which an entry expires */
+    private final long timeToLive;
+
+    /** Whether or not entries are stored off the Java heap */
+    private final boolean offHeap;
+
+    /** Cache entries in least recently accessed order */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Cache keys for each {@link Image} identifier */
+    private final Map<Long, Set<String>> keysByImageId =
+            new HashMap<Long, Set<String>>();
+
+    /** Current size of the cache in bytes */
+    private long size = 0;
+
+    /** Number of cache hits */
+    private long hits = 0;
+
+    /** Number of cache misses */
+    private long misses = 0;
+
+    /** Number of entries evicted to keep the cache within its size */
+    private long evictions = 0;
+
+    /** Number of entries which have expired */
+    private long expirations = 0;
+
+    /**
+     * Time in milliseconds since the epoch expired entries were last swept
+     * from the cache
+     */
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum size of the cache in bytes.
+     * @param timeToLive time in milliseconds after which an entry expires.
+     * @param offHeap whether or not entries are stored off the Java heap.
+     */
+    public TileCache(long maxSize, long timeToLive, boolean offHeap) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Creates a cache from configuration.
+     * @param config <code>tile-cache</code> configuration block.
+     * @return A new cache or <code>null</code> if the configuration block
+     * is missing or the cache is disabled.
+     */
+    public static TileCache fromConfig(JsonObject config) {
+        if (config == null || !config.getBoolean("enabled", true)) {
+            return null;
+        }
+        long maxSize = config.getLong("max-size", 256L * 1024 * 1024);
+        long timeToLive = config.getLong("time-to-live", 60L) * 1000;
+        boolean offHeap = config.getBoolean("off-heap", false);
+        log.info("Tile cache max-size: {} time-to-live: {}ms off-heap: {}",
+                maxSize, timeToLive, offHeap);
+        return new TileCache(maxSize, timeToLive, offHeap);
+    }
+
+    /**
+     * Retrieves an entry from the cache.  The returned buffer shares the
+     * cached memory and must not be modified.
+     * @param key cache key.
+     * @return Cached image region or <code>null</code> if there is no such
+     * entry or the entry has expired.
+     */
+    public synchronized Buffer get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.isExpired()) {
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.getValue();
+    }
+
+    /**
+     * Adds an entry to the cache, evicting least recently used entries as
+     * required to keep the cache within its maximum size.  Entries larger
+     * than the maximum size of the cache are ignored.  Expired entries are
+     * swept from the cache at most once per time to live.
+     * @param key cache key.
+     * @param imageId {@link Image} identifier the entry belongs to.
+     * @param value image region to cache.
+     */
+    public synchronized void put(String key, long imageId, byte[] value) {
+        if (value.length > maxSize) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= timeToLive) {
+            removeExpired();
+        }
+        remove(key);
+        Entry entry = new Entry(imageId, value);
+        entries.put(key, entry);
+        keysByImageId
+            .computeIfAbsent(imageId, k -> new HashSet<String>())
+            .add(key);
+        size += entry.length;
+
+        Iterator<Map.Entry<String, Entry>> iterator =
+                entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            removeKey(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all entries which belong to an {@link Image}.
+     * @param imageId {@link Image} identifier whose entries are to be
+     * removed.
+     */
+    public synchronized void invalidate(long imageId) {
+        Set<String> keys = keysByImageId.remove(imageId);
+        if (keys == null) {
+            return;
+        }
+        log.debug("Invalidating {} entries for Image:{}", keys.size(), imageId);
+        for (String key : keys) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.length;
+                entry.free();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.values().forEach(Entry::free);
+        entries.clear();
+        keysByImageId.clear();
+        size = 0;
+    }
+
+    /**
+     * Removes all expired entries from the cache.
+     * @return Number of entries removed.
+     */
+    public synchronized int removeExpired() {
+        lastSweep = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> iterator =
+                entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getValue().isExpired()) {
+                iterator.remove();
+                removeKey(entry.getKey(), entry.getValue());
+                removed++;
+            }
+        }
+        expirations += removed;
+        return removed;
+    }
+
+    /**
+     * Removes a single entry from the cache.
+     * @param key cache key of the entry to remove.
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            removeKey(key, entry);
+        }
+    }
+
+    /**
+     * Updates the cache size and {@link Image} key index to reflect the
+     * removal of an entry.
+     * @param key cache key of the removed entry.
+     * @param entry removed entry.
+     */
+    private void removeKey(String key, Entry entry) {
+        size -= entry.length;
+        entry.free();
+        Set<String> keys = keysByImageId.get(entry.imageId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByImageId.remove(entry.imageId);
+            }
+        }
+    }
+
+    /** @return Current size of the cache in bytes. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** @return Current number of entries in the cache. */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /** @return Number of cache hits. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return Number of cache misses. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return Number of entries evicted to stay within the maximum size. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return Number of entries which have expired. */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        return String.format(
+                "TileCache[count=%d size=%d hits=%d misses=%d " +
+                "hitRate=%.3f evictions=%d expirations=%d]",
+                entries.size(), size, hits, misses,
+                requests == 0? 0.0 : (double) hits / requests,
+                evictions, expirations);
+    }
+
+    /**
+     * A single cache entry, either backed by a heap byte array or a direct
+     * byte buffer.  Guarded by the cache's monitor.
+     */
+    private class Entry {
+
+        /** {@link Image} identifier the entry belongs to */
+        final long imageId;
+
+        /** Time in milliseconds since the epoch the entry was created */
+        final long created = System.currentTimeMillis();
+
+        /** Length of the cached value in bytes */
+        final int length;
+
+        /** Cached value if stored on the Java heap */
+        final byte[] heapValue;
+
+        /** Cached value if stored off the Java heap */
+        final ByteBuffer directValue;
+
+        /**
+         * Whether or not the value has been returned by {@link #getValue()}
+         * and so may still be referenced by a response being written
+         */
+        boolean served = false;
+
+        Entry(long imageId, byte[] value) {
+            this.imageId = imageId;
+            this.length = value.length;
+            if (offHeap) {
+                directValue = ByteBuffer.allocateDirect(value.length);
+                directValue.put(value);
+                directValue.flip();
+                heapValue = null;
+            } else {
+                directValue = null;
+                heapValue = value;
+            }
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - created > timeToLive;
+        }
+
+        /**
+         * Wraps the cached value, without copying it.
+         * @return See above.
+         */
+        Buffer getValue() {
+            if (heapValue != null) {
+                return Buffer.buffer(Unpooled.wrappedBuffer(heapValue));
+            }
+            served = true;
+            return Buffer.buffer(
+                    Unpooled.wrappedBuffer(directValue.duplicate()));
+        }
+
+        /**
+         * Releases the direct memory of an entry which has been removed
+         * from the cache.  Responses give no notification of when they have
+         * been written so the memory of an entry which has been served is
+         * instead released by its cleaner once the last response which
+         * references it has been written and discarded.
+         */
+        void free() {
+            if (directValue != null && !served) {
+                PlatformDependent.freeDirectBuffer(directValue);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteOrder;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * JPEG encoder backed by the native libjpeg-turbo library through its
+ * TurboJPEG Java API.  Rendered image regions are compressed directly from
+ * the packed integer pixels returned by the renderer, without building a
+ * {@link java.awt.image.BufferedImage}.  The TurboJPEG classes are bound
+ * reflectively when the encoder is loaded so that neither they nor the
+ * native library are required to build or run the microservice; if either
+ * is missing {@link #load()} returns <code>null</code> and callers fall
+ * back to the Java encoder.
+ */
+public class TurboJpegEncoder {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TurboJpegEncoder.class);
+
+    /** TurboJPEG constants and utility methods */
+    static final String TJ_CLASS = "org.libjpegturbo.turbojpeg.TJ";
+
+    /** TurboJPEG compressor */
+    static final String TJ_COMPRESSOR_CLASS =
+            "org.libjpegturbo.turbojpeg.TJCompressor";
+
+    /** <code>TJCompressor()</code> */
+    private final MethodHandle newCompressor;
+
+    /**
+     * <code>TJCompressor.setSourceImage(int[], int x, int y, int width,
+     * int stride, int height, int pixelFormat)</code>
+     */
+    private final MethodHandle setSourceImage;
+
+    /** <code>TJCompressor.setSubsamp(int)</code> */
+    private final MethodHandle setSubsamp;
+
+    /** <code>TJCompressor.setJPEGQuality(int)</code> */
+    private final MethodHandle setJPEGQuality;
+
+    /** <code>TJCompressor.compress(byte[], int flags)</code> */
+    private final MethodHandle compress;
+
+    /** <code>TJCompressor.getCompressedSize()</code> */
+    private final MethodHandle getCompressedSize;
+
+    /** <code>TJ.bufSize(int width, int height, int subsamp)</code> */
+    private final MethodHandle bufSize;
+
+    /**
+     * Pixel format of packed <code>0x00RRGGBB</code> integers in native
+     * byte order
+     */
+    private final int pixelFormat;
+
+    /**
+     * Chrominance subsampling; 4:2:0, matching the Java encoder's default
+     */
+    private final int subsamp;
+
+    /** Flags requesting progressive encoding */
+    private final int progressiveFlags;
+
+    /** Compressor of each thread; compressors are not thread safe */
+    private final ThreadLocal<Object> compressors;
+
+    /** Destination buffer of each thread, grown as required */
+    private final ThreadLocal<byte[]> buffers =
+            ThreadLocal.withInitial(() -> new byte[0]);
+
+    /**
+     * Binds the TurboJPEG API.
+     * @throws ReflectiveOperationException If the TurboJPEG classes, or
+     * any of the methods and constants used, are missing.
+     */
+    private TurboJpegEncoder() throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        // Initializing the TJ class loads the native library
+        Class<?> tj = Class.forName(TJ_CLASS);
+        Class<?> compressor = Class.forName(TJ_COMPRESSOR_CLASS);
+        newCompressor = lookup.findConstructor(
+                compressor, MethodType.methodType(void.class));
+        setSourceImage = lookup.findVirtual(
+                compressor, "setSourceImage", MethodType.methodType(
+                        void.class, int[].class, int.class, int.class,
+                        int.class, int.class, int.class, int.class));
+        setSubsamp = lookup.findVirtual(
+                compressor, "setSubsamp",
+                MethodType.methodType(void.class, int.class));
+        setJPEGQuality = lookup.findVirtual(
+                compressor, "setJPEGQuality",
+                MethodType.methodType(void.class, int.class));
+        compress = lookup.findVirtual(
+                compressor, "compress",
+                MethodType.methodType(void.class, byte[].class, int.class));
+        getCompressedSize = lookup.findVirtual(
+                compressor, "getCompressedSize",
+                MethodType.methodType(int.class));
+        bufSize = lookup.findStatic(
+                tj, "bufSize", MethodType.methodType(
+                        int.class, int.class, int.class, int.class));
+        // The low byte of each integer is blue so, in memory, little endian
+        // pixels are BGRX and big endian pixels XRGB
+        pixelFormat = tj.getField(
+                ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN?
+                        "PF_BGRX" : "PF_XRGB").getInt(null);
+        subsamp = tj.getField("SAMP_420").getInt(null);
+        int progressive = 0;
+        try {
+            progressive = tj.getField("FLAG_PROGRESSIVE").getInt(null);
+        } catch (NoSuchFieldException e) {
+            // Progressive encoding requires libjpeg-turbo 2.0 or later
+        }
+        progressiveFlags = progressive;
+        compressors = ThreadLocal.withInitial(() -> {
+            try {
+                return newCompressor.invoke();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        });
+        // Fail now, rather than on the first request, if the native
+        // library cannot actually be used
+        compressors.get();
+    }
+
+    /**
+     * Loads the encoder.
+     * @return See above or <code>null</code> if the TurboJPEG Java API or
+     * native library is not available.
+     */
+    public static TurboJpegEncoder load() {
+        try {
+            TurboJpegEncoder encoder = new TurboJpegEncoder();
+            log.info("Loaded libjpeg-turbo JPEG encoder");
+            return encoder;
+        } catch (ClassNotFoundException e) {
+            log.info("TurboJPEG Java API not on the classpath");
+        } catch (ReflectiveOperationException | LinkageError
+                | IllegalStateException e) {
+            log.warn("Unable to load libjpeg-turbo JPEG encoder", e);
+        }
+        return null;
+    }
+
+    /**
+     * Whether or not progressive encoding is supported.
+     * @return See above.
+     */
+    public boolean canWriteProgressive() {
+        return progressiveFlags != 0;
+    }
+
+    /**
+     * Encodes packed integer pixels as a JPEG.
+     * @param pixels packed <code>0x00RRGGBB</code> pixels, row by row.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param quality JPEG quality, from 0 to 1.
+     * @param progressive whether or not to encode progressively, if
+     * supported.
+     * @param output stream to write the encoded image to; not closed.
+     * @throws IOException If there is an error encoding the image.
+     */
+    public void encode(
+            int[] pixels, int width, int height, float quality,
+            boolean progressive, OutputStream output) throws IOException {
+        Object compressor = compressors.get();
+        try {
+            byte[] buffer = buffers.get();
+            int size = (int) bufSize.invoke(width, height, subsamp);
+            if (buffer.length < size) {
+                buffer = new byte[size];
+                buffers.set(buffer);
+            }
+            setSourceImage.invoke(
+                    compressor, pixels, 0, 0, width, width, height,
+                    pixelFormat);
+            setSubsamp.invoke(compressor, subsamp);
+            setJPEGQuality.invoke(compressor, jpegQuality(quality));
+            compress.invoke(
+                    compressor, buffer, progressive? progressiveFlags : 0);
+            output.write(
+                    buffer, 0, (int) getCompressedSize.invoke(compressor));
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // TurboJPEG reports compression failures as TJException, an
+            // IOException subclass in current releases and an Exception
+            // subclass in older ones
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Converts an ImageIO style quality into a libjpeg quality.
+     * @param quality quality from 0 to 1.
+     * @return quality from 1 to 100.
+     */
+    static int jpegQuality(float quality) {
+        return Math.max(1, Math.min(100, Math.round(quality * 100)));
+    }
+}
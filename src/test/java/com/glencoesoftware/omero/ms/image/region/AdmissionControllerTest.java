@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testTryAcquireRelease() {
+        AdmissionController controller =
+                new AdmissionController("test", 2, 1, 5);
+        Assert.assertTrue(controller.tryAcquire());
+        Assert.assertTrue(controller.tryAcquire());
+        Assert.assertTrue(controller.tryAcquire());
+        Assert.assertFalse(controller.tryAcquire());
+        Assert.assertEquals(controller.getOutstanding(), 3);
+        Assert.assertEquals(controller.getAdmitted(), 3);
+        Assert.assertEquals(controller.getRejected(), 1);
+        controller.release();
+        Assert.assertTrue(controller.tryAcquire());
+        Assert.assertEquals(controller.getOutstanding(), 3);
+    }
+
+    @Test
+    public void testFromConfigDefaults() {
+        AdmissionController controller =
+                AdmissionController.fromConfig("test", null);
+        Assert.assertEquals(controller.getMaxConcurrency(),
+                AdmissionController.DEFAULT_MAX_CONCURRENCY);
+        Assert.assertEquals(controller.getMaxQueued(), Integer.MAX_VALUE);
+        Assert.assertEquals(controller.getRetryAfter(), 1);
+        Assert.assertTrue(controller.tryAcquire());
+    }
+
+    @Test
+    public void testFromConfig() {
+        AdmissionController controller = AdmissionController.fromConfig(
+                "test", new JsonObject()
+                        .put("max-concurrency", 4)
+                        .put("max-queued", 0)
+                        .put("retry-after", 10));
+        Assert.assertEquals(controller.getMaxConcurrency(), 4);
+        Assert.assertEquals(controller.getMaxQueued(), 0);
+        Assert.assertEquals(controller.getRetryAfter(), 10);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(controller.tryAcquire());
+        }
+        Assert.assertFalse(controller.tryAcquire());
+    }
+
+    private Message<?> message(MultiMap headers) {
+        Message<?> message = mock(Message.class);
+        when(message.headers()).thenReturn(headers);
+        return message;
+    }
+
+    @Test
+    public void testDequeued() {
+        AdmissionController controller =
+                new AdmissionController("test", 1, 1, 1);
+        controller.dequeued(
+                message(controller.deliveryOptions().getHeaders()));
+        Assert.assertEquals(controller.getQueueTimeCount(), 1);
+        Assert.assertTrue(controller.getQueueTimeTotal() >= 0);
+    }
+
+    @Test
+    public void testDequeuedRemote() {
+        AdmissionController controller =
+                new AdmissionController("test", 1, 1, 1);
+        // Enqueued by another process, whose clock is not comparable
+        controller.dequeued(message(MultiMap.caseInsensitiveMultiMap().add(
+                AdmissionController.ENQUEUED_HEADER, "remote:123")));
+        controller.dequeued(message(MultiMap.caseInsensitiveMultiMap()));
+        Assert.assertEquals(controller.getQueueTimeCount(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidConcurrency() {
+        new AdmissionController("test", 0, 1, 1);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import omero.RType;
+import omero.ServerError;
+import omero.api.Callback_IPixels_retrievePixDescription;
+import omero.api.Callback_IPixels_retrieveRndSettings;
+import omero.api.Callback_IQuery_projection;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+import omero.model.Pixels;
+import omero.model.RenderingDef;
+import omero.sys.ParametersI;
+
+public class IceFuturesTest {
+
+    private Context context;
+
+    /** Handlers submitted to <code>context</code> and not yet run */
+    private List<Handler<Void>> pending;
+
+    @SuppressWarnings("unchecked")
+    @BeforeMethod
+    public void setUp() {
+        pending = new ArrayList<Handler<Void>>();
+        context = mock(Context.class);
+        doAnswer(invocation -> {
+            pending.add((Handler<Void>) invocation.getArgument(0));
+            return null;
+        }).when(context).runOnContext(any());
+    }
+
+    private void runPending() {
+        List<Handler<Void>> toRun = new ArrayList<Handler<Void>>(pending);
+        pending.clear();
+        toRun.forEach(handler -> handler.handle(null));
+    }
+
+    @Test
+    public void testProjection() {
+        List<List<RType>> rows = Collections.singletonList(
+                Arrays.asList(mock(RType.class)));
+        IQueryPrx iQuery = mock(IQueryPrx.class);
+        when(iQuery.begin_projection(
+                anyString(), any(), anyMap(),
+                any(Callback_IQuery_projection.class))
+        ).thenAnswer(invocation -> {
+            Callback_IQuery_projection cb = invocation.getArgument(3);
+            cb.response(rows);
+            return null;
+        });
+        Future<List<List<RType>>> future = IceFutures.projection(
+                context, iQuery, "SELECT 1", new ParametersI(),
+                Collections.emptyMap());
+        // Completion must be deferred to the Vert.x context
+        Assert.assertFalse(future.isComplete());
+        runPending();
+        Assert.assertTrue(future.succeeded());
+        Assert.assertSame(future.result(), rows);
+    }
+
+    @Test
+    public void testProjectionUserException() {
+        ServerError e = new ServerError();
+        IQueryPrx iQuery = mock(IQueryPrx.class);
+        when(iQuery.begin_projection(
+                anyString(), any(), anyMap(),
+                any(Callback_IQuery_projection.class))
+        ).thenAnswer(invocation -> {
+            Callback_IQuery_projection cb = invocation.getArgument(3);
+            cb.exception(e);
+            return null;
+        });
+        Future<List<List<RType>>> future = IceFutures.projection(
+                context, iQuery, "SELECT 1", new ParametersI(),
+                Collections.emptyMap());
+        runPending();
+        Assert.assertTrue(future.failed());
+        Assert.assertSame(future.cause(), e);
+    }
+
+    @Test
+    public void testRetrievePixDescription() {
+        Pixels pixels = mock(Pixels.class);
+        IPixelsPrx iPixels = mock(IPixelsPrx.class);
+        when(iPixels.begin_retrievePixDescription(
+                anyLong(), anyMap(),
+                any(Callback_IPixels_retrievePixDescription.class))
+        ).thenAnswer(invocation -> {
+            Callback_IPixels_retrievePixDescription cb =
+                    invocation.getArgument(2);
+            cb.response(pixels);
+            return null;
+        });
+        Future<Pixels> future = IceFutures.retrievePixDescription(
+                context, iPixels, 1L, Collections.emptyMap());
+        runPending();
+        Assert.assertTrue(future.succeeded());
+        Assert.assertSame(future.result(), pixels);
+    }
+
+    @Test
+    public void testRetrievePixDescriptionLocalException() {
+        Ice.TimeoutException e = new Ice.TimeoutException();
+        IPixelsPrx iPixels = mock(IPixelsPrx.class);
+        when(iPixels.begin_retrievePixDescription(
+                anyLong(), anyMap(),
+                any(Callback_IPixels_retrievePixDescription.class))
+        ).thenAnswer(invocation -> {
+            Callback_IPixels_retrievePixDescription cb =
+                    invocation.getArgument(2);
+            cb.exception(e);
+            return null;
+        });
+        Future<Pixels> future = IceFutures.retrievePixDescription(
+                context, iPixels, 1L, Collections.emptyMap());
+        runPending();
+        Assert.assertTrue(future.failed());
+        Assert.assertSame(future.cause(), e);
+    }
+
+    @Test
+    public void testBeginThrows() {
+        Ice.TimeoutException e = new Ice.TimeoutException();
+        IPixelsPrx iPixels = mock(IPixelsPrx.class);
+        when(iPixels.begin_retrieveRndSettings(
+                anyLong(), anyMap(),
+                any(Callback_IPixels_retrieveRndSettings.class))
+        ).thenThrow(e);
+        Future<RenderingDef> future = IceFutures.retrieveRndSettings(
+                context, iPixels, 1L, Collections.emptyMap());
+        runPending();
+        Assert.assertTrue(future.failed());
+        Assert.assertSame(future.cause(), e);
+    }
+}
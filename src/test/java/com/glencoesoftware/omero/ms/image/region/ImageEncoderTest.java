@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.vertx.core.json.JsonObject;
+
+public class ImageEncoderTest {
+
+    private BufferedImage image;
+
+    private ImageEncoder encoder;
+
+    @BeforeMethod
+    public void setUp() {
+        image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 8) << 8 | (x ^ y));
+            }
+        }
+        encoder = new ImageEncoder();
+    }
+
+    private byte[] encode(String format, Float quality) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.encode(image, format, quality, output);
+        return output.toByteArray();
+    }
+
+    private void assertDecodes(byte[] encoded) throws IOException {
+        BufferedImage decoded =
+                ImageIO.read(new ByteArrayInputStream(encoded));
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals(decoded.getWidth(), image.getWidth());
+        Assert.assertEquals(decoded.getHeight(), image.getHeight());
+    }
+
+    @Test
+    public void testCanEncode() {
+        Assert.assertTrue(encoder.canEncode("jpeg"));
+        Assert.assertTrue(encoder.canEncode("png"));
+        Assert.assertTrue(encoder.canEncode("tif"));
+        Assert.assertFalse(encoder.canEncode("gif"));
+        Assert.assertFalse(encoder.canEncode(null));
+    }
+
+    @Test
+    public void testEncodePng() throws IOException {
+        byte[] png = encode("png", null);
+        assertDecodes(png);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        Assert.assertEquals(decoded.getRGB(5, 7), image.getRGB(5, 7));
+    }
+
+    @Test
+    public void testEncodeJpeg() throws IOException {
+        assertDecodes(encode("jpeg", null));
+    }
+
+    @Test
+    public void testJpegQuality() throws IOException {
+        byte[] low = encode("jpeg", 0.1f);
+        byte[] high = encode("jpeg", 1.0f);
+        Assert.assertTrue(low.length < high.length);
+        // The quality of one call does not leak into the next
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ImageEncoder().encode(image, "jpeg", null, output);
+        Assert.assertEquals(encode("jpeg", null), output.toByteArray());
+    }
+
+    @Test
+    public void testWriterReused() throws IOException {
+        // Encoding repeatedly on the same thread reuses, and resets, the
+        // same writer
+        byte[] first = encode("png", null);
+        byte[] second = encode("png", null);
+        Assert.assertEquals(second, first);
+    }
+
+    @Test
+    public void testEncodePackedPixels() throws IOException {
+        int[] pixels = image.getRGB(
+                0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.encode(
+                pixels, image.getWidth(), image.getHeight(), "png", null,
+                output);
+        assertDecodes(output.toByteArray());
+        BufferedImage decoded = ImageIO.read(
+                new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals(
+                decoded.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                        null, 0, image.getWidth()),
+                pixels);
+    }
+
+    @Test
+    public void testJavaBackend() {
+        Assert.assertFalse(new ImageEncoder(
+                ImageEncoder.DEFAULT_JPEG_QUALITY, false, false,
+                new PngEncoder(), null, ImageEncoder.JPEG_BACKEND_JAVA)
+                .isTurboJpeg());
+    }
+
+    @Test
+    public void testTurboJpegBackendUnavailable() {
+        if (TurboJpegEncoder.load() != null) {
+            throw new SkipException("libjpeg-turbo is available");
+        }
+        Assert.assertFalse(encoder.isTurboJpeg());
+        try {
+            ImageEncoder.fromConfig(new JsonObject().put(
+                    "jpeg", new JsonObject().put("backend", "turbojpeg")));
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownJpegBackend() {
+        ImageEncoder.fromConfig(new JsonObject().put(
+                "jpeg", new JsonObject().put("backend", "unknown")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownFormat() throws IOException {
+        encode("gif", null);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidJpegQuality() {
+        ImageEncoder.fromConfig(new JsonObject().put(
+                "jpeg", new JsonObject().put("quality", 1.5)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedTiffCompression() {
+        ImageEncoder.fromConfig(new JsonObject().put(
+                "tiff", new JsonObject().put("compression", "Unknown")));
+    }
+}
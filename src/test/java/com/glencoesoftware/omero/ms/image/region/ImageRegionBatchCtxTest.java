@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class ImageRegionBatchCtxTest {
+
+    private MultiMap params;
+
+    private JsonArray specs;
+
+    @BeforeMethod
+    public void setUp() {
+        params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "123");
+        params.add("c", "1|0:255$FF0000,-2|0:255$00FF00");
+        params.add("format", "png");
+        specs = new JsonArray()
+                .add(new JsonObject()
+                        .put("theZ", 0)
+                        .put("theT", 1)
+                        .put("tile", "0,0,0,256,256"))
+                .add(new JsonObject()
+                        .put("theZ", "2")
+                        .put("theT", "1")
+                        .put("region", "0,0,10,20"));
+    }
+
+    @Test
+    public void testImageRegions() {
+        ImageRegionBatchCtx batchCtx =
+                new ImageRegionBatchCtx(params, specs, "a");
+        Assert.assertEquals(batchCtx.imageId, Long.valueOf(123));
+        Assert.assertEquals(batchCtx.omeroSessionKey, "a");
+        Assert.assertEquals(batchCtx.imageRegions.size(), 2);
+
+        ImageRegionCtx first = batchCtx.imageRegions.get(0);
+        Assert.assertEquals(first.imageId, Long.valueOf(123));
+        Assert.assertEquals(first.z, Integer.valueOf(0));
+        Assert.assertEquals(first.t, Integer.valueOf(1));
+        Assert.assertEquals(first.tile.getWidth(), 256);
+        Assert.assertNull(first.region);
+        Assert.assertEquals(first.format, "png");
+        Assert.assertEquals(first.omeroSessionKey, "a");
+
+        ImageRegionCtx second = batchCtx.imageRegions.get(1);
+        Assert.assertEquals(second.z, Integer.valueOf(2));
+        Assert.assertNull(second.tile);
+        Assert.assertEquals(second.region.getHeight(), 20);
+        Assert.assertEquals(second.channels, first.channels);
+        Assert.assertEquals(second.format, "png");
+    }
+
+    @Test
+    public void testRegionParamsNotShared() {
+        params.add("tile", "0,1,1,512,512");
+        params.add("theZ", "5");
+        ImageRegionBatchCtx batchCtx =
+                new ImageRegionBatchCtx(params, specs, "a");
+        Assert.assertEquals(
+                batchCtx.imageRegions.get(0).tile.getWidth(), 256);
+        Assert.assertEquals(
+                batchCtx.imageRegions.get(0).z, Integer.valueOf(0));
+        Assert.assertNull(batchCtx.imageRegions.get(1).tile);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmpty() {
+        new ImageRegionBatchCtx(params, new JsonArray(), "a");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMissingPlane() {
+        specs.add(new JsonObject().put("tile", "0,0,0,256,256"));
+        new ImageRegionBatchCtx(params, specs, "a");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNotAnObject() {
+        specs.add("0,0,0,256,256");
+        new ImageRegionBatchCtx(params, specs, "a");
+    }
+
+    @Test
+    public void testCancel() {
+        ImageRegionBatchCtx batchCtx =
+                new ImageRegionBatchCtx(params, specs, "a");
+        Assert.assertFalse(batchCtx.isCancelled());
+        batchCtx.cancel();
+        Assert.assertTrue(batchCtx.isCancelled());
+        Assert.assertFalse(Json.encode(batchCtx).contains("cancelled"));
+    }
+
+    @Test
+    public void testMessageCodec() {
+        ImageRegionBatchCtx batchCtx =
+                new ImageRegionBatchCtx(params, specs, "a");
+        RequestCtxMessageCodec<ImageRegionBatchCtx> codec =
+                new RequestCtxMessageCodec<ImageRegionBatchCtx>(
+                        ImageRegionBatchCtx.class);
+        Assert.assertSame(codec.transform(batchCtx), batchCtx);
+
+        Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, batchCtx);
+        ImageRegionBatchCtx batchCtxDecoded = codec.decodeFromWire(0, buffer);
+        Assert.assertEquals(batchCtxDecoded.omeroSessionKey, "a");
+        Assert.assertEquals(batchCtxDecoded.imageRegions.size(), 2);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(
+                    batchCtxDecoded.imageRegions.get(i).cacheKey(1L, 1L),
+                    batchCtx.imageRegions.get(i).cacheKey(1L, 1L));
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 
 import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.Json;
 import omero.constants.projection.ProjectionType;
 
@@ -359,4 +360,141 @@ public class ImageRegionCtxTest {
         Assert.assertNull(imageCtxDecoded.projectionStart);
         Assert.assertNull(imageCtxDecoded.projectionEnd);
     }
+
+    @Test
+    public void testCacheKey()
+            throws JsonParseException, JsonMappingException, IOException {
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "a");
+        String data = Json.encode(imageCtx);
+        ObjectMapper mapper = new ObjectMapper();
+        ImageRegionCtx imageCtxDecoded = mapper.readValue(
+                data, ImageRegionCtx.class);
+        imageCtxDecoded.omeroSessionKey = "b";
+        Assert.assertEquals(
+                imageCtxDecoded.cacheKey(1L, 1L), imageCtx.cacheKey(1L, 1L));
+        Assert.assertTrue(imageCtx.cacheKey(1L, 1L).startsWith(
+                "ome.model.core.Image:" + imageId + ":1:1:"));
+    }
+
+    @Test
+    public void testCacheKeyRenderingDefUpdateTime() {
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "");
+        Assert.assertNotEquals(
+                imageCtx.cacheKey(1L, 1L), imageCtx.cacheKey(1L, 2L));
+    }
+
+    @Test
+    public void testCacheKeyRenderingDefId() {
+        // Users rendering with different rendering settings must not share
+        // renders
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "");
+        Assert.assertNotEquals(
+                imageCtx.cacheKey(1L, 1L), imageCtx.cacheKey(2L, 1L));
+    }
+
+    @Test
+    public void testCacheKeyRenderingParameters() {
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "");
+        String key = imageCtx.cacheKey(1L, 1L);
+        params.add("flip", "h");
+        Assert.assertNotEquals(
+                new ImageRegionCtx(params, "").cacheKey(1L, 1L), key);
+        params.remove("flip");
+        params.add("format", "png");
+        Assert.assertNotEquals(
+                new ImageRegionCtx(params, "").cacheKey(1L, 1L), key);
+        params.remove("format");
+        params.add("p", "intmax|0:1");
+        Assert.assertNotEquals(
+                new ImageRegionCtx(params, "").cacheKey(1L, 1L), key);
+    }
+
+    private MultiMap rawPixelDataParams(String theC) {
+        // The parameters are shared between tests; add to a copy
+        return MultiMap.caseInsensitiveMultiMap()
+                .addAll(params).add("theC", theC);
+    }
+
+    @Test
+    public void testRawPixelData() {
+        Assert.assertNull(new ImageRegionCtx(params, "").channel);
+        Assert.assertFalse(new ImageRegionCtx(params, "").isRawPixelData());
+        MultiMap rawParams = rawPixelDataParams("2");
+        ImageRegionCtx imageCtx = new ImageRegionCtx(rawParams, "", true);
+        Assert.assertEquals(imageCtx.channel, Integer.valueOf(2));
+        Assert.assertEquals(imageCtx.format, ImageRegionCtx.FORMAT_RAW);
+        Assert.assertTrue(imageCtx.isRawPixelData());
+        rawParams.add("format", ImageRegionCtx.FORMAT_DEFLATE);
+        imageCtx = new ImageRegionCtx(rawParams, "", true);
+        Assert.assertEquals(imageCtx.format, ImageRegionCtx.FORMAT_DEFLATE);
+        Assert.assertTrue(imageCtx.isRawPixelData());
+        Assert.assertFalse(Json.encode(imageCtx).contains("rawPixelData"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRawPixelDataFormat() {
+        new ImageRegionCtx(
+                rawPixelDataParams("0").add("format", "jpeg"), "", true);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTheCFormat() {
+        new ImageRegionCtx(rawPixelDataParams("abc"), "", true);
+    }
+
+    @Test
+    public void testTheCIgnoredWhenRendering() {
+        ImageRegionCtx imageCtx =
+                new ImageRegionCtx(rawPixelDataParams("0"), "");
+        Assert.assertNull(imageCtx.channel);
+        Assert.assertEquals(imageCtx.format, "jpeg");
+        Assert.assertFalse(imageCtx.isRawPixelData());
+        Assert.assertEquals(
+                imageCtx.cacheKey(1L, 1L),
+                new ImageRegionCtx(params, "").cacheKey(1L, 1L));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRawPixelDataMissingTheC() {
+        new ImageRegionCtx(params, "", true);
+    }
+
+    @Test
+    public void testCacheKeyRawPixelData() {
+        String key = new ImageRegionCtx(params, "").cacheKey(1L, 1L);
+        Assert.assertFalse(key.contains("theC"));
+        String channel0 = new ImageRegionCtx(
+                rawPixelDataParams("0"), "", true).cacheKey(1L, 1L);
+        String channel1 = new ImageRegionCtx(
+                rawPixelDataParams("1"), "", true).cacheKey(1L, 1L);
+        Assert.assertNotEquals(channel0, key);
+        Assert.assertNotEquals(channel1, channel0);
+    }
+
+    @Test
+    public void testMessageCodec() {
+        params.add("p", "intmax|0:1");
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "a");
+        RequestCtxMessageCodec<ImageRegionCtx> codec =
+                new RequestCtxMessageCodec<ImageRegionCtx>(
+                        ImageRegionCtx.class);
+        Assert.assertSame(codec.transform(imageCtx), imageCtx);
+
+        Buffer buffer = Buffer.buffer();
+        buffer.appendByte((byte) 1);  // Ensure position is respected
+        codec.encodeToWire(buffer, imageCtx);
+        ImageRegionCtx imageCtxDecoded = codec.decodeFromWire(1, buffer);
+        Assert.assertEquals(imageCtxDecoded.omeroSessionKey, "a");
+        Assert.assertEquals(
+                imageCtxDecoded.cacheKey(1L, 1L), imageCtx.cacheKey(1L, 1L));
+    }
+
+    @Test
+    public void testCancel() {
+        ImageRegionCtx imageCtx = new ImageRegionCtx(params, "a");
+        Assert.assertFalse(imageCtx.isCancelled());
+        imageCtx.cancel();
+        Assert.assertTrue(imageCtx.isCancelled());
+        Assert.assertFalse(Json.encode(imageCtx).contains("cancelled"));
+    }
 }
@@ -60,16 +60,20 @@ public class ImageRegionRequestHandlerTest {
                 new ArrayList<Family>(),
                 new ArrayList<RenderingModel>(),
                 null, //LutProvider lutProvider,
-                null, //LocalCompress compSrv,
-                null, //PixelsService pixService,
-                1024); //maxTileLength);
+                null, //PixelBufferCache pixelBufferCache,
+                null, //PixelsGeometryCache pixelsGeometryCache,
+                null, //ImageEncoder encoder,
+                1024, //maxTileLength
+                null, //ImageMetadataService metadataService,
+                null); //ProjectionService projectionService);
     }
 
     private void testFlip(
             int[] src, int sizeX, int sizeY,
             boolean flipHorizontal, boolean flipVertical) {
+        // Flipping is performed in place
         int[] flipped = ImageRegionRequestHandler.flip(
-                src, sizeX, sizeY, flipHorizontal, flipVertical);
+                src.clone(), sizeX, sizeY, flipHorizontal, flipVertical);
         for (int n = 0; n < sizeX * sizeY; n++){
             int new_col;
             if (flipHorizontal) {
@@ -198,6 +202,49 @@ public class ImageRegionRequestHandlerTest {
         ImageRegionRequestHandler.flip(src, 4, 0, true, true);
     }
 
+    private void testFlipRawPixelData(
+            int sizeX, int sizeY, int bytesPerPixel,
+            boolean flipHorizontal, boolean flipVertical) {
+        // Each pixel's bytes all hold its index so that pixels which are
+        // split or reordered internally are detected
+        byte[] src = new byte[sizeX * sizeY * bytesPerPixel];
+        for (int n = 0; n < src.length; n++) {
+            src[n] = (byte) (n / bytesPerPixel);
+        }
+        byte[] flipped = ImageRegionRequestHandler.flip(
+                src, sizeX, sizeY, bytesPerPixel,
+                flipHorizontal, flipVertical);
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                int srcX = flipHorizontal? sizeX - 1 - x : x;
+                int srcY = flipVertical? sizeY - 1 - y : y;
+                for (int b = 0; b < bytesPerPixel; b++) {
+                    Assert.assertEquals(
+                            flipped[(y * sizeX + x) * bytesPerPixel + b],
+                            (byte) (srcY * sizeX + srcX));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFlipRawPixelData() {
+        for (int bytesPerPixel : new int[] {1, 2, 4, 8}) {
+            testFlipRawPixelData(3, 2, bytesPerPixel, true, false);
+            testFlipRawPixelData(3, 2, bytesPerPixel, false, true);
+            testFlipRawPixelData(3, 2, bytesPerPixel, true, true);
+            testFlipRawPixelData(1, 5, bytesPerPixel, true, true);
+        }
+    }
+
+    @Test
+    public void testFlipRawPixelDataNoFlip() {
+        byte[] src = new byte[] {1, 2, 3, 4};
+        Assert.assertSame(
+                ImageRegionRequestHandler.flip(src, 2, 1, 2, false, false),
+                src);
+    }
+
     @Test
     public void testGetRegionDefCtxTile()
             throws IllegalArgumentException, ServerError {
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.image.region.ImageRegionVerticle.InFlightRender;
+
+public class ImageRegionVerticleTest {
+
+    private static final String KEY = "key";
+
+    private ConcurrentHashMap<String, InFlightRender> inFlightRenders;
+
+    @BeforeMethod
+    public void setUp() {
+        inFlightRenders = new ConcurrentHashMap<String, InFlightRender>();
+    }
+
+    /**
+     * Registers or joins a render as a new request would.
+     * @param imageRegionCtx request.
+     * @return Render the request is waiting on, which is its own render if
+     * it must perform it.
+     */
+    private InFlightRender request(ImageRegionCtx imageRegionCtx) {
+        InFlightRender render = new InFlightRender(imageRegionCtx);
+        InFlightRender joined = ImageRegionVerticle.joinOrStart(
+                inFlightRenders, KEY, render, imageRegionCtx);
+        return joined == null? render : joined;
+    }
+
+    @Test
+    public void testJoin() {
+        InFlightRender leader = request(new ImageRegionCtx());
+        Assert.assertSame(inFlightRenders.get(KEY), leader);
+        Assert.assertSame(request(new ImageRegionCtx()), leader);
+    }
+
+    @Test
+    public void testJoinAbandoned() {
+        ImageRegionCtx cancelled = new ImageRegionCtx();
+        InFlightRender abandoned = request(cancelled);
+        cancelled.cancel();
+        Assert.assertTrue(abandoned.isCancelled());
+
+        // A join arriving after the render was abandoned starts a new render
+        // which subsequent requests then join
+        InFlightRender replacement = request(new ImageRegionCtx());
+        Assert.assertNotSame(replacement, abandoned);
+        Assert.assertSame(inFlightRenders.get(KEY), replacement);
+        Assert.assertSame(request(new ImageRegionCtx()), replacement);
+
+        // The abandoned render completing does not remove its replacement
+        Assert.assertFalse(inFlightRenders.remove(KEY, abandoned));
+        Assert.assertSame(inFlightRenders.get(KEY), replacement);
+    }
+}
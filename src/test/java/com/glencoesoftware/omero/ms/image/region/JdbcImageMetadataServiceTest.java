@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.AdditionalMatchers.and;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.image.region.ImageMetadataService.ImageMetadata;
+
+import io.vertx.core.MultiMap;
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+
+public class JdbcImageMetadataServiceTest {
+
+    private DataSource dataSource;
+
+    private Connection connection;
+
+    private PreparedStatement pixelsIdAndSeriesStatement;
+
+    private PreparedStatement pixelsStatement;
+
+    private PreparedStatement channelsStatement;
+
+    private PreparedStatement renderingDefStatement;
+
+    private PreparedStatement channelBindingsStatement;
+
+    private PreparedStatement codomainMapsStatement;
+
+    private JdbcImageMetadataService service;
+
+    @BeforeMethod
+    public void setUp() throws SQLException {
+        dataSource = mock(DataSource.class);
+        connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        pixelsIdAndSeriesStatement = mock(PreparedStatement.class);
+        pixelsStatement = mock(PreparedStatement.class);
+        channelsStatement = mock(PreparedStatement.class);
+        renderingDefStatement = mock(PreparedStatement.class);
+        channelBindingsStatement = mock(PreparedStatement.class);
+        codomainMapsStatement = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(
+                invocation -> {
+                    String sql = invocation.getArgument(0);
+                    if (sql.contains("JOIN session")) {
+                        return pixelsIdAndSeriesStatement;
+                    }
+                    if (sql.contains("JOIN pixelstype")) {
+                        return pixelsStatement;
+                    }
+                    if (sql.contains("FROM channel c")) {
+                        return channelsStatement;
+                    }
+                    if (sql.contains("FROM renderingdef r")) {
+                        return renderingDefStatement;
+                    }
+                    if (sql.contains("FROM channelbinding cb")) {
+                        return channelBindingsStatement;
+                    }
+                    if (sql.contains("FROM codomainmapcontext c")) {
+                        return codomainMapsStatement;
+                    }
+                    throw new SQLException("Unexpected query: " + sql);
+                });
+        service = new JdbcImageMetadataService(10, 60000, dataSource);
+    }
+
+    private void mockImage() throws SQLException {
+        mockImage(12345L);
+    }
+
+    private void mockImage(long updateTime) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true, false);
+        when(rs.getLong(1)).thenReturn(2L);
+        when(rs.getInt(2)).thenReturn(3);
+        when(rs.getTimestamp(3)).thenReturn(new Timestamp(updateTime));
+        when(rs.getLong(4)).thenReturn(4L);
+        when(rs.getLong(5)).thenReturn(5L);
+        when(pixelsIdAndSeriesStatement.executeQuery()).thenReturn(rs);
+    }
+
+    private void mockRenderingMetadata() throws SQLException {
+        ResultSet pixelsRs = mock(ResultSet.class);
+        when(pixelsRs.next()).thenReturn(true, false);
+        when(pixelsRs.getLong(1)).thenReturn(1L);
+        when(pixelsRs.getInt(2)).thenReturn(1024);
+        when(pixelsRs.getInt(3)).thenReturn(512);
+        when(pixelsRs.getInt(4)).thenReturn(1);
+        when(pixelsRs.getInt(5)).thenReturn(2);
+        when(pixelsRs.getInt(6)).thenReturn(1);
+        when(pixelsRs.getString(7)).thenReturn("sha1");
+        when(pixelsRs.getInt(8)).thenReturn(8);
+        when(pixelsRs.getString(9)).thenReturn("uint8");
+        when(pixelsRs.getInt(10)).thenReturn(8);
+        when(pixelsRs.getString(11)).thenReturn("XYZCT");
+        when(pixelsStatement.executeQuery()).thenReturn(pixelsRs);
+
+        ResultSet channelsRs = mock(ResultSet.class);
+        when(channelsRs.next()).thenReturn(true, true, false);
+        when(channelsRs.getDouble(anyInt())).thenReturn(0.0, 255.0);
+        when(channelsStatement.executeQuery()).thenReturn(channelsRs);
+
+        ResultSet renderingDefRs = mock(ResultSet.class);
+        when(renderingDefRs.next()).thenReturn(true, false);
+        when(renderingDefRs.getLong(1)).thenReturn(6L);
+        when(renderingDefRs.getString(4)).thenReturn("rgb");
+        when(renderingDefRs.getInt(7)).thenReturn(255);
+        when(renderingDefStatement.executeQuery())
+            .thenReturn(renderingDefRs);
+
+        ResultSet channelBindingsRs = mock(ResultSet.class);
+        when(channelBindingsRs.next()).thenReturn(true, true, false);
+        when(channelBindingsRs.getBoolean(1)).thenReturn(true, false);
+        when(channelBindingsRs.getString(3)).thenReturn("linear");
+        when(channelBindingsStatement.executeQuery())
+            .thenReturn(channelBindingsRs);
+
+        mockCodomainMaps(0L);
+    }
+
+    private void mockCodomainMaps(long count) throws SQLException {
+        ResultSet codomainMapsRs = mock(ResultSet.class);
+        when(codomainMapsRs.next()).thenReturn(true, false);
+        when(codomainMapsRs.getLong(1)).thenReturn(count);
+        when(codomainMapsStatement.executeQuery()).thenReturn(codomainMapsRs);
+    }
+
+    @Test
+    public void testGetImageMetadata() throws SQLException, ServerError {
+        mockImage();
+        ImageMetadata imageMetadata =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        Assert.assertEquals(imageMetadata.getPixelsId(), 2L);
+        Assert.assertEquals(imageMetadata.getSeries(), 3);
+        Assert.assertEquals(
+                imageMetadata.getRenderingDefUpdateTime(), 12345L);
+        verify(pixelsIdAndSeriesStatement).setString(1, "sessionKey");
+        verify(pixelsIdAndSeriesStatement).setLong(2, 1L);
+        verify(pixelsIdAndSeriesStatement).setLong(3, 0L);
+        verify(pixelsIdAndSeriesStatement).setLong(
+                4, JdbcImageMetadataService.GROUP_READ);
+        verify(pixelsIdAndSeriesStatement).setLong(
+                5, JdbcImageMetadataService.GROUP_READ);
+        verify(connection).close();
+    }
+
+    @Test
+    public void testRenderingDefChanged() throws SQLException, ServerError {
+        List<Long> changed = new ArrayList<Long>();
+        service.setRenderingDefChangedHandler(changed::add);
+        mockImage(12345L);
+        service.getImageMetadata(null, "sessionKey", 1L);
+        mockImage(12345L);
+        service.getImageMetadata(null, "otherSessionKey", 1L);
+        Assert.assertTrue(changed.isEmpty());
+        // Seen first by another session
+        mockImage(23456L);
+        service.getImageMetadata(null, "otherSessionKey", 1L);
+        Assert.assertEquals(changed, Arrays.asList(1L));
+        mockImage(23456L);
+        service.getImageMetadata(null, "sessionKey", 1L);
+        // Older settings, for example visible only to another user
+        mockImage(12345L);
+        service.getImageMetadata(null, "thirdSessionKey", 1L);
+        Assert.assertEquals(changed, Arrays.asList(1L));
+    }
+
+    @Test
+    public void testGetImageMetadataSessionExpiry()
+            throws SQLException, ServerError {
+        mockImage();
+        service.getImageMetadata(null, "sessionKey", 1L);
+        // Closed sessions and those which have outlived their time to live
+        // may not read anything
+        verify(connection).prepareStatement(and(
+                contains("s.closed IS NULL"), contains("s.timetolive")));
+    }
+
+    @Test
+    public void testGetImageMetadataNotReadable()
+            throws SQLException, ServerError {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(false);
+        when(pixelsIdAndSeriesStatement.executeQuery()).thenReturn(rs);
+        Assert.assertNull(service.getImageMetadata(null, "sessionKey", 1L));
+    }
+
+    @Test(expectedExceptions = ServerError.class)
+    public void testGetImageMetadataSQLException()
+            throws SQLException, ServerError {
+        when(pixelsIdAndSeriesStatement.executeQuery())
+            .thenThrow(new SQLException("Connection refused"));
+        service.getImageMetadata(null, "sessionKey", 1L);
+    }
+
+    @Test
+    public void testNewPixelsAndRenderingDef()
+            throws SQLException, ServerError {
+        mockImage();
+        mockRenderingMetadata();
+        ImageMetadata imageMetadata =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        Assert.assertTrue(
+                imageMetadata.prefetch(null, null).succeeded());
+
+        Pixels pixels = imageMetadata.newPixels(null);
+        Assert.assertEquals(pixels.getId(), Long.valueOf(2L));
+        Assert.assertEquals(pixels.getSizeX(), Integer.valueOf(1024));
+        Assert.assertEquals(pixels.getSizeY(), Integer.valueOf(512));
+        Assert.assertEquals(pixels.getSizeC(), Integer.valueOf(2));
+        Assert.assertEquals(pixels.getPixelsType().getValue(), "uint8");
+        Assert.assertEquals(
+                pixels.getPixelsType().getBitSize(), Integer.valueOf(8));
+        Assert.assertEquals(pixels.sizeOfChannels(), 2);
+        Assert.assertEquals(
+                pixels.getChannel(0).getStatsInfo().getGlobalMax(), 255.0);
+
+        RenderingDef rdef = imageMetadata.newRenderingDef(null);
+        Assert.assertEquals(rdef.getModel().getValue(), "rgb");
+        Assert.assertEquals(
+                rdef.getQuantization().getBitResolution(),
+                Integer.valueOf(255));
+        Assert.assertEquals(rdef.sizeOfWaveRendering(), 2);
+        Assert.assertTrue(rdef.getChannelBinding(0).getActive());
+        Assert.assertFalse(rdef.getChannelBinding(1).getActive());
+        Assert.assertEquals(
+                rdef.getChannelBinding(0).getFamily().getValue(), "linear");
+
+        // Rendering settings of the session user, then the Pixels owner
+        verify(renderingDefStatement).setLong(1, 2L);
+        verify(renderingDefStatement).setLong(2, 4L);
+        verify(renderingDefStatement).setLong(3, 5L);
+        verify(renderingDefStatement).setLong(4, 4L);
+        verify(channelBindingsStatement).setLong(1, 6L);
+
+        // New objects every time, from a single set of queries
+        Assert.assertNotSame(imageMetadata.newPixels(null), pixels);
+        Assert.assertNotSame(imageMetadata.newRenderingDef(null), rdef);
+        verify(pixelsStatement, times(1)).executeQuery();
+        verify(renderingDefStatement, times(1)).executeQuery();
+    }
+
+    @Test
+    public void testRenderingDefIdPerUser() throws SQLException, ServerError {
+        mockImage();
+        mockRenderingMetadata();
+        ImageMetadata first =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        Assert.assertNull(first.getRenderingDefId());
+        first.prefetch(null, null);
+        Assert.assertEquals(first.getRenderingDefId(), Long.valueOf(6L));
+
+        // Another user of the same Image with their own rendering settings
+        mockImage();
+        mockRenderingMetadata();
+        ResultSet renderingDefRs = mock(ResultSet.class);
+        when(renderingDefRs.next()).thenReturn(true, false);
+        when(renderingDefRs.getLong(1)).thenReturn(7L);
+        when(renderingDefStatement.executeQuery())
+            .thenReturn(renderingDefRs);
+        ImageMetadata second =
+                service.getImageMetadata(null, "otherSessionKey", 1L);
+        second.prefetch(null, null);
+        Assert.assertEquals(second.getRenderingDefId(), Long.valueOf(7L));
+
+        MultiMap params = MultiMap.caseInsensitiveMultiMap()
+                .add("imageId", "1").add("theZ", "0").add("theT", "0");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertNotEquals(
+                imageRegionCtx.cacheKey(
+                        first.getRenderingDefId(),
+                        first.getRenderingDefUpdateTime()),
+                imageRegionCtx.cacheKey(
+                        second.getRenderingDefId(),
+                        second.getRenderingDefUpdateTime()));
+    }
+
+    @Test
+    public void testNoRenderingDef() throws SQLException, ServerError {
+        mockImage();
+        mockRenderingMetadata();
+        ResultSet renderingDefRs = mock(ResultSet.class);
+        when(renderingDefRs.next()).thenReturn(false);
+        when(renderingDefStatement.executeQuery())
+            .thenReturn(renderingDefRs);
+        ImageMetadata imageMetadata =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        imageMetadata.prefetch(null, null);
+        Assert.assertEquals(
+                imageMetadata.getRenderingDefId(), Long.valueOf(0L));
+    }
+
+    @Test
+    public void testCodomainMapsRetrievedThroughServer()
+            throws SQLException, ServerError {
+        mockImage();
+        mockRenderingMetadata();
+        mockCodomainMaps(1L);
+        IPixelsPrx iPixels = mock(IPixelsPrx.class);
+        ImageMetadata imageMetadata =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        imageMetadata.newRenderingDef(iPixels);
+        verify(codomainMapsStatement).setLong(1, 6L);
+        verify(iPixels).retrieveRndSettings(eq(2L), anyMap());
+        // The Pixels description does not depend on the codomain maps
+        Assert.assertNotNull(imageMetadata.newPixels(iPixels));
+        verify(iPixels, never()).retrievePixDescription(anyLong(), anyMap());
+    }
+
+    @Test
+    public void testNoCodomainMaps() throws SQLException, ServerError {
+        mockImage();
+        mockRenderingMetadata();
+        IPixelsPrx iPixels = mock(IPixelsPrx.class);
+        ImageMetadata imageMetadata =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        Assert.assertNotNull(imageMetadata.newRenderingDef(iPixels));
+        verifyZeroInteractions(iPixels);
+    }
+
+    @Test
+    public void testCachedMetadataReused() throws SQLException, ServerError {
+        mockImage();
+        ImageMetadata first =
+                service.getImageMetadata(null, "sessionKey", 1L);
+        mockImage();
+        Assert.assertSame(
+                service.getImageMetadata(null, "sessionKey", 1L), first);
+        mockImage();
+        Assert.assertNotSame(
+                service.getImageMetadata(null, "otherSessionKey", 1L),
+                first);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MetricsRegistryTest {
+
+    private MetricsRegistry registry;
+
+    @BeforeMethod
+    public void setUp() {
+        registry = new MetricsRegistry();
+    }
+
+    @Test
+    public void testCounter() {
+        registry.counter("requests_total", "Requests", "lane", "bulk")
+            .increment();
+        registry.counter("requests_total", "Requests", "lane", "bulk")
+            .add(2);
+        registry.counter("requests_total", "Requests", "lane", "interactive")
+            .increment();
+        String scrape = registry.scrape();
+        Assert.assertTrue(scrape.contains(
+                "# TYPE omero_ms_image_region_requests_total counter\n"));
+        Assert.assertTrue(scrape.contains(
+                "omero_ms_image_region_requests_total{lane=\"bulk\"} 3\n"));
+        Assert.assertTrue(scrape.contains(
+                "omero_ms_image_region_requests_total"
+                + "{lane=\"interactive\"} 1\n"));
+    }
+
+    @Test
+    public void testGauge() {
+        AtomicLong value = new AtomicLong(5);
+        registry.gauge("size", "Size", value::get);
+        Assert.assertTrue(registry.scrape().contains(
+                "omero_ms_image_region_size 5\n"));
+        value.set(7);
+        Assert.assertTrue(registry.scrape().contains(
+                "omero_ms_image_region_size 7\n"));
+    }
+
+    @Test
+    public void testTimer() {
+        MetricsRegistry.Timer timer = registry.timer(
+                "stage_seconds", "Stages", "stage", "render");
+        for (int i = 1; i <= 100; i++) {
+            timer.record(i, TimeUnit.MILLISECONDS);
+        }
+        Assert.assertEquals(timer.getCount(), 100);
+        Histogram snapshot =
+                timer.snapshot(System.currentTimeMillis(), 60000);
+        Assert.assertEquals(snapshot.getTotalCount(), 100);
+        Assert.assertEquals(
+                snapshot.getValueAtPercentile(99) / 1000.0, 99.0, 1.0);
+
+        String scrape = registry.scrape();
+        Assert.assertTrue(scrape.contains(
+                "# TYPE omero_ms_image_region_stage_seconds summary\n"));
+        Assert.assertTrue(scrape.contains(
+                "omero_ms_image_region_stage_seconds_count{stage=\"render\"} "
+                + "100\n"));
+        Assert.assertTrue(scrape.contains(
+                "omero_ms_image_region_stage_seconds_sum{stage=\"render\"} "
+                + "5.05\n"));
+        Assert.assertTrue(scrape.contains(
+                "omero_ms_image_region_stage_seconds"
+                + "{stage=\"render\",quantile=\"0.99\"} 0.099"));
+    }
+
+    @Test
+    public void testTimerWindow() {
+        MetricsRegistry.Timer timer = registry.timer("stage_seconds", "");
+        timer.record(1, TimeUnit.SECONDS);
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(timer.snapshot(now, 1000).getTotalCount(), 1);
+        // Previous half window is still included
+        Assert.assertEquals(
+                timer.snapshot(now + 500, 1000).getTotalCount(), 1);
+        Assert.assertEquals(
+                timer.snapshot(now + 1000, 1000).getTotalCount(), 0);
+        // Lifetime count is unaffected
+        Assert.assertEquals(timer.getCount(), 1);
+    }
+
+    @Test
+    public void testTimerStaleLatenciesDiscarded() {
+        MetricsRegistry.Timer timer = registry.timer("stage_seconds", "");
+        long now = System.currentTimeMillis();
+        timer.record(1, TimeUnit.SECONDS);
+        // Not scraped until long after the latency was recorded
+        Assert.assertEquals(
+                timer.snapshot(now + 5000, 1000).getTotalCount(), 0);
+        Assert.assertEquals(timer.getCount(), 1);
+    }
+
+    @Test
+    public void testTimerRotate() {
+        MetricsRegistry.Timer timer = registry.timer("stage_seconds", "");
+        long now = System.currentTimeMillis();
+        timer.record(1, TimeUnit.SECONDS);
+        timer.rotate(now + 500, 1000);
+        timer.record(1, TimeUnit.SECONDS);
+        timer.rotate(now + 1000, 1000);
+        // Only the latency recorded in the previous half window remains
+        Assert.assertEquals(
+                timer.snapshot(now + 1000, 1000).getTotalCount(), 1);
+        Assert.assertEquals(
+                timer.snapshot(now + 1500, 1000).getTotalCount(), 0);
+    }
+
+    @Test
+    public void testTimerEmpty() {
+        registry.timer("stage_seconds", "Stages");
+        Assert.assertTrue(registry.scrape().contains(
+                "omero_ms_image_region_stage_seconds{quantile=\"0.5\"} NaN\n"));
+    }
+
+    @Test
+    public void testLabelsEscaped() {
+        Assert.assertEquals(
+                MetricsRegistry.formatLabels(
+                        "a", "x\"y", "b", "x\\y", "c", null),
+                "a=\"x\\\"y\",b=\"x\\\\y\",c=\"\"");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTypeMismatch() {
+        registry.counter("size", "Size");
+        registry.gauge("size", "Size", () -> 1);
+    }
+
+    @Test
+    public void testStopWatch() {
+        new MetricsStopWatch(registry, "render", "format", "jpeg").stop();
+        Assert.assertEquals(
+                registry.timer(
+                        MetricsStopWatch.STAGE_SECONDS, "",
+                        "stage", "render", "format", "jpeg").getCount(),
+                1);
+    }
+}
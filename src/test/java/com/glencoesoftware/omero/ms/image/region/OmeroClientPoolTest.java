@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.image.region.OmeroClientPool.PooledRequest;
+
+import omero.api.ServiceFactoryPrx;
+
+public class OmeroClientPoolTest {
+
+    /** Clients created by the pool under test, in creation order */
+    private final List<omero.client> created =
+            new CopyOnWriteArrayList<omero.client>();
+
+    /** Clients which have been closed */
+    private final Set<omero.client> destroyed =
+            ConcurrentHashMap.newKeySet();
+
+    private OmeroClientPool newPool(
+            int maxSize, long idleTimeout, long validationInterval) {
+        created.clear();
+        destroyed.clear();
+        return new OmeroClientPool(
+                "localhost", 4064, maxSize, idleTimeout, validationInterval) {
+            @Override
+            protected omero.client newClient() {
+                try {
+                    omero.client client = mock(omero.client.class);
+                    ServiceFactoryPrx session = mock(ServiceFactoryPrx.class);
+                    when(client.joinSession(anyString())).thenReturn(session);
+                    when(client.getSession()).thenReturn(session);
+                    doAnswer(invocation -> {
+                        destroyed.add(client);
+                        return null;
+                    }).when(client).__del__();
+                    created.add(client);
+                    return client;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private omero.client clientOf(PooledRequest request) {
+        return request.execute(client -> client);
+    }
+
+    @Test
+    public void testClientShared() throws Exception {
+        OmeroClientPool pool = newPool(1, 60000, 60000);
+        try (PooledRequest a = pool.borrow("session");
+             PooledRequest b = pool.borrow("session")) {
+            Assert.assertSame(clientOf(a), clientOf(b));
+        }
+        Assert.assertEquals(created.size(), 1);
+        Assert.assertEquals(pool.getSize(), 1);
+        Assert.assertTrue(destroyed.isEmpty());
+    }
+
+    @Test
+    public void testHealthCheckFailureWhileBorrowed() throws Exception {
+        OmeroClientPool pool = newPool(1, 60000, 0);
+        PooledRequest first = pool.borrow("session");
+        omero.client stale = clientOf(first);
+        ServiceFactoryPrx session = stale.getSession();
+        doThrow(new RuntimeException("Connection lost"))
+            .when(session).ice_ping();
+
+        PooledRequest second = pool.borrow("session");
+        omero.client replacement = clientOf(second);
+        Assert.assertNotSame(replacement, stale);
+        // Still in use by the first request so must not be closed yet
+        verify(stale, never()).__del__();
+        Assert.assertSame(clientOf(first), stale);
+
+        first.close();
+        verify(stale, times(1)).__del__();
+        second.close();
+        verify(replacement, never()).__del__();
+
+        // Subsequent requests use the replacement
+        try (PooledRequest third = pool.borrow("session")) {
+            Assert.assertSame(clientOf(third), replacement);
+        }
+        Assert.assertEquals(created.size(), 2);
+    }
+
+    @Test
+    public void testEvictionSkipsBorrowedClient() throws Exception {
+        OmeroClientPool pool = newPool(1, 0, 60000);
+        PooledRequest request = pool.borrow("session");
+        pool.evictIdle();
+        Assert.assertEquals(pool.getSize(), 1);
+        verify(clientOf(request), never()).__del__();
+        request.close();
+
+        pool.evictIdle();
+        Assert.assertEquals(pool.getSize(), 0);
+        verify(created.get(0), times(1)).__del__();
+
+        try (PooledRequest next = pool.borrow("session")) {
+            Assert.assertNotSame(clientOf(next), created.get(0));
+        }
+        Assert.assertEquals(created.size(), 2);
+    }
+
+    @Test
+    public void testEvictionRacingAcquire() throws Exception {
+        OmeroClientPool pool = newPool(1, 0, 0);
+        AtomicBoolean inUseDestroyed = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < 500; j++) {
+                        try (PooledRequest request = pool.borrow("session")) {
+                            if (destroyed.contains(clientOf(request))) {
+                                inUseDestroyed.set(true);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Future<?> evictor = executor.submit(() -> {
+                start.await();
+                while (!done.get()) {
+                    pool.evictIdle();
+                }
+                return null;
+            });
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            done.set(true);
+            evictor.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertFalse(inUseDestroyed.get());
+        pool.close();
+        // Every client created has been closed exactly once
+        for (omero.client client : created) {
+            verify(client, times(1)).__del__();
+        }
+        Assert.assertEquals(pool.getSize(), 0);
+    }
+
+    @Test
+    public void testMaxSizeFallback() throws Exception {
+        OmeroClientPool pool = newPool(1, 60000, 60000);
+        PooledRequest pooled = pool.borrow("a");
+        PooledRequest unpooled = pool.borrow("b");
+        Assert.assertEquals(pool.getSize(), 1);
+        Assert.assertNotSame(clientOf(unpooled), clientOf(pooled));
+
+        unpooled.close();
+        verify(clientOf(unpooled), times(1)).__del__();
+        pooled.close();
+        verify(clientOf(pooled), never()).__del__();
+    }
+
+    @Test
+    public void testMaxSizeEvictsIdleClient() throws Exception {
+        OmeroClientPool pool = newPool(1, 60000, 60000);
+        pool.borrow("a").close();
+        try (PooledRequest request = pool.borrow("b")) {
+            Assert.assertEquals(pool.getSize(), 1);
+            verify(created.get(0), times(1)).__del__();
+        }
+        verify(created.get(1), never()).__del__();
+    }
+}
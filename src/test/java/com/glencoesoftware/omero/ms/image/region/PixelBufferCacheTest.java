@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+
+public class PixelBufferCacheTest {
+
+    private PixelsService pixelsService;
+
+    private Pixels pixels = new Pixels(1L, true);
+
+    @BeforeMethod
+    public void setUp() {
+        pixelsService = mock(PixelsService.class);
+        when(pixelsService.getPixelBuffer(any(Pixels.class), anyBoolean()))
+            .thenAnswer(invocation -> {
+                PixelBuffer pixelBuffer = mock(PixelBuffer.class);
+                when(pixelBuffer.getResolutionLevels()).thenReturn(3);
+                return pixelBuffer;
+            });
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 4, 60000);
+        PixelBuffer a = cache.getPixelBuffer(pixels);
+        Assert.assertEquals(a.getResolutionLevels(), 3);
+        a.close();
+        // Closing again must not return the pixel buffer to the cache twice
+        a.close();
+        Assert.assertEquals(cache.getIdleCount(), 1);
+        PixelBuffer b = cache.getPixelBuffer(pixels);
+        Assert.assertEquals(cache.getIdleCount(), 0);
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 1);
+        b.close();
+        verify(pixelsService, times(1)).getPixelBuffer(pixels, false);
+    }
+
+    @Test
+    public void testConcurrentLeases() throws IOException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 4, 60000);
+        PixelBuffer a = cache.getPixelBuffer(pixels);
+        PixelBuffer b = cache.getPixelBuffer(pixels);
+        verify(pixelsService, times(2)).getPixelBuffer(pixels, false);
+        a.close();
+        b.close();
+        Assert.assertEquals(cache.getIdleCount(), 2);
+    }
+
+    @Test
+    public void testResetResolutionLevel() throws IOException {
+        PixelBuffer delegate = mock(PixelBuffer.class);
+        when(delegate.getResolutionLevels()).thenReturn(3);
+        when(pixelsService.getPixelBuffer(pixels, false)).thenReturn(delegate);
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 4, 60000);
+        PixelBuffer a = cache.getPixelBuffer(pixels);
+        a.setResolutionLevel(0);
+        verify(delegate).setResolutionLevel(0);
+        a.close();
+        // Returned to the cache at full resolution
+        verify(delegate).setResolutionLevel(2);
+        verify(delegate, never()).close();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testUseAfterClose() throws IOException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 4, 60000);
+        PixelBuffer a = cache.getPixelBuffer(pixels);
+        a.close();
+        a.getSizeX();
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 1, 60000);
+        PixelBuffer a = cache.getPixelBuffer(pixels);
+        PixelBuffer b = cache.getPixelBuffer(new Pixels(2L, true));
+        a.close();
+        b.close();
+        Assert.assertEquals(cache.getIdleCount(), 1);
+        Assert.assertEquals(cache.getEvictions(), 1);
+        // The least recently used pixel buffer was evicted
+        cache.getPixelBuffer(pixels).close();
+        Assert.assertEquals(cache.getMisses(), 3);
+    }
+
+    @Test
+    public void testEvictIdle() throws IOException, InterruptedException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 4, 1);
+        cache.getPixelBuffer(pixels).close();
+        Thread.sleep(5);
+        cache.evictIdle();
+        Assert.assertEquals(cache.getIdleCount(), 0);
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        PixelBufferCache cache = new PixelBufferCache(pixelsService, 0, 60000);
+        cache.getPixelBuffer(pixels).close();
+        Assert.assertEquals(cache.getIdleCount(), 0);
+        cache.getPixelBuffer(pixels).close();
+        verify(pixelsService, times(2)).getPixelBuffer(pixels, false);
+    }
+}
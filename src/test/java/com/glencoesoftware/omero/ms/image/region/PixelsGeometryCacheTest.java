@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.image.region.PixelsGeometryCache.PixelsGeometry;
+
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+
+public class PixelsGeometryCacheTest {
+
+    private Pixels pixels;
+
+    private PixelBuffer pixelBuffer;
+
+    private List<List<Integer>> resolutionLevels = Arrays.asList(
+            Arrays.asList(1024, 512),
+            Arrays.asList(512, 256),
+            Arrays.asList(256, 128));
+
+    @BeforeMethod
+    public void setUp() {
+        pixels = new Pixels(1L, true);
+        pixels.setSizeX(1024);
+        pixels.setSizeY(512);
+        pixelBuffer = mock(PixelBuffer.class);
+        when(pixelBuffer.getResolutionLevels()).thenReturn(3);
+        when(pixelBuffer.getResolutionDescriptions())
+            .thenReturn(resolutionLevels);
+        when(pixelBuffer.getTileSize()).thenReturn(new Dimension(256, 256));
+    }
+
+    @Test
+    public void testGetGeometry() {
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 60000);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        Assert.assertEquals(geometry.getResolutionLevels(), resolutionLevels);
+        Assert.assertEquals(geometry.getTileSize(), new Dimension(256, 256));
+        Assert.assertSame(cache.getGeometry(pixels, pixelBuffer), geometry);
+        verify(pixelBuffer, times(1)).getResolutionDescriptions();
+        verify(pixelBuffer, times(1)).getTileSize();
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testNoPyramid() {
+        when(pixelBuffer.getResolutionLevels()).thenReturn(1);
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 60000);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        Assert.assertEquals(geometry.getResolutionLevels(),
+                Arrays.asList(Arrays.asList(1024, 512)));
+        verify(pixelBuffer, never()).getResolutionDescriptions();
+    }
+
+    @Test
+    public void testPixelsChanged() {
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 60000);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        pixels.setSizeX(2048);
+        Assert.assertNotSame(cache.getGeometry(pixels, pixelBuffer), geometry);
+    }
+
+    @Test
+    public void testResolutionLevelsChanged() {
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 60000);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        when(pixelBuffer.getResolutionLevels()).thenReturn(1);
+        PixelsGeometry changed = cache.getGeometry(pixels, pixelBuffer);
+        Assert.assertNotSame(changed, geometry);
+        Assert.assertEquals(changed.getResolutionLevels().size(), 1);
+        Assert.assertSame(cache.getGeometry(pixels, pixelBuffer), changed);
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 2);
+    }
+
+    @Test
+    public void testInvalidate() {
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 60000);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        cache.invalidate(1L);
+        Assert.assertNotSame(cache.getGeometry(pixels, pixelBuffer), geometry);
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        PixelsGeometryCache cache = new PixelsGeometryCache(10, 1);
+        PixelsGeometry geometry = cache.getGeometry(pixels, pixelBuffer);
+        Thread.sleep(5);
+        Assert.assertNotSame(cache.getGeometry(pixels, pixelBuffer), geometry);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import io.vertx.core.json.JsonObject;
+
+public class PngEncoderTest {
+
+    private int width = 67;
+
+    private int height = 45;
+
+    private int[] pixels;
+
+    @BeforeMethod
+    public void setUp() {
+        pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = ((x * 3) & 0xFF) << 16
+                        | ((y * 5) & 0xFF) << 8 | ((x * y) & 0xFF);
+            }
+        }
+    }
+
+    private BufferedImage decode(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        Assert.assertNotNull(image);
+        Assert.assertEquals(image.getWidth(), width);
+        Assert.assertEquals(image.getHeight(), height);
+        return image;
+    }
+
+    private void assertPixels(byte[] png) throws IOException {
+        int[] decoded = decode(png).getRGB(
+                0, 0, width, height, null, 0, width);
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] &= 0xFFFFFF;
+        }
+        Assert.assertEquals(decoded, pixels);
+    }
+
+    private byte[] encodeRgb(PngEncoder encoder) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.encodeRgb(pixels, width, height, output);
+        return output.toByteArray();
+    }
+
+    @DataProvider
+    public Object[][] filters() {
+        PngEncoder.Filter[] filters = PngEncoder.Filter.values();
+        Object[][] data = new Object[filters.length][];
+        for (int i = 0; i < filters.length; i++) {
+            data[i] = new Object[] { filters[i] };
+        }
+        return data;
+    }
+
+    @Test(dataProvider = "filters")
+    public void testEncodeRgb(PngEncoder.Filter filter) throws IOException {
+        assertPixels(encodeRgb(new PngEncoder(1, filter, 0, null)));
+        assertPixels(encodeRgb(new PngEncoder(9, filter, 0, null)));
+    }
+
+    @Test
+    public void testEncodeRgbHighByteIgnored() throws IOException {
+        int[] opaque = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            opaque[i] = 0xFF000000 | pixels[i];
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PngEncoder().encodeRgb(opaque, width, height, output);
+        Assert.assertEquals(output.toByteArray(), encodeRgb(new PngEncoder()));
+    }
+
+    @Test
+    public void testEncodeRgbParallel() throws IOException {
+        // Large enough for strips to exceed the deflate dictionary size
+        width = 512;
+        height = 301;
+        setUp();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            PngEncoder encoder = new PngEncoder(
+                    6, PngEncoder.Filter.ADAPTIVE, 1, pool);
+            assertPixels(encodeRgb(encoder));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncodeRgbParallelBelowThreshold() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            PngEncoder encoder = new PngEncoder(
+                    6, PngEncoder.Filter.ADAPTIVE, width * height + 1, pool);
+            // Compressed serially, so identical to an encoder without a pool
+            Assert.assertEquals(encodeRgb(encoder),
+                    encodeRgb(new PngEncoder(
+                            6, PngEncoder.Filter.ADAPTIVE, 0, null)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncodeIndexed() throws IOException {
+        width = 16;
+        height = 3;
+        byte[] bits = new byte[] {
+            (byte) 0x80, 0x01,
+            0, 0,
+            (byte) 0xFF, (byte) 0xFF
+        };
+        IndexColorModel colorModel = new IndexColorModel(
+                1, 2, new byte[] { 0, 0, 0, 0, (byte) 255, 0, 0, (byte) 128 },
+                0, true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PngEncoder().encodeIndexed(
+                bits, width, height, 1, colorModel, output);
+        BufferedImage image = decode(output.toByteArray());
+        Assert.assertEquals(image.getRGB(0, 0), 0x80FF0000);
+        Assert.assertEquals(image.getRGB(1, 0) >>> 24, 0);
+        Assert.assertEquals(image.getRGB(15, 0), 0x80FF0000);
+        Assert.assertEquals(image.getRGB(7, 1) >>> 24, 0);
+        Assert.assertEquals(image.getRGB(9, 2), 0x80FF0000);
+    }
+
+    @Test
+    public void testEncodeIndexedBytes() throws IOException {
+        width = 5;
+        height = 2;
+        byte[] bytes = new byte[] { 0, 1, 0, 1, 1, 1, 0, 0, 0, 1 };
+        IndexColorModel colorModel = new IndexColorModel(
+                1, 2, new byte[] { 0, 0, 0, 0, 0, (byte) 255, 0, (byte) 255 },
+                0, true);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PngEncoder().encodeIndexed(
+                bytes, width, height, 8, colorModel, output);
+        BufferedImage image = decode(output.toByteArray());
+        for (int i = 0; i < bytes.length; i++) {
+            int rgb = image.getRGB(i % width, i / width);
+            if (bytes[i] == 1) {
+                Assert.assertEquals(rgb, 0xFF00FF00);
+            } else {
+                Assert.assertEquals(rgb >>> 24, 0);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        PngEncoder.fromConfig(
+                new JsonObject().put("compression-level", 10));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownFilter() {
+        PngEncoder.fromConfig(new JsonObject().put("filter", "unknown"));
+    }
+}
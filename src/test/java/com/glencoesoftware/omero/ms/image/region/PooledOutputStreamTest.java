@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+public class PooledOutputStreamTest {
+
+    @Test
+    public void testWrite() {
+        byte[] bytes;
+        try (PooledOutputStream output = new PooledOutputStream(2)) {
+            output.write(1);
+            output.write(new byte[] { 2, 3, 4, 5 }, 1, 3);
+            Assert.assertEquals(output.size(), 4);
+            bytes = output.toByteArray();
+        }
+        Assert.assertEquals(bytes, new byte[] { 1, 3, 4, 5 });
+    }
+
+    @Test
+    public void testCloseReleases() {
+        ByteBuf buffer = Unpooled.buffer(16);
+        ByteBufAllocator allocator = mock(ByteBufAllocator.class);
+        when(allocator.heapBuffer(anyInt())).thenReturn(buffer);
+        PooledOutputStream output = new PooledOutputStream(allocator, 16);
+        output.write(1);
+        output.close();
+        Assert.assertEquals(buffer.refCnt(), 0);
+        // Closing again must not release the buffer a second time
+        output.close();
+    }
+
+    @Test
+    public void testInitialCapacityCapped() {
+        ByteBufAllocator allocator = mock(ByteBufAllocator.class);
+        when(allocator.heapBuffer(anyInt())).thenReturn(Unpooled.buffer());
+        new PooledOutputStream(allocator, Integer.MAX_VALUE).close();
+        verify(allocator).heapBuffer(PooledOutputStream.MAX_INITIAL_CAPACITY);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testWriteAfterClose() {
+        PooledOutputStream output = new PooledOutputStream(16);
+        output.close();
+        output.write(1);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import ome.api.IProjection;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.data.RegionDef;
+
+public class ProjectionServiceTest {
+
+    private static final int SIZE_X = 7;
+
+    private static final int SIZE_Y = 5;
+
+    private static final int SIZE_Z = 4;
+
+    @DataProvider(name = "pixelsTypes")
+    public Object[][] pixelsTypes() {
+        return new Object[][] {
+            { "int8", 8, ByteOrder.BIG_ENDIAN },
+            { "uint8", 8, ByteOrder.BIG_ENDIAN },
+            { "int16", 16, ByteOrder.BIG_ENDIAN },
+            { "uint16", 16, ByteOrder.LITTLE_ENDIAN },
+            { "int32", 32, ByteOrder.LITTLE_ENDIAN },
+            { "uint32", 32, ByteOrder.BIG_ENDIAN },
+            { "float", 32, ByteOrder.LITTLE_ENDIAN },
+            { "double", 64, ByteOrder.BIG_ENDIAN },
+        };
+    }
+
+    private PixelBuffer createPixelBuffer(
+            final String pixelsType, int bitSize, final ByteOrder order)
+                    throws IOException {
+        return createPixelBuffer(pixelsType, bitSize, order, SIZE_X, SIZE_Y);
+    }
+
+    private PixelBuffer createPixelBuffer(
+            final String pixelsType, int bitSize, final ByteOrder order,
+            int sizeX, int sizeY)
+                    throws IOException {
+        Random random = new Random(pixelsType.hashCode());
+        final byte[][] planes = new byte[SIZE_Z][];
+        for (int z = 0; z < SIZE_Z; z++) {
+            planes[z] = new byte[sizeX * sizeY * bitSize / 8];
+            PixelData plane =
+                    new PixelData(pixelsType, ByteBuffer.wrap(planes[z]));
+            plane.setOrder(order);
+            // Exercise the full range of each pixels type including the
+            // values which would be negative if treated as signed
+            double maximum = Math.min(plane.getMaximum(), 1e10);
+            double minimum =
+                    pixelsType.startsWith("u")? 0 : -maximum;
+            for (int i = 0; i < sizeX * sizeY; i++) {
+                plane.setPixelValue(i, Math.floor(
+                        minimum + random.nextDouble() * (maximum - minimum)));
+            }
+        }
+        PixelBuffer pixelBuffer = mock(PixelBuffer.class);
+        when(pixelBuffer.getSizeX()).thenReturn(sizeX);
+        when(pixelBuffer.getSizeY()).thenReturn(sizeY);
+        when(pixelBuffer.getTile(
+                anyInt(), any(), any(), any(), any(), any(), any()))
+            .thenAnswer(invocation -> {
+                int z = invocation.getArgument(0);
+                PixelData tile = new PixelData(
+                        pixelsType, ByteBuffer.wrap(planes[z].clone()));
+                tile.setOrder(order);
+                return tile;
+            });
+        return pixelBuffer;
+    }
+
+    @Test(dataProvider = "pixelsTypes")
+    public void testKernelsMatchPixelData(
+            String pixelsType, int bitSize, ByteOrder order)
+                    throws IOException {
+        PixelsType type = new PixelsType(pixelsType);
+        type.setBitSize(bitSize);
+        Pixels pixels = new Pixels(
+                null, type, SIZE_X, SIZE_Y, SIZE_Z, 1, 1, "", null);
+        PixelBuffer pixelBuffer =
+                createPixelBuffer(pixelsType, bitSize, order);
+        ProjectionService kernels = new ProjectionService(true);
+        ProjectionService pixelData = new ProjectionService(false);
+        int[] algorithms = new int[] {
+            IProjection.MAXIMUM_INTENSITY,
+            IProjection.MEAN_INTENSITY,
+            IProjection.SUM_INTENSITY
+        };
+        for (int algorithm : algorithms) {
+            byte[] expected = pixelData.projectStack(
+                    pixels, pixelBuffer, algorithm, 0, 0, 1, 0, SIZE_Z - 1,
+                    null);
+            byte[] actual = kernels.projectStack(
+                    pixels, pixelBuffer, algorithm, 0, 0, 1, 0, SIZE_Z - 1,
+                    null);
+            Assert.assertEquals(actual, expected);
+        }
+    }
+
+    @Test(dataProvider = "pixelsTypes")
+    public void testParallelMatchesSequential(
+            String pixelsType, int bitSize, ByteOrder order)
+                    throws IOException {
+        // Large enough to be split into multiple row bands
+        int sizeX = 300;
+        int sizeY = 500;
+        PixelsType type = new PixelsType(pixelsType);
+        type.setBitSize(bitSize);
+        Pixels pixels = new Pixels(
+                null, type, sizeX, sizeY, SIZE_Z, 3, 1, "", null);
+        PixelBuffer pixelBuffer =
+                createPixelBuffer(pixelsType, bitSize, order, sizeX, sizeY);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ProjectionService parallel = new ProjectionService(true, pool);
+            ProjectionService sequential = new ProjectionService();
+            int[] channelIndexes = new int[] { 0, 2 };
+            int[] algorithms = new int[] {
+                IProjection.MAXIMUM_INTENSITY,
+                IProjection.MEAN_INTENSITY,
+                IProjection.SUM_INTENSITY
+            };
+            for (int algorithm : algorithms) {
+                byte[][] expected = sequential.projectStacks(
+                        pixels, pixelBuffer, algorithm, 0, channelIndexes, 1,
+                        0, SIZE_Z - 1, null);
+                byte[][] actual = parallel.projectStacks(
+                        pixels, pixelBuffer, algorithm, 0, channelIndexes, 1,
+                        0, SIZE_Z - 1, null);
+                Assert.assertEquals(actual.length, 2);
+                Assert.assertEquals(actual[0], expected[0]);
+                Assert.assertEquals(actual[1], expected[1]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRegion() throws IOException {
+        PixelsType type = new PixelsType("uint8");
+        type.setBitSize(8);
+        Pixels pixels = new Pixels(
+                null, type, SIZE_X, SIZE_Y, SIZE_Z, 1, 1, "", null);
+        PixelBuffer pixelBuffer = mock(PixelBuffer.class);
+        when(pixelBuffer.getTile(0, 0, 0, 2, 1, 3, 2))
+            .thenReturn(new PixelData("uint8", ByteBuffer.wrap(
+                    new byte[] { 1, 2, 3, 4, 5, (byte) 200 })));
+        when(pixelBuffer.getTile(1, 0, 0, 2, 1, 3, 2))
+            .thenReturn(new PixelData("uint8", ByteBuffer.wrap(
+                    new byte[] { 6, 1, 7, 1, 8, 1 })));
+        byte[] projected = new ProjectionService().projectStack(
+                pixels, pixelBuffer, IProjection.MAXIMUM_INTENSITY,
+                0, 0, 1, 0, 1, new RegionDef(2, 1, 3, 2));
+        Assert.assertEquals(
+                projected, new byte[] { 6, 2, 7, 4, 8, (byte) 200 });
+    }
+}
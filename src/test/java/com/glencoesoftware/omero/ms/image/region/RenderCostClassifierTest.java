@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.glencoesoftware.omero.ms.image.region.RenderCostClassifier.Lane;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class RenderCostClassifierTest {
+
+    private RenderCostClassifier classifier =
+            new RenderCostClassifier(1024 * 1024);
+
+    private MultiMap params;
+
+    @BeforeMethod
+    public void setUp() {
+        params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("theZ", "0");
+        params.add("theT", "0");
+        params.add("c", "1|0:255$FF0000,-2|0:255$00FF00,3|0:255$0000FF");
+    }
+
+    @Test
+    public void testTile() {
+        params.add("tile", "0,1,1,256,256");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(
+                classifier.estimateCost(imageRegionCtx), 256 * 256 * 2);
+        Assert.assertEquals(
+                classifier.classify(imageRegionCtx), Lane.INTERACTIVE);
+    }
+
+    @Test
+    public void testTileDefaultSize() {
+        params.add("tile", "0,1,1");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(classifier.estimateCost(imageRegionCtx),
+                RenderCostClassifier.DEFAULT_TILE_AREA * 2);
+    }
+
+    @Test
+    public void testRegion() {
+        params.add("region", "0,0,1024,1024");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(
+                classifier.estimateCost(imageRegionCtx), 1024 * 1024 * 2);
+        Assert.assertEquals(classifier.classify(imageRegionCtx), Lane.BULK);
+    }
+
+    @Test
+    public void testFullPlane() {
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(
+                classifier.estimateCost(imageRegionCtx), Long.MAX_VALUE);
+        Assert.assertEquals(classifier.classify(imageRegionCtx), Lane.BULK);
+    }
+
+    @Test
+    public void testProjection() {
+        params.add("tile", "0,1,1,256,256");
+        params.add("p", "intmax|0:9");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(
+                classifier.estimateCost(imageRegionCtx), 256 * 256 * 2 * 10);
+        Assert.assertEquals(classifier.classify(imageRegionCtx), Lane.BULK);
+    }
+
+    @Test
+    public void testProjectionWholeStack() {
+        params.add("tile", "0,1,1,256,256");
+        params.add("p", "intmax");
+        ImageRegionCtx imageRegionCtx = new ImageRegionCtx(params, "");
+        Assert.assertEquals(
+                classifier.estimateCost(imageRegionCtx), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testBatch() {
+        params.remove("theZ");
+        params.remove("theT");
+        JsonArray specs = new JsonArray();
+        for (int i = 0; i < 4; i++) {
+            specs.add(new JsonObject()
+                    .put("theZ", 0)
+                    .put("theT", 0)
+                    .put("tile", "0," + i + ",0,256,256"));
+        }
+        ImageRegionBatchCtx batchCtx =
+                new ImageRegionBatchCtx(params, specs, "");
+        Assert.assertEquals(classifier.classify(batchCtx), Lane.INTERACTIVE);
+        for (int i = 4; i < 16; i++) {
+            specs.add(new JsonObject()
+                    .put("theZ", 0)
+                    .put("theT", 0)
+                    .put("tile", "0," + i + ",0,256,256"));
+        }
+        batchCtx = new ImageRegionBatchCtx(params, specs, "");
+        Assert.assertEquals(classifier.classify(batchCtx), Lane.BULK);
+    }
+}
@@ -52,7 +52,8 @@ public class ShapeMaskRequestHandlerTest {
         params.add("color", "0");
         params.add("flip", "");
 
-        handler = new ShapeMaskRequestHandler(new ShapeMaskCtx(params, ""));
+        handler = new ShapeMaskRequestHandler(
+                new ShapeMaskCtx(params, ""), new ImageEncoder());
     }
 
     @Test
@@ -68,6 +69,31 @@ public class ShapeMaskRequestHandlerTest {
         assertImage(image, width, height);
     }
 
+    @Test
+    public void testRenderShapeMaskByteAlignedFlipped() throws IOException {
+        MultiMap params = new CaseInsensitiveHeaders();
+        params.add("shapeId", "1");
+        params.add("color", "0");
+        params.add("flip", "h");
+        handler = new ShapeMaskRequestHandler(
+                new ShapeMaskCtx(params, ""), new ImageEncoder());
+
+        Color fillColor = new Color(255, 0, 0, 255);
+        // 8 by 2 grid alternating bits
+        byte[] bytes = new byte[] { 0x55, 0x55 };
+        int width = 8;
+        int height = 2;
+        byte[] png = handler.renderShapeMask(fillColor, bytes, width, height);
+        Assert.assertNotNull(png);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertImage(image, width, height);
+        // 0x55 starts with an unset bit so once flipped horizontally the
+        // first pixel of each row is filled and the last is transparent
+        Assert.assertEquals(image.getRGB(0, 0), 0xFFFF0000);
+        Assert.assertEquals(image.getRGB(7, 0) >>> 24, 0);
+        Assert.assertEquals(image.getRGB(0, 1), 0xFFFF0000);
+    }
+
     @Test
     public void testRenderShapeMaskNotByteAligned() throws IOException {
         Color fillColor = new Color(255, 0, 0, 255);
@@ -85,8 +111,9 @@ public class ShapeMaskRequestHandlerTest {
     private void testFlip(
             byte[] src, int sizeX, int sizeY,
             boolean flipHorizontal, boolean flipVertical) {
+        // Flipping is performed in place
         byte[] flipped = ShapeMaskRequestHandler.flip(
-                src, sizeX, sizeY, flipHorizontal, flipVertical);
+                src.clone(), sizeX, sizeY, flipHorizontal, flipVertical);
         for (int n = 0; n < sizeX * sizeY; n++){
             int new_col;
             if (flipHorizontal) {
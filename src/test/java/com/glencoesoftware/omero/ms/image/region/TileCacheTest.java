@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+public class TileCacheTest {
+
+    @Test
+    public void testGetPut() {
+        TileCache cache = new TileCache(1024, 60000, false);
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", 1L, new byte[] { 1, 2, 3 });
+        Assert.assertEquals(
+                cache.get("a").getBytes(), new byte[] { 1, 2, 3 });
+        Assert.assertEquals(cache.getSize(), 3);
+        Assert.assertEquals(cache.getHits(), 1);
+        Assert.assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testGetNotCopied() {
+        TileCache cache = new TileCache(1024, 60000, false);
+        byte[] value = new byte[] { 1, 2, 3 };
+        cache.put("a", 1L, value);
+        Assert.assertSame(cache.get("a").getByteBuf().array(), value);
+    }
+
+    @Test
+    public void testGetPutOffHeap() {
+        TileCache cache = new TileCache(1024, 60000, true);
+        cache.put("a", 1L, new byte[] { 1, 2, 3 });
+        Buffer first = cache.get("a");
+        Assert.assertTrue(first.getByteBuf().isDirect());
+        Assert.assertEquals(first.getBytes(), new byte[] { 1, 2, 3 });
+        // Reading a hit does not affect subsequent hits
+        Assert.assertEquals(
+                cache.get("a").getBytes(), new byte[] { 1, 2, 3 });
+        Assert.assertEquals(first.length(), 3);
+    }
+
+    @Test
+    public void testRemoveOffHeap() {
+        TileCache cache = new TileCache(8, 60000, true);
+        cache.put("a", 1L, new byte[] { 1, 2, 3, 4 });
+        cache.put("b", 1L, new byte[] { 5, 6, 7, 8 });
+        Buffer served = cache.get("a");
+        // Evicts the unserved "b" then invalidates the served "a"
+        cache.put("c", 2L, new byte[] { 9, 10, 11, 12 });
+        cache.invalidate(1L);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(cache.getSize(), 4);
+        // A hit served before removal remains readable
+        Assert.assertEquals(served.getBytes(), new byte[] { 1, 2, 3, 4 });
+        cache.clear();
+        Assert.assertNull(cache.get("c"));
+        Assert.assertEquals(cache.getSize(), 0);
+        Assert.assertEquals(cache.getCount(), 0);
+    }
+
+    @Test
+    public void testEviction() {
+        TileCache cache = new TileCache(8, 60000, false);
+        cache.put("a", 1L, new byte[4]);
+        cache.put("b", 1L, new byte[4]);
+        // Access "a" so that "b" is the least recently used
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("c", 2L, new byte[4]);
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(cache.getSize(), 8);
+        Assert.assertEquals(cache.getEvictions(), 1);
+    }
+
+    @Test
+    public void testTooLarge() {
+        TileCache cache = new TileCache(2, 60000, false);
+        cache.put("a", 1L, new byte[4]);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(cache.getSize(), 0);
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        TileCache cache = new TileCache(1024, 1, false);
+        cache.put("a", 1L, new byte[4]);
+        Thread.sleep(10);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(cache.getSize(), 0);
+        Assert.assertEquals(cache.getExpirations(), 1);
+    }
+
+    @Test
+    public void testRemoveExpired() throws InterruptedException {
+        TileCache cache = new TileCache(1024, 1, false);
+        cache.put("a", 1L, new byte[4]);
+        cache.put("b", 2L, new byte[4]);
+        Thread.sleep(10);
+        Assert.assertEquals(cache.removeExpired(), 2);
+        Assert.assertEquals(cache.getSize(), 0);
+        Assert.assertEquals(cache.getCount(), 0);
+        Assert.assertEquals(cache.getExpirations(), 2);
+    }
+
+    @Test
+    public void testPutRemovesExpired() throws InterruptedException {
+        TileCache cache = new TileCache(1024, 1, false);
+        cache.put("a", 1L, new byte[4]);
+        Thread.sleep(10);
+        cache.put("b", 2L, new byte[4]);
+        Assert.assertEquals(cache.getCount(), 1);
+        Assert.assertEquals(cache.getSize(), 4);
+        Assert.assertEquals(cache.getExpirations(), 1);
+        Assert.assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        TileCache cache = new TileCache(1024, 60000, false);
+        cache.put("a", 1L, new byte[4]);
+        cache.put("b", 1L, new byte[4]);
+        cache.put("c", 2L, new byte[4]);
+        cache.invalidate(1L);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(cache.getSize(), 4);
+        Assert.assertEquals(cache.getCount(), 1);
+    }
+}
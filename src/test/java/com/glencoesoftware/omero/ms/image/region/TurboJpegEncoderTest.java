@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+public class TurboJpegEncoderTest {
+
+    @Test
+    public void testJpegQuality() {
+        Assert.assertEquals(TurboJpegEncoder.jpegQuality(0.85f), 85);
+        Assert.assertEquals(TurboJpegEncoder.jpegQuality(1.0f), 100);
+        Assert.assertEquals(TurboJpegEncoder.jpegQuality(0.0f), 1);
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        TurboJpegEncoder encoder = TurboJpegEncoder.load();
+        if (encoder == null) {
+            throw new SkipException("libjpeg-turbo is not available");
+        }
+        int width = 48;
+        int height = 16;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF0000;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.encode(pixels, width, height, 0.9f, false, output);
+        BufferedImage decoded = ImageIO.read(
+                new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals(decoded.getWidth(), width);
+        Assert.assertEquals(decoded.getHeight(), height);
+        // Red must stay red; a wrong pixel format swaps red and blue
+        int rgb = decoded.getRGB(width / 2, height / 2);
+        Assert.assertTrue((rgb >> 16 & 0xFF) > 200);
+        Assert.assertTrue((rgb & 0xFF) < 50);
+    }
+}